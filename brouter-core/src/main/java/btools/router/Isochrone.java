@@ -0,0 +1,146 @@
+/**
+ * Collects the nodes reached by an isochrone search
+ * and formats them as a point set or as the polygon
+ * (the convex hull) of the reachable area
+ *
+ * @author ab
+ */
+package btools.router;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+public final class Isochrone implements IsochroneListener
+{
+  private int size;
+  private int[] ilons = new int[256];
+  private int[] ilats = new int[256];
+  private int[] costs = new int[256];
+  private int[] distances = new int[256];
+
+  public void nodeReached( int ilon, int ilat, int cost, int distance )
+  {
+    if ( size == ilons.length )
+    {
+      ilons = Arrays.copyOf( ilons, 2*size );
+      ilats = Arrays.copyOf( ilats, 2*size );
+      costs = Arrays.copyOf( costs, 2*size );
+      distances = Arrays.copyOf( distances, 2*size );
+    }
+    ilons[size] = ilon;
+    ilats[size] = ilat;
+    costs[size] = cost;
+    distances[size] = distance;
+    size++;
+  }
+
+  /**
+   * @return the number of nodes reached
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return the reached nodes as features with cost and distance
+   */
+  public String formatAsGeoJson()
+  {
+    StringBuilder sb = new StringBuilder( 256 + 160*size );
+    sb.append( "{\n" );
+    sb.append( "  \"type\": \"FeatureCollection\",\n" );
+    sb.append( "  \"features\": [\n" );
+    for( int i=0; i<size; i++ )
+    {
+      sb.append( "    { \"type\": \"Feature\", \"properties\": { \"cost\": " ).append( costs[i] )
+        .append( ", \"distance\": " ).append( distances[i] )
+        .append( " }, \"geometry\": { \"type\": \"Point\", \"coordinates\": [" )
+        .append( OsmTrack.formatPos( ilons[i] - 180000000 ) ).append( ", " )
+        .append( OsmTrack.formatPos( ilats[i] - 90000000 ) ).append( "] } }" )
+        .append( i < size-1 ? ",\n" : "\n" );
+    }
+    sb.append( "  ]\n" );
+    sb.append( "}\n" );
+    return sb.toString();
+  }
+
+  /**
+   * @return the convex hull of the reached nodes as a polygon feature
+   * (no feature if nothing was reached)
+   */
+  public String formatHullAsGeoJson()
+  {
+    StringBuilder sb = new StringBuilder( 256 + 32*size );
+    sb.append( "{\n" );
+    sb.append( "  \"type\": \"FeatureCollection\",\n" );
+    sb.append( "  \"features\": [\n" );
+    if ( size == 0 )
+    {
+      sb.append( "  ]\n" );
+      sb.append( "}\n" );
+      return sb.toString();
+    }
+    int[] hull = getConvexHull();
+    sb.append( "    {\n" );
+    sb.append( "      \"type\": \"Feature\",\n" );
+    sb.append( "      \"properties\": {\n" );
+    sb.append( "        \"creator\": \"BRouter-1.1\",\n" );
+    sb.append( "        \"nodes\": \"" ).append( size ).append( "\"\n" );
+    sb.append( "      },\n" );
+    sb.append( "      \"geometry\": {\n" );
+    sb.append( "        \"type\": \"Polygon\",\n" );
+    sb.append( "        \"coordinates\": [ [\n" );
+    for( int k=0; k<=hull.length; k++ )
+    {
+      int i = hull[k % hull.length]; // closed ring
+      sb.append( "          [" ).append( OsmTrack.formatPos( ilons[i] - 180000000 ) ).append( ", " )
+        .append( OsmTrack.formatPos( ilats[i] - 90000000 ) ).append( k < hull.length ? "],\n" : "]\n" );
+    }
+    sb.append( "        ] ]\n" );
+    sb.append( "      }\n" );
+    sb.append( "    }\n" );
+    sb.append( "  ]\n" );
+    sb.append( "}\n" );
+    return sb.toString();
+  }
+
+  // monotone chain, returns the node indices counter-clockwise
+  private int[] getConvexHull()
+  {
+    Integer[] idx = new Integer[size];
+    for( int i=0; i<size; i++ ) idx[i] = Integer.valueOf( i );
+    Arrays.sort( idx, new Comparator<Integer>()
+    {
+      public int compare( Integer i1, Integer i2 )
+      {
+        int a = i1.intValue();
+        int b = i2.intValue();
+        if ( ilons[a] != ilons[b] ) return ilons[a] < ilons[b] ? -1 : 1;
+        return ilats[a] < ilats[b] ? -1 : ( ilats[a] > ilats[b] ? 1 : 0 );
+      }
+    } );
+
+    int[] hull = new int[2*size];
+    int k = 0;
+    for( int j=0; j<size; j++ ) // lower hull
+    {
+      int i = idx[j].intValue();
+      while( k >= 2 && cross( hull[k-2], hull[k-1], i ) <= 0 ) k--;
+      hull[k++] = i;
+    }
+    for( int j=size-2, t=k+1; j>=0; j-- ) // upper hull
+    {
+      int i = idx[j].intValue();
+      while( k >= t && cross( hull[k-2], hull[k-1], i ) <= 0 ) k--;
+      hull[k++] = i;
+    }
+    return Arrays.copyOf( hull, k > 1 ? k-1 : 1 );
+  }
+
+  private long cross( int o, int a, int b )
+  {
+    return (long)( ilons[a] - ilons[o] ) * ( ilats[b] - ilats[o] )
+         - (long)( ilats[a] - ilats[o] ) * ( ilons[b] - ilons[o] );
+  }
+}
@@ -0,0 +1,16 @@
+/**
+ * Receives the nodes reached by an isochrone search
+ *
+ * @author ab
+ */
+package btools.router;
+
+public interface IsochroneListener
+{
+  /**
+   * Called once per node, in the order of increasing cost
+   *
+   * @param distance the distance travelled on the lowest-cost path
+   */
+  void nodeReached( int ilon, int ilat, int cost, int distance );
+}
@@ -0,0 +1,183 @@
+/**
+ * Candidate nodes for the waypoint matching, collected
+ * from the nearest-segment indexes of the micro-tiles
+ * around the waypoint in rings of growing size.
+ *
+ * Each node with a section near the waypoint is a candidate,
+ * ordered by the distance of that section and then like the
+ * former full scan (by tile and node-id), so the matching can
+ * evaluate just the nearest candidates.
+ *
+ * @author ab
+ */
+package btools.router;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import btools.mapaccess.NodesCache;
+import btools.mapaccess.SegmentIndex;
+
+final class MatchCandidates
+{
+  private static final class Candidate implements Comparable<Candidate>
+  {
+    double distance;
+    int tileSeq;
+    long nodeId;
+
+    Candidate( double distance, int tileSeq, long nodeId )
+    {
+      this.distance = distance;
+      this.tileSeq = tileSeq;
+      this.nodeId = nodeId;
+    }
+
+    @Override
+    public int compareTo( Candidate c )
+    {
+      if ( distance != c.distance ) return distance < c.distance ? -1 : 1;
+      if ( tileSeq != c.tileSeq ) return tileSeq < c.tileSeq ? -1 : 1;
+      return nodeId < c.nodeId ? -1 : ( nodeId > c.nodeId ? 1 : 0 );
+    }
+  }
+
+  private NodesCache nodesCache;
+  private int ilon;
+  private int ilat;
+  private double maxDistance;
+
+  private HashMap<Long,SegmentIndex> indexes = new HashMap<Long,SegmentIndex>();
+  private HashSet<Long> scannedTiles = new HashSet<Long>();
+  private ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+  private boolean sorted = true;
+
+  /**
+   * @param maxDistance the distance limit in degrees for sections to be considered
+   */
+  MatchCandidates( NodesCache nodesCache, int ilon, int ilat, double maxDistance )
+  {
+    this.nodesCache = nodesCache;
+    this.ilon = ilon;
+    this.ilat = ilat;
+    this.maxDistance = maxDistance;
+  }
+
+  /**
+   * Scan the tiles of the given ring around the waypoint
+   *
+   * @return the number of nodes in these tiles
+   */
+  int scanRing( int ring )
+  {
+    int d = 12500;
+    int c = 0;
+    for( int idxLat=-ring; idxLat<=ring; idxLat++ )
+      for( int idxLon=-ring; idxLon<=ring; idxLon++ )
+      {
+        int absLat = idxLat < 0 ? -idxLat : idxLat;
+        int absLon = idxLon < 0 ? -idxLon : idxLon;
+        int max = absLat > absLon ? absLat : absLon;
+        if ( max < ring ) continue;
+        c += scanTile( ilon + d*idxLon, ilat + d*idxLat );
+      }
+    return c;
+  }
+
+  private int scanTile( int tileLon, int tileLat )
+  {
+    if ( tileLon < 0 || tileLat < 0 || tileLon >= 360000000 || tileLat >= 180000000 ) return 0;
+
+    if ( !scannedTiles.add( getTileKey( tileLon, tileLat ) ) ) return 0;
+    int tileSeq = scannedTiles.size();
+
+    SegmentIndex index = getIndex( tileLon, tileLat );
+    if ( index == null ) return 0;
+
+    if ( index.getBoxDistance( ilon, ilat ) <= maxDistance )
+    {
+      int n = index.getSectionCount();
+      for( int i=0; i<n; i++ )
+      {
+        double distance = index.getDistance( i, ilon, ilat, maxDistance );
+        if ( distance <= maxDistance )
+        {
+          addCandidate( distance, tileSeq, index.getSourceId( i ) );
+
+          // the target is a candidate as well if it's in this tile
+          long targetId = index.getTargetId( i );
+          if ( (int)(targetId >> 32)/12500 == tileLon/12500 && (int)(targetId & 0xffffffffL)/12500 == tileLat/12500 )
+          {
+            addCandidate( distance, tileSeq, targetId );
+          }
+        }
+      }
+    }
+
+    // sections written by nodes outside the tile
+    int nrefs = index.getReferenceCount();
+    for( int i=0; i<nrefs; i++ )
+    {
+      long sourceId = index.getReferenceSourceId( i );
+      long nodeId = index.getReferenceNodeId( i );
+      SegmentIndex sourceIndex = getIndex( (int)(sourceId >> 32), (int)(sourceId & 0xffffffffL) );
+      if ( sourceIndex == null ) continue;
+      int section = sourceIndex.findSection( sourceId, nodeId );
+      if ( section < 0 ) continue;
+      double distance = sourceIndex.getDistance( section, ilon, ilat, maxDistance );
+      if ( distance <= maxDistance )
+      {
+        addCandidate( distance, tileSeq, nodeId );
+      }
+    }
+    return index.getNodeCount();
+  }
+
+  private static Long getTileKey( int ilon, int ilat )
+  {
+    return Long.valueOf( ((long)(ilon/12500)) << 32 | (ilat/12500) );
+  }
+
+  private SegmentIndex getIndex( int ilon, int ilat )
+  {
+    Long key = getTileKey( ilon, ilat );
+    SegmentIndex index = indexes.get( key );
+    if ( index == null && !indexes.containsKey( key ) )
+    {
+      index = nodesCache.getSegmentIndex( ilon, ilat );
+      indexes.put( key, index );
+    }
+    return index;
+  }
+
+  private void addCandidate( double distance, int tileSeq, long nodeId )
+  {
+    candidates.add( new Candidate( distance, tileSeq, nodeId ) );
+    sorted = false;
+  }
+
+  int size()
+  {
+    if ( !sorted )
+    {
+      Collections.sort( candidates );
+      sorted = true;
+    }
+    return candidates.size();
+  }
+
+  /**
+   * @return the distance in degrees of the nearest section of candidate i
+   */
+  double getDistance( int i )
+  {
+    return candidates.get( i ).distance;
+  }
+
+  long getNodeId( int i )
+  {
+    return candidates.get( i ).nodeId;
+  }
+}
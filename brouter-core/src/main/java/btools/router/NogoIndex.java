@@ -0,0 +1,199 @@
+/**
+ * Grid index for the nogo areas of a request
+ *
+ * Each nogo is registered in the grid-cells overlapped by the
+ * bounding box of it's circle, so a segment has to be checked
+ * only against the nogos registered in the cells overlapped
+ * by the segment's bounding box.
+ *
+ * @author ab
+ */
+package btools.router;
+
+import java.util.Arrays;
+import java.util.List;
+
+final class NogoIndex
+{
+  // smallest cell size in micro-degrees (~500m)
+  private static final int MIN_CELL_SIZE = 5000;
+
+  private int size;
+
+  // bounding box of all nogo circles
+  private int minLon = Integer.MAX_VALUE;
+  private int minLat = Integer.MAX_VALUE;
+  private int maxLon = Integer.MIN_VALUE;
+  private int maxLat = Integer.MIN_VALUE;
+
+  private int cellSize;
+  private int nx;
+  private int ny;
+  private int[] cellStart;
+  private int[] cellNogos;
+
+  // query state
+  private int[] stamps;
+  private int stamp;
+  int[] result;
+
+  /**
+   * @return the index, or null if the list contains other points than nogos
+   */
+  static NogoIndex create( List<OsmNodeNamed> nogos )
+  {
+    for( OsmNodeNamed nogo : nogos )
+    {
+      if ( !nogo.isNogo ) return null;
+    }
+    return new NogoIndex( nogos );
+  }
+
+  private NogoIndex( List<OsmNodeNamed> nogos )
+  {
+    size = nogos.size();
+
+    int[] boxes = new int[4*size];
+    for( int i=0; i<size; i++ )
+    {
+      OsmNodeNamed nogo = nogos.get( i );
+      int dlat = (int)( nogo.radius * 1000000. ) + 1;
+      int dlon = (int)( nogo.radius * 1010000. / getCosLat( nogo.ilat ) ) + 1; // margin for the coslat of the segment
+      boxes[4*i] = nogo.ilon - dlon;
+      boxes[4*i+1] = nogo.ilat - dlat;
+      boxes[4*i+2] = nogo.ilon + dlon;
+      boxes[4*i+3] = nogo.ilat + dlat;
+      if ( boxes[4*i] < minLon ) minLon = boxes[4*i];
+      if ( boxes[4*i+1] < minLat ) minLat = boxes[4*i+1];
+      if ( boxes[4*i+2] > maxLon ) maxLon = boxes[4*i+2];
+      if ( boxes[4*i+3] > maxLat ) maxLat = boxes[4*i+3];
+    }
+
+    // coarsen the grid if the nogos are spread wide
+    int maxCells = Math.max( 1024, 4*size );
+    cellSize = MIN_CELL_SIZE;
+    for(;;)
+    {
+      nx = (maxLon - minLon) / cellSize + 1;
+      ny = (maxLat - minLat) / cellSize + 1;
+      if ( (long)nx*ny <= maxCells ) break;
+      cellSize *= 2;
+    }
+
+    cellStart = new int[nx*ny+1];
+    for( int pass=0; pass<2; pass++ )
+    {
+      for( int i=0; i<size; i++ )
+      {
+        int ix1 = (boxes[4*i+2] - minLon) / cellSize;
+        int iy1 = (boxes[4*i+3] - minLat) / cellSize;
+        for( int iy = (boxes[4*i+1] - minLat) / cellSize; iy <= iy1; iy++ )
+        {
+          for( int ix = (boxes[4*i] - minLon) / cellSize; ix <= ix1; ix++ )
+          {
+            int cell = iy*nx + ix;
+            if ( pass == 0 ) cellStart[cell+1]++;
+            else cellNogos[cellStart[cell]++] = i;
+          }
+        }
+      }
+      if ( pass == 0 )
+      {
+        for( int c=0; c<nx*ny; c++ )
+        {
+          cellStart[c+1] += cellStart[c];
+        }
+        cellNogos = new int[cellStart[nx*ny]];
+      }
+      else
+      {
+        // the fill advanced the starts by one cell
+        for( int c=nx*ny; c>0; c-- )
+        {
+          cellStart[c] = cellStart[c-1];
+        }
+        cellStart[0] = 0;
+      }
+    }
+
+    stamps = new int[size];
+    result = new int[16];
+  }
+
+  /**
+   * Find the nogos that may intersect the given segment. The result
+   * holds the list positions in ascending order, with the offset
+   * added and preceded by the positions 0..offset-1.
+   *
+   * @param offset the number of points preceding the nogos in the checked list
+   * @return the number of positions in the result
+   */
+  int query( int lon1, int lat1, int lon2, int lat2, int offset )
+  {
+    int n = 0;
+    for( int i=0; i<offset; i++ )
+    {
+      n = addResult( n, i );
+    }
+
+    int slonMin = lon1 < lon2 ? lon1 : lon2;
+    int slonMax = lon1 < lon2 ? lon2 : lon1;
+    int slatMin = lat1 < lat2 ? lat1 : lat2;
+    int slatMax = lat1 < lat2 ? lat2 : lat1;
+    if ( slonMax < minLon || slonMin > maxLon || slatMax < minLat || slatMin > maxLat )
+    {
+      return n;
+    }
+
+    int ix0 = slonMin < minLon ? 0 : (slonMin - minLon) / cellSize;
+    int ix1 = slonMax > maxLon ? nx-1 : (slonMax - minLon) / cellSize;
+    int iy0 = slatMin < minLat ? 0 : (slatMin - minLat) / cellSize;
+    int iy1 = slatMax > maxLat ? ny-1 : (slatMax - minLat) / cellSize;
+
+    if ( ++stamp == 0 )
+    {
+      Arrays.fill( stamps, 0 );
+      stamp = 1;
+    }
+    int first = n;
+    for( int iy=iy0; iy<=iy1; iy++ )
+    {
+      for( int ix=ix0; ix<=ix1; ix++ )
+      {
+        int cell = iy*nx + ix;
+        for( int k=cellStart[cell]; k<cellStart[cell+1]; k++ )
+        {
+          int i = cellNogos[k];
+          if ( stamps[i] != stamp )
+          {
+            stamps[i] = stamp;
+            n = addResult( n, i + offset );
+          }
+        }
+      }
+    }
+    if ( n - first > 1 )
+    {
+      Arrays.sort( result, first, n );
+    }
+    return n;
+  }
+
+  private int addResult( int n, int pos )
+  {
+    if ( n == result.length )
+    {
+      result = Arrays.copyOf( result, 2*n );
+    }
+    result[n] = pos;
+    return n+1;
+  }
+
+  private static double getCosLat( int ilat )
+  {
+    double l = (ilat - 90000000) * 0.00000001234134;
+    double l2 = l*l;
+    double l4 = l2*l2;
+    return 1.- l2 + l4 / 6.;
+  }
+}
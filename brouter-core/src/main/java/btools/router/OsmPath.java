@@ -25,6 +25,8 @@ final class OsmPath implements OsmLinkHolder
   public short selev;
 
   public int airdistance = 0; // distance to endpos
+
+  public int distance; // distance travelled from the start
   
   private OsmNode sourcenode;
   private OsmLink link;
@@ -44,6 +46,8 @@ final class OsmPath implements OsmLinkHolder
 
   public String message;
 
+  private OsmPathElement element;
+
   OsmPath()
   {
   }
@@ -58,16 +62,47 @@ final class OsmPath implements OsmLinkHolder
   OsmPath( OsmNode sourcenode, OsmPath origin, OsmLink link, OsmTrack refTrack, boolean recordTransferNodes, RoutingContext rc )
   {
     this();
-    this.originElement = new OsmPathElement( origin );
+    init( sourcenode, origin, link, refTrack, recordTransferNodes, rc );
+  }
+
+  /**
+   * (Re-)initialize this path as the continuation of origin over link,
+   * so a path that was not added anywhere can be re-used
+   */
+  void init( OsmNode sourcenode, OsmPath origin, OsmLink link, OsmTrack refTrack, boolean recordTransferNodes, RoutingContext rc )
+  {
+    // with transfer-nodes, the origin element gets modified, so it needs a copy
+    this.originElement = recordTransferNodes ? new OsmPathElement( origin ) : origin.getElement();
     this.link = link;
     this.sourcenode = sourcenode;
     this.cost = origin.cost;
+    this.distance = origin.distance;
     this.ehbd = origin.ehbd;
     this.ehbu = origin.ehbu;
     this.lastCostfactor = origin.lastCostfactor;
+    this.selev = 0;
+    this.airdistance = 0;
+    this.nextForLink = null;
+    this.treedepth = 0;
+    this.message = null;
+    this.element = null;
     addAddionalPenalty(refTrack, recordTransferNodes, origin, link, rc );
   }
 
+  /**
+   * Get the path element for this path's position. It is created
+   * when the first continuation is constructed and then shared
+   * by all continuations.
+   */
+  OsmPathElement getElement()
+  {
+    if ( element == null )
+    {
+      element = new OsmPathElement( this );
+    }
+    return element;
+  }
+
   private void addAddionalPenalty(OsmTrack refTrack, boolean recordTransferNodes, OsmPath origin, OsmLink link, RoutingContext rc )
   {
 	if ( link.descriptionBitmap == null ) throw new IllegalArgumentException( "null description for class: " + link.getClass() );
@@ -90,9 +125,22 @@ final class OsmPath implements OsmLinkHolder
     int linknodecost = 0;
     int linkinitcost = 0;
 
-    OsmTransferNode transferNode = link.decodeFirsttransfer();
+    TransferNodeReader transferNodes = rc.transferNodeReader;
+    boolean hasTransferNode = transferNodes.init( link );
     OsmNode targetNode = link.targetNode;
-    String lastMessage = null;
+
+    // the values for the message of the last section, formatted only when stored
+    boolean hasLastMessage = false;
+    int msgLon = 0;
+    int msgLat = 0;
+    short msgEle = 0;
+    int msgLinkdist = 0;
+    int msgCost = 0;
+    int msgElevationcost = 0;
+    int msgTurncost = 0;
+    int msgNodecost = 0;
+    int msgInitcost = 0;
+    byte[] msgDescription = null;
     for(;;)
     {
       originLon = lon1;
@@ -103,7 +151,7 @@ final class OsmPath implements OsmLinkHolder
       short ele2;
       byte[] description;
 
-      if ( transferNode == null )
+      if ( !hasTransferNode )
       {
         lon2 = targetNode.ilon;
         lat2 = targetNode.ilat;
@@ -113,20 +161,20 @@ final class OsmPath implements OsmLinkHolder
       }
       else
       {
-        lon2 = transferNode.ilon;
-        lat2 = transferNode.ilat;
-        ele2 = transferNode.selev;
-        description = transferNode.descriptionBitmap;
-    	if ( description == null ) throw new IllegalArgumentException( "null description for class: " + transferNode.getClass() + "/" + link.getClass() + " counterlinkwritten=" + link.counterLinkWritten );
+        lon2 = transferNodes.ilon;
+        lat2 = transferNodes.ilat;
+        ele2 = transferNodes.selev;
+        description = transferNodes.descriptionBitmap;
       }
 
       rc.messageHandler.setCurrentPos( lon2, lat2 );
       boolean sameData = rc.expctxWay.evaluate( link.counterLinkWritten, description, rc.messageHandler );
       
       // if way description changed, store message
-      if ( lastMessage != null && !sameData )
+      if ( hasLastMessage && !sameData )
       {
-        originElement.message = lastMessage;
+        originElement.message = formatMessage( rc, link.counterLinkWritten, msgLon, msgLat, msgEle, msgLinkdist, msgCost,
+                                               msgElevationcost, msgTurncost, msgNodecost, msgInitcost, msgDescription );
         linkdist = 0;
         linkelevationcost = 0;
         linkturncost = 0;
@@ -149,6 +197,7 @@ final class OsmPath implements OsmLinkHolder
         {
           // we just start here, reset cost
           cost = 0;
+          distance = 0;
           ehbd = 0;
           ehbu = 0;
           if ( recordTransferNodes )
@@ -167,6 +216,7 @@ final class OsmPath implements OsmLinkHolder
 
       linkdist += dist;
       linkdisttotal += dist;
+      distance += dist;
 
 
       // *** penalty for turning angles
@@ -282,17 +332,17 @@ final class OsmPath implements OsmLinkHolder
 
       if ( recordTransferNodes )
       {
-        int iCost = (int)(costfactor*1000 + 0.5f);
-        lastMessage = (lon2-180000000) + "\t"
-                    + (lat2-90000000) + "\t"
-                    + ele2/4 + "\t"
-                    + linkdist + "\t"
-                    + iCost + "\t"
-                    + linkelevationcost
-                    + "\t" + linkturncost
-                    + "\t" + linknodecost
-                    + "\t" + linkinitcost
-                    + rc.expctxWay.getKeyValueDescription( link.counterLinkWritten, description );
+        hasLastMessage = true;
+        msgLon = lon2;
+        msgLat = lat2;
+        msgEle = ele2;
+        msgLinkdist = linkdist;
+        msgCost = (int)(costfactor*1000 + 0.5f);
+        msgElevationcost = linkelevationcost;
+        msgTurncost = linkturncost;
+        msgNodecost = linknodecost;
+        msgInitcost = linkinitcost;
+        msgDescription = description;
       }
 
       if ( stopAtEndpoint )
@@ -301,7 +351,8 @@ final class OsmPath implements OsmLinkHolder
         {
           originElement = new OsmPathElement( rc.ilonshortest, rc.ilatshortest, ele2, originElement );
           originElement.cost = cost;
-          originElement.message = lastMessage;
+          originElement.message = formatMessage( rc, link.counterLinkWritten, msgLon, msgLat, msgEle, msgLinkdist, msgCost,
+                                                 msgElevationcost, msgTurncost, msgNodecost, msgInitcost, msgDescription );
         }
         if ( rc.nogomatch )
         {
@@ -310,7 +361,7 @@ final class OsmPath implements OsmLinkHolder
         return;
       }
 
-      if ( transferNode == null )
+      if ( !hasTransferNode )
       {
         // *** penalty for being part of the reference track
         if ( refTrack != null && refTrack.containsNode( targetNode ) && refTrack.containsNode( origin.link.targetNode ) )
@@ -318,11 +369,15 @@ final class OsmPath implements OsmLinkHolder
           int reftrackcost = linkdisttotal;
           cost += reftrackcost;
         }
-        message = lastMessage;
+        if ( hasLastMessage )
+        {
+          message = formatMessage( rc, link.counterLinkWritten, msgLon, msgLat, msgEle, msgLinkdist, msgCost,
+                                   msgElevationcost, msgTurncost, msgNodecost, msgInitcost, msgDescription );
+        }
         selev = ele2;
         break;
       }
-      transferNode = transferNode.next;
+      hasTransferNode = transferNodes.next();
 
       if ( recordTransferNodes )
       {
@@ -361,6 +416,21 @@ final class OsmPath implements OsmLinkHolder
     }
   }
 
+  private static String formatMessage( RoutingContext rc, boolean inverse, int lon, int lat, short ele, int linkdist, int iCost,
+                                      int linkelevationcost, int linkturncost, int linknodecost, int linkinitcost, byte[] description )
+  {
+    return (lon-180000000) + "\t"
+         + (lat-90000000) + "\t"
+         + ele/4 + "\t"
+         + linkdist + "\t"
+         + iCost + "\t"
+         + linkelevationcost
+         + "\t" + linkturncost
+         + "\t" + linknodecost
+         + "\t" + linkinitcost
+         + rc.expctxWay.getKeyValueDescription( inverse, description );
+  }
+
   public int elevationCorrection( RoutingContext rc )
   {
     return ( rc.downhillcostdiv > 0 ? ehbd/rc.downhillcostdiv : 0 )
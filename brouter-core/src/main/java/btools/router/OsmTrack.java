@@ -206,10 +206,28 @@ public final class OsmTrack
   }
 
   public String formatAsGpx()
+  {
+    return formatAsGpx( asList() );
+  }
+
+  private List<OsmTrack> asList()
+  {
+    List<OsmTrack> tracks = new ArrayList<OsmTrack>( 1 );
+    tracks.add( this );
+    return tracks;
+  }
+
+  /**
+   * Format several tracks (e.g. alternatives) as a single gpx
+   * with one trk-element per track. The messages are taken
+   * from the last track.
+   */
+  public static String formatAsGpx( List<OsmTrack> tracks )
   {
     StringBuilder sb = new StringBuilder(8192);
 
     sb.append( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+    List<String> messageList = tracks.get( tracks.size()-1 ).messageList;
     for( int i=messageList.size()-1; i >= 0; i-- )
     {
       String message = messageList.get(i);
@@ -221,18 +239,21 @@ public final class OsmTrack
     sb.append( " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" \n" );
     sb.append( " xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1 http://www.topografix.com/GPX/1/1/gpx.xsd\" \n" );
     sb.append( " creator=\"BRouter-1.1\" version=\"1.1\">\n" );
-    sb.append( " <trk>\n" );
-    sb.append("  <name>").append(name).append("</name>\n");
-    sb.append( "  <trkseg>\n" );
-
-    for( OsmPathElement n : nodes )
+    for( OsmTrack t : tracks )
     {
-      String sele = n.getSElev() == Short.MIN_VALUE ? "" : "<ele>" + n.getElev() + "</ele>";
-      sb.append("   <trkpt lon=\"").append(formatPos(n.getILon() - 180000000)).append("\" lat=\"").append(formatPos(n.getILat() - 90000000)).append("\">").append(sele).append("</trkpt>\n");
-    }
+      sb.append( " <trk>\n" );
+      sb.append("  <name>").append(t.name).append("</name>\n");
+      sb.append( "  <trkseg>\n" );
 
-    sb.append( "  </trkseg>\n" );
-    sb.append( " </trk>\n" );
+      for( OsmPathElement n : t.nodes )
+      {
+        String sele = n.getSElev() == Short.MIN_VALUE ? "" : "<ele>" + n.getElev() + "</ele>";
+        sb.append("   <trkpt lon=\"").append(formatPos(n.getILon() - 180000000)).append("\" lat=\"").append(formatPos(n.getILat() - 90000000)).append("\">").append(sele).append("</trkpt>\n");
+      }
+
+      sb.append( "  </trkseg>\n" );
+      sb.append( " </trk>\n" );
+    }
     sb.append( "</gpx>\n" );
 
     return sb.toString();
@@ -247,6 +268,15 @@ public final class OsmTrack
   }
 
   public String formatAsKml()
+  {
+    return formatAsKml( asList() );
+  }
+
+  /**
+   * Format several tracks (e.g. alternatives) as a single kml
+   * with one placemark per track
+   */
+  public static String formatAsKml( List<OsmTrack> tracks )
   {
     StringBuilder sb = new StringBuilder(8192);
 
@@ -263,23 +293,26 @@ public final class OsmTrack
     sb.append( "      <name>Paths</name>\n" );
     sb.append( "      <visibility>0</visibility>\n" );
     sb.append( "      <description>Examples of paths.</description>\n" );
-    sb.append( "      <Placemark>\n" );
-    sb.append( "        <name>Tessellated</name>\n" );
-    sb.append( "        <visibility>0</visibility>\n" );
-    sb.append( "        <description><![CDATA[If the <tessellate> tag has a value of 1, the line will contour to the underlying terrain]]></description>\n" );
-    sb.append( "        <LineString>\n" );
-    sb.append( "          <tessellate>1</tessellate>\n" );
-    sb.append( "         <coordinates> " );
+    for( OsmTrack t : tracks )
+    {
+      sb.append( "      <Placemark>\n" );
+      sb.append( "        <name>Tessellated</name>\n" );
+      sb.append( "        <visibility>0</visibility>\n" );
+      sb.append( "        <description><![CDATA[If the <tessellate> tag has a value of 1, the line will contour to the underlying terrain]]></description>\n" );
+      sb.append( "        <LineString>\n" );
+      sb.append( "          <tessellate>1</tessellate>\n" );
+      sb.append( "         <coordinates> " );
 
 
-    for( OsmPathElement n : nodes )
-    {
-      sb.append(formatPos(n.getILon() - 180000000)).append(",").append(formatPos(n.getILat() - 90000000)).append("\n");
-    }
+      for( OsmPathElement n : t.nodes )
+      {
+        sb.append(formatPos(n.getILon() - 180000000)).append(",").append(formatPos(n.getILat() - 90000000)).append("\n");
+      }
 
-    sb.append( "          </coordinates>\n" );
-    sb.append( "        </LineString>\n" );
-    sb.append( "      </Placemark>\n" );
+      sb.append( "          </coordinates>\n" );
+      sb.append( "        </LineString>\n" );
+      sb.append( "      </Placemark>\n" );
+    }
     sb.append( "    </Folder>\n" );
     sb.append( "  </Document>\n" );
     sb.append( "</kml>\n" );
@@ -290,54 +323,67 @@ public final class OsmTrack
   public List<String> iternity;
   
   public String formatAsGeoJson()
+  {
+    return formatAsGeoJson( asList() );
+  }
+
+  /**
+   * Format several tracks (e.g. alternatives) as a single geojson
+   * feature-collection with one feature per track
+   */
+  public static String formatAsGeoJson( List<OsmTrack> tracks )
   {
     StringBuilder sb = new StringBuilder(8192);
 
     sb.append( "{\n" );
     sb.append( "  \"type\": \"FeatureCollection\",\n" );
     sb.append( "  \"features\": [\n" );
-    sb.append( "    {\n" );
-    sb.append( "      \"type\": \"Feature\",\n" );
-    sb.append( "      \"properties\": {\n" );
-    sb.append( "        \"creator\": \"BRouter-1.1\",\n" );
-    sb.append( "        \"name\": \"" ).append( name ).append( "\",\n" );
-    sb.append( "        \"track-length\": \"" ).append( distance ).append( "\",\n" );
-    sb.append( "        \"filtered ascend\": \"" ).append( ascend ).append( "\",\n" );
-    sb.append( "        \"plain-ascend\": \"" ).append( plainAscend ).append( "\",\n" );
-    sb.append( "        \"cost\": \"" ).append( cost ).append( "\"\n" );
-    sb.append( "      },\n" );
-    
-    if ( iternity != null )
+    for( int k=0; k<tracks.size(); k++ )
     {
-      sb.append( "      \"iternity\": [\n" );
-      for( String s : iternity )
+      OsmTrack t = tracks.get( k );
+      sb.append( "    {\n" );
+      sb.append( "      \"type\": \"Feature\",\n" );
+      sb.append( "      \"properties\": {\n" );
+      sb.append( "        \"creator\": \"BRouter-1.1\",\n" );
+      sb.append( "        \"name\": \"" ).append( t.name ).append( "\",\n" );
+      sb.append( "        \"track-length\": \"" ).append( t.distance ).append( "\",\n" );
+      sb.append( "        \"filtered ascend\": \"" ).append( t.ascend ).append( "\",\n" );
+      sb.append( "        \"plain-ascend\": \"" ).append( t.plainAscend ).append( "\",\n" );
+      sb.append( "        \"cost\": \"" ).append( t.cost ).append( "\"\n" );
+      sb.append( "      },\n" );
+    
+      if ( t.iternity != null )
+      {
+        sb.append( "      \"iternity\": [\n" );
+        for( String s : t.iternity )
+        {
+      	  sb.append( "        \"").append( s ).append( "\",\n" );
+        }
+        sb.deleteCharAt( sb.lastIndexOf( "," ) );
+        sb.append( "        ],\n" );
+      }
+      sb.append( "      \"geometry\": {\n" );
+      sb.append( "        \"type\": \"LineString\",\n" );
+      sb.append( "        \"coordinates\": [\n" );
+
+      for( OsmPathElement n : t.nodes )
       {
-    	  sb.append( "        \"").append( s ).append( "\",\n" );
+        String sele = n.getSElev() == Short.MIN_VALUE ? "" : ", " + n.getElev();
+        sb.append( "          [" ).append(formatPos(n.getILon() - 180000000)).append(", ").append(formatPos(n.getILat() - 90000000)).append(sele).append( "],\n" );
       }
       sb.deleteCharAt( sb.lastIndexOf( "," ) );
-      sb.append( "        ],\n" );
-    }
-    sb.append( "      \"geometry\": {\n" );
-    sb.append( "        \"type\": \"LineString\",\n" );
-    sb.append( "        \"coordinates\": [\n" );
 
-    for( OsmPathElement n : nodes )
-    {
-      String sele = n.getSElev() == Short.MIN_VALUE ? "" : ", " + n.getElev();
-      sb.append( "          [" ).append(formatPos(n.getILon() - 180000000)).append(", ").append(formatPos(n.getILat() - 90000000)).append(sele).append( "],\n" );
+      sb.append( "        ]\n" );
+      sb.append( "      }\n" );
+      sb.append( k < tracks.size()-1 ? "    },\n" : "    }\n" );
     }
-    sb.deleteCharAt( sb.lastIndexOf( "," ) );
-
-    sb.append( "        ]\n" );
-    sb.append( "      }\n" );
-    sb.append( "    }\n" );
     sb.append( "  ]\n" );
     sb.append( "}\n" );
 
     return sb.toString();
   }
 
-  private static String formatPos( int p )
+  static String formatPos( int p )
   {
     boolean negative = p < 0;
     if ( negative ) p = -p;
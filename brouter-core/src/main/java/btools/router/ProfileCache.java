@@ -0,0 +1,95 @@
+/**
+ * Server-wide cache for parsed profiles
+ *
+ * Parsing lookups.dat and the profile (global, way and node context)
+ * is done once per profile version. Each routing request gets
+ * contexts with private evaluation state cloned from the cached templates.
+ *
+ * @author ab
+ */
+package btools.router;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import btools.expressions.BExpressionContext;
+import btools.expressions.BExpressionMetaData;
+import btools.mapaccess.LandmarkTable;
+
+final class ProfileCache
+{
+  private static final int MAX_ENTRIES = 16;
+
+  private static LinkedHashMap<String,ProfileCache> entries = new LinkedHashMap<String,ProfileCache>( 16, 0.75f, true );
+
+  private String version;
+  private BExpressionContext expctxGlobal;
+  private BExpressionContext expctxWay;
+  private BExpressionContext expctxNode;
+  private int profileChecksum;
+
+  private static String getVersion( File profileFile, File lookupFile )
+  {
+    return profileFile.lastModified() + ":" + profileFile.length() + ":" + lookupFile.lastModified() + ":" + lookupFile.length();
+  }
+
+  /**
+   * Setup the expression contexts of the given routing context,
+   * parsing the profile only if it's not cached or has changed
+   */
+  static void parseProfile( RoutingContext rc, File profileDir, File profileFile )
+  {
+    File lookupFile = new File( profileDir, "lookups.dat" );
+    String key = profileFile.getAbsolutePath() + "|" + lookupFile.getAbsolutePath();
+    String version = getVersion( profileFile, lookupFile );
+
+    ProfileCache pc;
+    synchronized( entries )
+    {
+      pc = entries.get( key );
+      if ( pc != null && !pc.version.equals( version ) )
+      {
+        pc = null;
+      }
+    }
+
+    if ( pc == null )
+    {
+      pc = new ProfileCache();
+      pc.version = version;
+
+      BExpressionMetaData meta = new BExpressionMetaData();
+
+      pc.expctxGlobal = new BExpressionContext( "global", meta );
+      pc.expctxWay = new BExpressionContext( "way", 1, meta );
+      pc.expctxNode = new BExpressionContext( "node", 1, meta );
+
+      meta.readMetaData( lookupFile );
+
+      pc.expctxGlobal.parseFile( profileFile, null );
+      pc.expctxGlobal.evaluate( new int[0] );
+
+      pc.expctxWay.parseFile( profileFile, "global" );
+      pc.expctxNode.parseFile( profileFile, "global" );
+
+      pc.profileChecksum = LandmarkTable.getProfileChecksum( profileFile );
+
+      synchronized( entries )
+      {
+        entries.put( key, pc );
+        Iterator<ProfileCache> it = entries.values().iterator();
+        while( entries.size() > MAX_ENTRIES && it.hasNext() )
+        {
+          it.next();
+          it.remove();
+        }
+      }
+    }
+
+    rc.readGlobalConfig( pc.expctxGlobal );
+    rc.profileChecksum = pc.profileChecksum;
+    rc.expctxWay = new BExpressionContext( pc.expctxWay, rc.serversizing ? 262144 : 4096 );
+    rc.expctxNode = new BExpressionContext( pc.expctxNode, rc.serversizing ?  16384 : 1024 );
+  }
+}
@@ -0,0 +1,126 @@
+/**
+ * Result of a many-to-many run: cost, distance and
+ * filtered ascend for every pair of source and target
+ *
+ * @author ab
+ */
+package btools.router;
+
+public final class RouteMatrix
+{
+  public static final int UNREACHABLE = -1;
+
+  private int nsources;
+  private int ntargets;
+  private int[] costs;
+  private int[] distances;
+  private int[] ascends;
+
+  RouteMatrix( int nsources, int ntargets )
+  {
+    this.nsources = nsources;
+    this.ntargets = ntargets;
+    int n = nsources*ntargets;
+    costs = new int[n];
+    distances = new int[n];
+    ascends = new int[n];
+    for( int i=0; i<n; i++ )
+    {
+      costs[i] = UNREACHABLE;
+      distances[i] = UNREACHABLE;
+      ascends[i] = UNREACHABLE;
+    }
+  }
+
+  void setTrack( int source, int target, OsmTrack track )
+  {
+    int i = source*ntargets + target;
+    costs[i] = track.cost;
+    distances[i] = track.distance;
+    ascends[i] = track.ascend;
+  }
+
+  public int getSourceCount()
+  {
+    return nsources;
+  }
+
+  public int getTargetCount()
+  {
+    return ntargets;
+  }
+
+  /**
+   * @return the cost from source to target, or UNREACHABLE
+   */
+  public int getCost( int source, int target )
+  {
+    return costs[source*ntargets + target];
+  }
+
+  /**
+   * @return the track-length in meters from source to target, or UNREACHABLE
+   */
+  public int getDistance( int source, int target )
+  {
+    return distances[source*ntargets + target];
+  }
+
+  /**
+   * @return the filtered ascend in meters from source to target, or UNREACHABLE
+   */
+  public int getAscend( int source, int target )
+  {
+    return ascends[source*ntargets + target];
+  }
+
+  public String formatAsJson()
+  {
+    StringBuilder sb = new StringBuilder( 64 + 24*costs.length );
+    sb.append( "{\n" );
+    sb.append( "  \"sources\": " ).append( nsources ).append( ",\n" );
+    sb.append( "  \"targets\": " ).append( ntargets ).append( ",\n" );
+    appendJsonRows( sb, "costs", costs );
+    sb.append( ",\n" );
+    appendJsonRows( sb, "distances", distances );
+    sb.append( ",\n" );
+    appendJsonRows( sb, "ascends", ascends );
+    sb.append( "\n}\n" );
+    return sb.toString();
+  }
+
+  private void appendJsonRows( StringBuilder sb, String name, int[] values )
+  {
+    sb.append( "  \"" ).append( name ).append( "\": [" );
+    for( int s=0; s<nsources; s++ )
+    {
+      sb.append( s == 0 ? "\n    [" : ",\n    [" );
+      for( int t=0; t<ntargets; t++ )
+      {
+        if ( t > 0 ) sb.append( ',' );
+        sb.append( values[s*ntargets + t] );
+      }
+      sb.append( ']' );
+    }
+    sb.append( "\n  ]" );
+  }
+
+  /**
+   * @return one tab-separated line per pair: source, target, cost, distance, ascend
+   */
+  public String formatAsCsv()
+  {
+    StringBuilder sb = new StringBuilder( 64 + 24*costs.length );
+    sb.append( "source\ttarget\tcost\tdistance\tascend\n" );
+    for( int s=0; s<nsources; s++ )
+    {
+      for( int t=0; t<ntargets; t++ )
+      {
+        int i = s*ntargets + t;
+        sb.append( s ).append( '\t' ).append( t ).append( '\t' )
+          .append( costs[i] ).append( '\t' ).append( distances[i] ).append( '\t' ).append( ascends[i] ).append( '\n' );
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -50,6 +50,10 @@ public final class RoutingContext implements DistanceChecker
   public boolean forceSecondaryData;
   public double pass1coefficient;
   public double pass2coefficient;
+  public boolean useLandmarks;
+  public boolean useShortcuts;
+  public int shortcutMinDistance;
+  public int profileChecksum;
   public int elevationpenaltybuffer;
   public int elevationmaxbuffer;
   public int elevationbufferreduce;
@@ -72,6 +76,9 @@ public final class RoutingContext implements DistanceChecker
     forceSecondaryData = 0.f != expctxGlobal.getVariableValue( "forceSecondaryData", 0.f );
     pass1coefficient = expctxGlobal.getVariableValue( "pass1coefficient", 1.5f );
     pass2coefficient = expctxGlobal.getVariableValue( "pass2coefficient", 0.f );
+    useLandmarks = 0.f != expctxGlobal.getVariableValue( "useLandmarks", 1.f );
+    useShortcuts = 0.f != expctxGlobal.getVariableValue( "useShortcuts", 0.f );
+    shortcutMinDistance = (int)expctxGlobal.getVariableValue( "shortcutMinDistance", 50000.f );
     elevationpenaltybuffer = (int)(expctxGlobal.getVariableValue( "elevationpenaltybuffer", 5.f )*1000000);
     elevationmaxbuffer = (int)(expctxGlobal.getVariableValue( "elevationmaxbuffer", 10.f )*1000000);
     elevationbufferreduce = (int)(expctxGlobal.getVariableValue( "elevationbufferreduce", 0.f )*10000);
@@ -83,10 +90,62 @@ public final class RoutingContext implements DistanceChecker
     waittimeadjustment   = expctxGlobal.getVariableValue( "waittimeadjustment", 0.9f );
   }
 
+  /**
+   * Create a copy for a search running concurrently to this one:
+   * same configuration and nogos, but with it's own expression contexts
+   * and calculation state
+   */
+  RoutingContext copyForConcurrentSearch()
+  {
+    RoutingContext rc = new RoutingContext();
+    rc.alternativeIdx = alternativeIdx;
+    rc.localFunction = localFunction;
+    rc.rawTrackPath = rawTrackPath;
+    rc.serversizing = serversizing;
+    rc.expctxWay = new BExpressionContext( expctxWay, serversizing ? 262144 : 4096 );
+    rc.expctxNode = new BExpressionContext( expctxNode, serversizing ?  16384 : 1024 );
+
+    rc.downhillcostdiv = downhillcostdiv;
+    rc.downhillcutoff = downhillcutoff;
+    rc.uphillcostdiv = uphillcostdiv;
+    rc.uphillcutoff = uphillcutoff;
+    rc.carMode = carMode;
+    rc.forceSecondaryData = forceSecondaryData;
+    rc.pass1coefficient = pass1coefficient;
+    rc.pass2coefficient = pass2coefficient;
+    rc.useLandmarks = useLandmarks;
+    rc.useShortcuts = useShortcuts;
+    rc.shortcutMinDistance = shortcutMinDistance;
+    rc.profileChecksum = profileChecksum;
+    rc.elevationpenaltybuffer = elevationpenaltybuffer;
+    rc.elevationmaxbuffer = elevationmaxbuffer;
+    rc.elevationbufferreduce = elevationbufferreduce;
+
+    rc.cost1speed = cost1speed;
+    rc.additionalcostfactor = additionalcostfactor;
+    rc.changetime = changetime;
+    rc.buffertime = buffertime;
+    rc.waittimeadjustment = waittimeadjustment;
+
+    if ( nogopoints != null ) rc.nogopoints = new ArrayList<OsmNodeNamed>( nogopoints );
+    return rc;
+  }
+
   public RoutingMessageHandler messageHandler = new RoutingMessageHandler();
 
+  // re-used for iterating the transfer-nodes of the links
+  TransferNodeReader transferNodeReader = new TransferNodeReader();
+
   public List<OsmNodeNamed> nogopoints = null;
   private List<OsmNodeNamed> keepnogopoints = null;
+  private int waypointCount = 0;
+
+  // below that, the linear check is fast enough
+  private static final int MIN_INDEXED_NOGOS = 8;
+
+  private NogoIndex nogoIndex;
+  private List<OsmNodeNamed> indexedNogos;
+  private int indexedNogoCount;
 
   private double coslat;
   public boolean nogomatch = false;
@@ -134,15 +193,35 @@ public final class RoutingContext implements DistanceChecker
     nogopoints = new ArrayList<OsmNodeNamed>();
     nogopoints.add( wp );
     if ( keepnogopoints != null ) nogopoints.addAll( keepnogopoints );
+    waypointCount = 1;
     isEndpoint = endpoint;
   }
 
   public void unsetWaypoint()
   {
     nogopoints = keepnogopoints;
+    waypointCount = 0;
     isEndpoint = false;
   }
 
+  // the index is built once per nogo list, the waypoint
+  // set in front of the list is not part of the index
+  private NogoIndex getNogoIndex()
+  {
+    List<OsmNodeNamed> nogos = waypointCount > 0 ? keepnogopoints : nogopoints;
+    if ( nogos == null )
+    {
+      return null;
+    }
+    if ( nogos != indexedNogos || nogos.size() != indexedNogoCount )
+    {
+      indexedNogos = nogos;
+      indexedNogoCount = nogos.size();
+      nogoIndex = indexedNogoCount < MIN_INDEXED_NOGOS ? null : NogoIndex.create( nogos );
+    }
+    return nogoIndex;
+  }
+
   public int calcDistance( int lon1, int lat1, int lon2, int lat2 )
   {
     double l = (lat2 - 90000000) * 0.00000001234134;
@@ -159,8 +238,18 @@ public final class RoutingContext implements DistanceChecker
 
     if ( d > 0. && nogopoints != null )
     {
-      for( OsmNodeNamed nogo : nogopoints )
+      // check just the nogos that may intersect the segment
+      int[] positions = null;
+      int npositions = nogopoints.size();
+      NogoIndex index = getNogoIndex();
+      if ( index != null )
+      {
+        npositions = index.query( lon1, lat1, lon2, lat2, waypointCount );
+        positions = index.result;
+      }
+      for( int k=0; k<npositions; k++ )
       {
+        OsmNodeNamed nogo = nogopoints.get( positions == null ? k : positions[k] );
         double x1 = (lon1 - nogo.ilon) * coslat6;
         double y1 = (lat1 - nogo.ilat) * 0.000001;
         double x2 = (lon2 - nogo.ilon) * coslat6;
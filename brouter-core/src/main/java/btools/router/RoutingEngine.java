@@ -6,28 +6,42 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import btools.expressions.BExpressionContext;
-import btools.expressions.BExpressionMetaData;
+import btools.mapaccess.LandmarkTable;
 import btools.mapaccess.NodesCache;
 import btools.mapaccess.OsmLink;
 import btools.mapaccess.OsmLinkHolder;
 import btools.mapaccess.OsmNode;
 import btools.mapaccess.OsmNodesMap;
+import btools.mapaccess.ShortcutGraph;
+import btools.util.CompactLongSet;
+import btools.util.LowestKeyQueue;
+import btools.util.RadixHeap;
 import btools.util.SortedHeap;
 
 public class RoutingEngine extends Thread
 {
   private OsmNodesMap nodesMap;
   private NodesCache nodesCache;
-  private SortedHeap<OsmPath> openSet = new SortedHeap<OsmPath>();
+  private LowestKeyQueue<OsmPath> openSet = Boolean.getBoolean( "useRadixHeap" ) ? new RadixHeap<OsmPath>() : new SortedHeap<OsmPath>();
   private boolean finished = false;
 
   protected List<OsmNodeNamed> waypoints = null;
   private int linksProcessed = 0;
 
   protected OsmTrack foundTrack = new OsmTrack();
+  private ArrayList<OsmTrack> foundTracks = new ArrayList<OsmTrack>();
   private OsmTrack foundRawTrack = null;
   private int alternativeIndex = 0;
 
@@ -47,12 +61,55 @@ public class RoutingEngine extends Thread
   private OsmTrack guideTrack;
 
   private OsmPathElement matchPath;
+
+  // a path that was constructed but not added anywhere, re-used for the next one
+  private OsmPath sparePath;
+
+  // the micro-tile of the last look-ahead prefetch
+  private long lastPrefetchTile = -1L;
+
+  // the cache statistics of a leg, kept when it's cache is closed
+  private String cacheStatistics;
+  private String prefetchStatistics;
+
+  // the landmark table and the table indices of the end nodes, if used for this leg
+  private LandmarkTable landmarks;
+  private int landmarkTarget1;
+  private int landmarkTarget2;
+
+  // graph modifications of a search, undone by resetSearchState
+  // so that the passes of a leg can re-use the decoded graph
+  private ArrayList<OsmLink> linksWithHolders = new ArrayList<OsmLink>();
+  private IdentityHashMap<OsmNode,OsmLink[]> savedLinkLists = new IdentityHashMap<OsmNode,OsmLink[]>();
+  private HashMap<Long,OsmNode> startNodes = new HashMap<Long,OsmNode>();
+
+  // the matched waypoints, and the leg the current graph was built for
+  private MatchedWaypoint[] matchedWaypoints;
+  private MatchedWaypoint graphStartWp;
+  private MatchedWaypoint graphEndWp;
+  private int forwardNodesExpanded = 0;
+  private int shortcutLegs = 0;
+
+  // many-to-many mode: the number of sources at the start of the waypoint list
+  private int matrixSourceCount;
+  private RouteMatrix matrix;
+
+  // isochrone mode: the limits and the receiver of the reached nodes
+  private IsochroneListener isochroneListener;
+  private int isochroneMaxCost;
+  private int isochroneMaxDistance;
   
   private long startTime;
   private long maxRunningTime;
   
   public boolean quite = false;
 
+  // the engines of the legs currently searched concurrently
+  private volatile RoutingEngine[] legEngines;
+
+  // the leg thread pools, one per thread count, shared by all engines and never shut down
+  private static HashMap<Integer,ExecutorService> legExecutors = new HashMap<Integer,ExecutorService>();
+
   public RoutingEngine( String outfileBase, String logfileBase, String segmentDir,
           List<OsmNodeNamed> waypoints, RoutingContext rc )
   {
@@ -77,24 +134,24 @@ public class RoutingEngine extends Thread
         profileDir = new File( profileBaseDir );
         profileFile = new File( profileDir, rc.localFunction + ".brf" ) ;
       }
-      
-      BExpressionMetaData meta = new BExpressionMetaData();
-      
-      BExpressionContext expctxGlobal = new BExpressionContext( "global", meta );
-      rc.expctxWay = new BExpressionContext( "way", rc.serversizing ? 262144 : 4096, meta );
-      rc.expctxNode = new BExpressionContext( "node", rc.serversizing ?  16384 : 1024, meta );
-      
-      meta.readMetaData( new File( profileDir, "lookups.dat" ) );
-
-      expctxGlobal.parseFile( profileFile, null );
-      expctxGlobal.evaluate( new int[0] );
-      rc.readGlobalConfig(expctxGlobal);
 
-      rc.expctxWay.parseFile( profileFile, "global" );
-      rc.expctxNode.parseFile( profileFile, "global" );
+      ProfileCache.parseProfile( rc, profileDir, profileFile );
     }
   }
 
+  // engine for a single leg, running concurrently to the other legs
+  private RoutingEngine( RoutingEngine parent )
+  {
+    this.segmentDir = parent.segmentDir;
+    this.profileDir = parent.profileDir;
+    this.infoLogEnabled = parent.infoLogEnabled;
+    this.infoLogWriter = parent.infoLogWriter;
+    this.routingContext = parent.routingContext.copyForConcurrentSearch();
+    this.startTime = parent.startTime;
+    this.maxRunningTime = parent.maxRunningTime;
+    this.quite = true;
+  }
+
   private void logInfo( String s )
   {
     if ( infoLogEnabled )
@@ -105,8 +162,7 @@ public class RoutingEngine extends Thread
     {
       try
       {
-        infoLogWriter.write( s );
-        infoLogWriter.write( '\n' );
+        infoLogWriter.write( s + "\n" ); // one write, the legs may log concurrently
       }
       catch( IOException io )
       {
@@ -120,6 +176,42 @@ public class RoutingEngine extends Thread
     doRun( 0 );
   }
 
+  /**
+   * Many-to-many mode: calculate the routes from each source to each target,
+   * with one search tree per source, instead of the track of the waypoints
+   *
+   * @param sourceCount the number of sources at the start of the waypoint list, the others are the targets
+   * @see #getMatrix()
+   */
+  public void doMatrixRun( int sourceCount, long maxRunningTime )
+  {
+    if ( sourceCount < 1 || sourceCount >= waypoints.size() )
+    {
+      throw new IllegalArgumentException( "need at least one source and one target" );
+    }
+    matrixSourceCount = sourceCount;
+    doRun( maxRunningTime );
+  }
+
+  /**
+   * Isochrone mode: expand from the first waypoint without a target and
+   * report every node that can be reached within the limits
+   *
+   * @param maxCost the cost limit, 0 for none
+   * @param maxDistance the limit for the distance travelled (in meters), 0 for none
+   */
+  public void doIsochroneRun( int maxCost, int maxDistance, IsochroneListener listener, long maxRunningTime )
+  {
+    if ( maxCost <= 0 && maxDistance <= 0 )
+    {
+      throw new IllegalArgumentException( "need a cost- or a distance-limit" );
+    }
+    isochroneMaxCost = maxCost > 0 ? maxCost : Integer.MAX_VALUE;
+    isochroneMaxDistance = maxDistance > 0 ? maxDistance : Integer.MAX_VALUE;
+    isochroneListener = listener;
+    doRun( maxRunningTime );
+  }
+
   public void doRun( long maxRunningTime )
   {
     try
@@ -133,6 +225,20 @@ public class RoutingEngine extends Thread
         	
       startTime = System.currentTimeMillis();
       this.maxRunningTime = maxRunningTime;
+      if ( matrixSourceCount > 0 )
+      {
+        matrix = calcMatrix();
+        logInfo( "execution time = " + (System.currentTimeMillis()-startTime)/1000. + " seconds" );
+        return;
+      }
+      if ( isochroneListener != null )
+      {
+        MatchedWaypoint startWp = matchNodeForPosition( waypoints.get( 0 ) );
+        resetCache();
+        findTracks( startWp, new MatchedWaypoint[0] );
+        logInfo( "execution time = " + (System.currentTimeMillis()-startTime)/1000. + " seconds" );
+        return;
+      }
       OsmTrack sum = null;
       OsmTrack track = null;
       ArrayList<String> messageList = new ArrayList<String>();
@@ -145,6 +251,7 @@ public class RoutingEngine extends Thread
 
         messageList.add( track.message );
         track.messageList = messageList;
+        foundTracks.add( track );
         if ( outfileBase != null )
         {
           String filename = outfileBase + i + ".gpx";
@@ -193,6 +300,9 @@ public class RoutingEngine extends Thread
       }
       long endTime = System.currentTimeMillis();
       logInfo( "execution time = " + (endTime-startTime)/1000. + " seconds" );
+      logInfo( "nodes expanded = " + forwardNodesExpanded );
+      logInfo( routingContext.expctxWay.getCacheStatistics() );
+      logInfo( routingContext.expctxNode.getCacheStatistics() );
     }
     catch( IllegalArgumentException e)
     {
@@ -216,6 +326,8 @@ public class RoutingEngine extends Thread
     {
       if ( nodesCache != null )
       {
+        logInfo( nodesCache.getCacheStatistics() );
+        logInfo( nodesCache.getPrefetchStatistics() );
         nodesCache.close();
         nodesCache = null;
       }
@@ -256,15 +368,29 @@ public class RoutingEngine extends Thread
       }
     }
     
-    // match waypoints to nodes
+    // match waypoints to nodes (once per run, the alternatives re-use the matches)
+    if ( matchedWaypoints == null )
+    {
+      matchedWaypoints = new MatchedWaypoint[waypoints.size()];
+    }
     for( int i=0; i<waypoints.size(); i++ )
     {
       if ( wayointIds[i] == null )
       {
-        wayointIds[i] = matchNodeForPosition( waypoints.get(i) );
+        if ( matchedWaypoints[i] == null )
+        {
+          matchedWaypoints[i] = matchNodeForPosition( waypoints.get(i) );
+        }
+        wayointIds[i] = matchedWaypoints[i];
       }
     }
 
+    int legThreads = Integer.getInteger( "legThreads", 0 ).intValue();
+    if ( legThreads > 1 && waypoints.size() > 2 )
+    {
+      return searchLegsConcurrently( wayointIds, nearbyTrack, refTrack, legThreads );
+    }
+
     for( int i=0; i<waypoints.size() -1; i++ )
     {
       OsmTrack seg = searchTrack( wayointIds[i], wayointIds[i+1], i == waypoints.size()-2 ? nearbyTrack : null, refTrack );
@@ -274,17 +400,225 @@ public class RoutingEngine extends Thread
     return totaltrack;
   }
 
+  private static synchronized ExecutorService getLegExecutor( int nthreads )
+  {
+    Integer key = Integer.valueOf( nthreads );
+    ExecutorService legExecutor = legExecutors.get( key );
+    if ( legExecutor == null )
+    {
+      legExecutor = Executors.newFixedThreadPool( nthreads, new ThreadFactory()
+      {
+        public Thread newThread( Runnable r )
+        {
+          Thread t = new Thread( r, "brouter-leg" );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+      legExecutors.put( key, legExecutor );
+    }
+    return legExecutor;
+  }
+
+  /**
+   * Search the legs between the matched waypoints concurrently,
+   * each on a separate engine with it's own nodes-cache and
+   * routing context, and stitch them in order. The result is
+   * the same as for the sequential search.
+   */
+  private OsmTrack searchLegsConcurrently( final MatchedWaypoint[] wps, final OsmTrack nearbyTrack, final OsmTrack refTrack, int nthreads )
+  {
+    final int nlegs = wps.length - 1;
+    RoutingEngine[] legs = new RoutingEngine[nlegs];
+    for( int i=0; i<nlegs; i++ )
+    {
+      legs[i] = new RoutingEngine( this );
+    }
+    legEngines = legs;
+    try
+    {
+      if ( terminated ) return null;
+
+      // nearbyTrack is used by the last leg only, refTrack is read-only
+      ExecutorService executor = getLegExecutor( nthreads );
+      List<Future<OsmTrack>> results = new ArrayList<Future<OsmTrack>>();
+      for( int i=0; i<nlegs; i++ )
+      {
+        final int legIdx = i;
+        final RoutingEngine leg = legs[i];
+        results.add( executor.submit( new Callable<OsmTrack>()
+        {
+          public OsmTrack call()
+          {
+            try
+            {
+              return leg.searchTrack( wps[legIdx], wps[legIdx+1], legIdx == nlegs-1 ? nearbyTrack : null, refTrack );
+            }
+            finally
+            {
+              if ( leg.nodesCache != null )
+              {
+                leg.cacheStatistics = leg.nodesCache.getCacheStatistics();
+                leg.prefetchStatistics = leg.nodesCache.getPrefetchStatistics();
+                leg.nodesCache.close();
+                leg.nodesCache = null;
+              }
+            }
+          }
+        } ) );
+      }
+
+      OsmTrack totaltrack = new OsmTrack();
+      for( int i=0; i<nlegs; i++ )
+      {
+        OsmTrack seg = getLegResult( results.get( i ) );
+        RoutingEngine leg = legs[i];
+        linksProcessed += leg.linksProcessed;
+        forwardNodesExpanded += leg.forwardNodesExpanded;
+        shortcutLegs += leg.shortcutLegs;
+        if ( leg.cacheStatistics != null ) logInfo( "leg " + i + " " + leg.cacheStatistics );
+        if ( leg.prefetchStatistics != null ) logInfo( "leg " + i + " " + leg.prefetchStatistics );
+        if ( leg.foundRawTrack != null ) foundRawTrack = leg.foundRawTrack;
+        if ( seg == null ) return null;
+        totaltrack.appendTrack( seg );
+      }
+      return totaltrack;
+    }
+    finally
+    {
+      legEngines = null;
+      for( RoutingEngine leg : legs )
+      {
+        leg.terminate(); // stop the remaining legs in case of an error
+      }
+    }
+  }
+
+  private OsmTrack getLegResult( Future<OsmTrack> result )
+  {
+    try
+    {
+      return result.get();
+    }
+    catch( ExecutionException e )
+    {
+      Throwable cause = e.getCause();
+      if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+      if ( cause instanceof Error ) throw (Error)cause;
+      throw new RuntimeException( cause );
+    }
+    catch( InterruptedException e )
+    {
+      throw new RuntimeException( e );
+    }
+  }
+
+  private RouteMatrix calcMatrix()
+  {
+    int nsources = matrixSourceCount;
+    int ntargets = waypoints.size() - nsources;
+
+    // every position is matched just once
+    MatchedWaypoint[] sources = new MatchedWaypoint[nsources];
+    MatchedWaypoint[] targets = new MatchedWaypoint[ntargets];
+    for( int i=0; i<waypoints.size(); i++ )
+    {
+      MatchedWaypoint mwp = matchNodeForPosition( waypoints.get( i ) );
+      if ( i < nsources ) sources[i] = mwp;
+      else targets[i-nsources] = mwp;
+    }
+
+    RouteMatrix m = new RouteMatrix( nsources, ntargets );
+    for( int s=0; s<nsources && !terminated; s++ )
+    {
+      resetCache();
+      OsmTrack[] rawTracks = findTracks( sources[s], targets );
+      for( int t=0; t<ntargets && !terminated; t++ )
+      {
+        if ( rawTracks[t] != null )
+        {
+          m.setTrack( s, t, reTrack( sources[s], targets[t], rawTracks[t], null ) );
+        }
+      }
+
+      // targets on the start segment need the special case of the single search
+      for( int t=0; t<ntargets && !terminated; t++ )
+      {
+        if ( isSameSegment( sources[s], targets[t] ) )
+        {
+          try
+          {
+            m.setTrack( s, t, searchTrack( sources[s], targets[t], null, null ) );
+          }
+          catch( IllegalArgumentException e )
+          {
+            logInfo( "no track from source " + s + " to target " + t + ": " + e.getMessage() );
+          }
+        }
+      }
+    }
+    return m;
+  }
+
+  private static boolean isSameSegment( MatchedWaypoint wp1, MatchedWaypoint wp2 )
+  {
+    long id11 = wp1.node1.getIdFromPos();
+    long id12 = wp1.node2.getIdFromPos();
+    long id21 = wp2.node1.getIdFromPos();
+    long id22 = wp2.node2.getIdFromPos();
+    return ( id11 == id21 && id12 == id22 ) || ( id11 == id22 && id12 == id21 );
+  }
+
+  /**
+   * Match a position to the nearest routable way-section
+   *
+   * @return the crosspoint on that way-section and the section's end nodes
+   */
+  public OsmNode[] matchPosition( OsmNodeNamed wp )
+  {
+    MatchedWaypoint mwp = matchNodeForPosition( wp );
+    return new OsmNode[]{ mwp.crosspoint, mwp.node1, mwp.node2 };
+  }
+
   // geometric position matching finding the nearest routable way-section
   private MatchedWaypoint matchNodeForPosition( OsmNodeNamed wp )
   {
      try
      {
          routingContext.setWaypoint( wp, false );
-         
-         int minRingWith = 1;
-         for(;;)
+         wp.radius = 1e9;
+         resetCache();
+
+         MatchedWaypoint mwp = new MatchedWaypoint();
+         mwp.waypoint = wp;
+
+         // sections beyond the largest accepted mismatch are not candidates
+         MatchCandidates candidates = new MatchCandidates( nodesCache, wp.ilon, wp.ilat, 260. / 111894.7368 );
+         CompactLongSet evaluated = new CompactLongSet();
+         int nodeCount = 0;
+         int ring = 0;
+         for( int minRingWith = 1; minRingWith <= 5; minRingWith++ )
          {
-           MatchedWaypoint mwp = _matchNodeForPosition( wp, minRingWith );
+           // cover at least the rings and nodes the former preloading did
+           while( ring <= minRingWith || ( nodeCount < 2000 && ring <= 5 ) )
+           {
+             nodeCount += candidates.scanRing( ring++ );
+           }
+
+           // evaluate the nearest candidates, with some tolerance
+           // for the different direction of the distance calculation
+           int n = candidates.size();
+           for( int i=0; i<n; i++ )
+           {
+             if ( mwp.node1 != null && candidates.getDistance( i ) > mwp.radius + 1e-7 ) break;
+             long id = candidates.getNodeId( i );
+             if ( !evaluated.contains( id ) )
+             {
+               evaluated.add( id );
+               evaluateMatchCandidate( mwp, id );
+             }
+           }
+
            if ( mwp.node1 != null )
            {
              int mismatch = wp.calcDistance( mwp.crosspoint );
@@ -293,11 +627,8 @@ public class RoutingEngine extends Thread
                return mwp;
              }
            }
-           if ( minRingWith++ == 5 )
-           {
-             throw new IllegalArgumentException( wp.name + "-position not mapped" );
-           }
          }
+         throw new IllegalArgumentException( wp.name + "-position not mapped" );
      }
      finally
      {
@@ -305,58 +636,52 @@ public class RoutingEngine extends Thread
      }
   }
 
-  private MatchedWaypoint _matchNodeForPosition( OsmNodeNamed wp, int minRingWidth )
+  private void evaluateMatchCandidate( MatchedWaypoint mwp, long id )
   {
-    wp.radius = 1e9;
-    resetCache();
-    preloadPosition( wp, minRingWidth, 2000 );
-    nodesCache.distanceChecker = routingContext;
-    List<OsmNode> nodeList = nodesCache.getAllNodes();
-
-    MatchedWaypoint mwp = new MatchedWaypoint();
-    mwp.waypoint = wp;
-
-    // first loop just to expand reverse links
-    for( OsmNode n : nodeList )
+    OsmNodeNamed wp = mwp.waypoint;
+    OsmNode n = nodesMap.get( id );
+    if ( n == null )
     {
-        if ( !nodesCache.obtainNonHollowNode( n ) )
-        {
-          continue;
-        }
-        expandHollowLinkTargets( n, false );
-        OsmLink startLink = new OsmLink();
-        startLink.targetNode = n;
-        OsmPath startPath = new OsmPath( startLink );
-        startLink.addLinkHolder( startPath );
-        for( OsmLink link = n.firstlink; link != null; link = link.next )
-        {
-          if ( link.descriptionBitmap == null ) continue; // reverse link not found
-          OsmNode nextNode = link.targetNode;
-          if ( nextNode.isHollow() ) continue; // border node?
-          if ( nextNode.firstlink == null ) continue; // don't care about dead ends
-          if ( nextNode == n ) continue; // ?
-          double oldRadius = wp.radius;
-          OsmPath testPath = new OsmPath( n, startPath, link, null, false, routingContext );
-          if ( wp.radius < oldRadius )
-          {
-           if ( testPath.cost < 0 )
-           {
-             wp.radius = oldRadius; // no valid way
-           }
-           else
-           {
-             mwp.node1 = n;
-             mwp.node2 = nextNode;
-             mwp.radius = wp.radius;
-             mwp.cost = testPath.cost;
-             mwp.crosspoint = new OsmNodeNamed();
-             mwp.crosspoint.ilon = routingContext.ilonshortest;
-             mwp.crosspoint.ilat = routingContext.ilatshortest;
-           }
-          }
-        }
+      n = new OsmNode( id );
+      n.setHollow();
+      nodesMap.put( id, n );
+    }
+    if ( !nodesCache.obtainNonHollowNode( n ) )
+    {
+      return;
+    }
+    expandHollowLinkTargets( n, false );
+    OsmLink startLink = new OsmLink();
+    startLink.targetNode = n;
+    OsmPath startPath = new OsmPath( startLink );
+    startLink.addLinkHolder( startPath );
+    for( OsmLink link = n.firstlink; link != null; link = link.next )
+    {
+      if ( link.descriptionBitmap == null ) continue; // reverse link not found
+      OsmNode nextNode = link.targetNode;
+      if ( nextNode.isHollow() ) continue; // border node?
+      if ( nextNode.firstlink == null ) continue; // don't care about dead ends
+      if ( nextNode == n ) continue; // ?
+      double oldRadius = wp.radius;
+      OsmPath testPath = new OsmPath( n, startPath, link, null, false, routingContext );
+      if ( wp.radius < oldRadius )
+      {
+       if ( testPath.cost < 0 )
+       {
+         wp.radius = oldRadius; // no valid way
+       }
+       else
+       {
+         mwp.node1 = n;
+         mwp.node2 = nextNode;
+         mwp.radius = wp.radius;
+         mwp.cost = testPath.cost;
+         mwp.crosspoint = new OsmNodeNamed();
+         mwp.crosspoint.ilon = routingContext.ilonshortest;
+         mwp.crosspoint.ilat = routingContext.ilatshortest;
+       }
+      }
     }
-    return mwp;
   }
 
   // expand hollow link targets and resolve reverse links
@@ -387,10 +712,163 @@ public class RoutingEngine extends Thread
   }
 
   private OsmTrack searchTrack( MatchedWaypoint startWp, MatchedWaypoint endWp, OsmTrack nearbyTrack, OsmTrack refTrack )
+  {
+    // the passes of this leg share the graph, and so do
+    // the alternatives if there is just one leg
+    if ( startWp != graphStartWp || endWp != graphEndWp )
+    {
+      resetCache();
+      graphStartWp = startWp;
+      graphEndWp = endWp;
+    }
+    try
+    {
+      setupLandmarks( endWp );
+      return _searchTrack( startWp, endWp, nearbyTrack, refTrack );
+    }
+    finally
+    {
+      landmarks = null;
+    }
+  }
+
+  /**
+   * Long-distance mode: find the path on the shortcut graph and use the
+   * unpacked path as the guide for the detailed routing
+   *
+   * @return the track, or null if not applicable or not found
+   */
+  private OsmTrack searchShortcutTrack( MatchedWaypoint startWp, MatchedWaypoint endWp )
+  {
+    if ( startWp.crosspoint.calcDistance( endWp.crosspoint ) < routingContext.shortcutMinDistance )
+    {
+      return null;
+    }
+    ShortcutGraph sg = ShortcutGraph.getCached( ShortcutGraph.getFile( segmentDir, routingContext.getProfileName() ) );
+    if ( sg == null )
+    {
+      return null;
+    }
+    if ( sg.getProfileChecksum() != routingContext.profileChecksum )
+    {
+      logInfo( "shortcut graph does not match the profile, not using it" );
+      return null;
+    }
+    if ( !sg.getSegmentStamps().matches( nodesCache ) )
+    {
+      logInfo( "shortcut graph does not match the data files, not using it" );
+      return null;
+    }
+    long s1 = startWp.node1.getIdFromPos();
+    long s2 = startWp.node2.getIdFromPos();
+    long e1 = endWp.node1.getIdFromPos();
+    long e2 = endWp.node2.getIdFromPos();
+    long[] ids = sg.findPath( new long[]{ s1, s2 }, new long[]{ e1, e2 } );
+    if ( ids == null )
+    {
+      logInfo( "no path found in shortcut graph" );
+      return null;
+    }
+
+    // the guide has to start and end with the segments of the waypoints
+    int n = ids.length;
+    OsmTrack guide = new OsmTrack();
+    if ( n < 2 || !( ids[0] == s1 && ids[1] == s2 || ids[0] == s2 && ids[1] == s1 ) )
+    {
+      addGuideNode( guide, ids[0] == s1 ? s2 : s1 );
+    }
+    for( long id : ids )
+    {
+      addGuideNode( guide, id );
+    }
+    if ( n < 2 || !( ids[n-2] == e1 && ids[n-1] == e2 || ids[n-2] == e2 && ids[n-1] == e1 ) )
+    {
+      addGuideNode( guide, ids[n-1] == e1 ? e2 : e1 );
+    }
+    logInfo( "shortcut path with " + guide.nodes.size() + " nodes" );
+
+    airDistanceCostFactor = 0.;
+    guideTrack = guide;
+    try
+    {
+      OsmTrack tt = findTrack( "shortcut-tracking", startWp, endWp, null, null, false );
+      if ( tt == null )
+      {
+        logInfo( "shortcut path not routable, using normal search" );
+      }
+      return tt;
+    }
+    finally
+    {
+      guideTrack = null;
+    }
+  }
+
+  private static void addGuideNode( OsmTrack guide, long id )
+  {
+    guide.nodes.add( new OsmPathElement( (int)(id >> 32), (int)(id & 0xffffffffL), Short.MIN_VALUE, null ) );
+  }
+
+  private void setupLandmarks( MatchedWaypoint endWp )
+  {
+    landmarks = null;
+    if ( !routingContext.useLandmarks )
+    {
+      return;
+    }
+    LandmarkTable lt = LandmarkTable.getCached( LandmarkTable.getFile( segmentDir, routingContext.getProfileName() ) );
+    if ( lt == null )
+    {
+      return;
+    }
+    if ( lt.getProfileChecksum() != routingContext.profileChecksum )
+    {
+      logInfo( "landmark table does not match the profile, not using it" );
+      return;
+    }
+    if ( !lt.getSegmentStamps().matches( nodesCache ) )
+    {
+      logInfo( "landmark table does not match the data files, not using it" );
+      return;
+    }
+    landmarkTarget1 = lt.indexOf( endWp.node1.getIdFromPos() );
+    landmarkTarget2 = lt.indexOf( endWp.node2.getIdFromPos() );
+    if ( landmarkTarget1 >= 0 && landmarkTarget2 >= 0 )
+    {
+      logInfo( "using landmark table with " + lt.getLandmarkCount() + " landmarks" );
+      landmarks = lt;
+    }
+  }
+
+  // the lower bound from the landmark table for the cost to the end nodes
+  private int getLandmarkBound( OsmNode n, int airdistance )
+  {
+    int idx = landmarks.indexOf( n.getIdFromPos() );
+    if ( idx < 0 )
+    {
+      return airdistance;
+    }
+    int b1 = landmarks.getLowerBound( idx, landmarkTarget1 );
+    int b2 = landmarks.getLowerBound( idx, landmarkTarget2 );
+    int bound = b1 < b2 ? b1 : b2;
+    return bound > airdistance ? bound : airdistance;
+  }
+
+  private OsmTrack _searchTrack( MatchedWaypoint startWp, MatchedWaypoint endWp, OsmTrack nearbyTrack, OsmTrack refTrack )
   {
     OsmTrack track = null;
     double[] airDistanceCostFactors = new double[]{ routingContext.pass1coefficient, routingContext.pass2coefficient };
     boolean isDirty = false;
+
+    if ( nearbyTrack == null && refTrack == null && routingContext.useShortcuts )
+    {
+      track = searchShortcutTrack( startWp, endWp );
+      if ( track != null )
+      {
+        shortcutLegs++;
+        return track;
+      }
+    }
     
     if ( nearbyTrack != null )
     {
@@ -451,7 +929,12 @@ public class RoutingEngine extends Thread
       foundRawTrack = track;
     }
 
-    // final run for verbose log info and detail nodes
+    return reTrack( startWp, endWp, track, refTrack );
+  }
+
+  // final run for verbose log info and detail nodes
+  private OsmTrack reTrack( MatchedWaypoint startWp, MatchedWaypoint endWp, OsmTrack track, OsmTrack refTrack )
+  {
     airDistanceCostFactor = 0.;
     guideTrack = track;
     try
@@ -469,26 +952,91 @@ public class RoutingEngine extends Thread
 
   private void resetCache()
   {
+    graphStartWp = null;
+    graphEndWp = null;
+    linksWithHolders.clear();
+    savedLinkLists.clear();
+    startNodes.clear();
     nodesMap = new OsmNodesMap();
     BExpressionContext ctx = routingContext.expctxWay;
     nodesCache = new NodesCache(segmentDir, nodesMap, ctx.meta.lookupVersion, ctx.meta.lookupMinorVersion, ctx.meta.readVarLength, routingContext.carMode, routingContext.forceSecondaryData, nodesCache );
   }
 
+  /**
+   * Undo the modifications of the last search (path-holders
+   * and unlinked links), keeping the decoded nodes and links
+   */
+  private void resetSearchState()
+  {
+    for( OsmLink link : linksWithHolders )
+    {
+      link.firstlinkholder = null;
+    }
+    linksWithHolders.clear();
+
+    for( Map.Entry<OsmNode,OsmLink[]> e : savedLinkLists.entrySet() )
+    {
+      OsmLink[] links = e.getValue();
+      OsmLink next = null;
+      for( int i = links.length-1; i >= 0; i-- )
+      {
+        links[i].next = next;
+        next = links[i];
+      }
+      e.getKey().firstlink = next;
+    }
+    savedLinkLists.clear();
+  }
+
+  private void addLinkHolder( OsmLink link, OsmPath path )
+  {
+    if ( link.firstlinkholder == null )
+    {
+      linksWithHolders.add( link );
+    }
+    link.addLinkHolder( path );
+  }
+
+  private void unlinkLink( OsmNode n, OsmLink link )
+  {
+    if ( !savedLinkLists.containsKey( n ) )
+    {
+      OsmLink[] links = new OsmLink[n.linkCnt()];
+      int i = 0;
+      for( OsmLink l = n.firstlink; l != null; l = l.next )
+      {
+        links[i++] = l;
+      }
+      savedLinkLists.put( n, links );
+    }
+    n.unlinkLink( link );
+  }
+
   private OsmNode getStartNode( long startId )
   {
-    // initialize the start-node
-    OsmNode start = nodesMap.get( startId );
+    // initialize the start-node, start-nodes are kept
+    // cause they can be removed from the nodesMap when completed
+    Long key = Long.valueOf( startId );
+    OsmNode start = startNodes.get( key );
     if ( start == null )
     {
-      start = new OsmNode( startId );
-      start.setHollow();
-      nodesMap.put( startId, start );
+      start = nodesMap.get( startId );
+      if ( start == null )
+      {
+        start = new OsmNode( startId );
+        start.setHollow();
+        nodesMap.put( startId, start );
+      }
+      if ( !nodesCache.obtainNonHollowNode( start ) )
+      {
+        return null;
+      }
+      startNodes.put( key, start );
     }
-    if ( !nodesCache.obtainNonHollowNode( start ) )
+    if ( !start.wasProcessed )
     {
-      return null;
+      expandHollowLinkTargets( start, true );
     }
-    expandHollowLinkTargets( start, true );
     return start;
   }
 
@@ -569,7 +1117,7 @@ public class RoutingEngine extends Thread
       }
       if ( bestLink != null )
       {
-        bestLink.addLinkHolder( bestPath );
+        addLinkHolder( bestLink, bestPath );
       }
       bestPath.treedepth = 1;
 
@@ -601,6 +1149,41 @@ public class RoutingEngine extends Thread
     }
   }
 
+  /**
+   * Start reading the micro-tiles on the air line from start
+   * to end, as far as the search will get there soon
+   */
+  private void prefetchCorridor( OsmNode from, OsmNode to )
+  {
+    int dlon = to.ilon - from.ilon;
+    int dlat = to.ilat - from.ilat;
+    int steps = Math.max( Math.abs( dlon ), Math.abs( dlat ) ) / 12500;
+    int n = Math.min( steps, 16 );
+    for( int i=1; i<=n; i++ )
+    {
+      nodesCache.prefetch( from.ilon + (int)(((long)dlon)*i/steps), from.ilat + (int)(((long)dlat)*i/steps) );
+    }
+  }
+
+  /**
+   * Start reading the micro-tiles next to the given node in the
+   * direction of the end position, when entering a new micro-tile
+   */
+  private void prefetchAhead( OsmNode n, OsmNode endPos )
+  {
+    long tile = ((long)(n.ilon/12500))<<32 | (n.ilat/12500);
+    if ( tile == lastPrefetchTile ) return;
+    lastPrefetchTile = tile;
+
+    int dlon = endPos.ilon - n.ilon;
+    int dlat = endPos.ilat - n.ilat;
+    int slon = dlon > 6250 ? 12500 : ( dlon < -6250 ? -12500 : 0 );
+    int slat = dlat > 6250 ? 12500 : ( dlat < -6250 ? -12500 : 0 );
+    if ( slon != 0 ) nodesCache.prefetch( n.ilon + slon, n.ilat );
+    if ( slat != 0 ) nodesCache.prefetch( n.ilon, n.ilat + slat );
+    if ( slon != 0 && slat != 0 ) nodesCache.prefetch( n.ilon + slon, n.ilat + slat );
+  }
+
   private OsmTrack findTrack( String operationName, MatchedWaypoint startWp, MatchedWaypoint endWp, OsmTrack costCuttingTrack, OsmTrack refTrack, boolean fastPartialRecalc )
   {
     boolean verbose = guideTrack != null;
@@ -615,7 +1198,7 @@ public class RoutingEngine extends Thread
     matchPath = null;
     int nodesVisited = 0;
 
-    resetCache();
+    resetSearchState();
     long endNodeId1 = endWp.node1.getIdFromPos();
     long endNodeId2 = endWp.node2.getIdFromPos();
     long startNodeId1 = startWp.node1.getIdFromPos();
@@ -623,8 +1206,7 @@ public class RoutingEngine extends Thread
 
     OsmNode endPos = endWp.crosspoint;
     
-    boolean sameSegmentSearch = ( startNodeId1 == endNodeId1 && startNodeId2 == endNodeId2 )
-                             || ( startNodeId1 == endNodeId2 && startNodeId2 == endNodeId1 );
+    boolean sameSegmentSearch = isSameSegment( startWp, endWp );
     
     OsmNode start1 = getStartNode( startNodeId1 );
     OsmNode start2 = getStartNode( startNodeId2 );
@@ -653,6 +1235,7 @@ public class RoutingEngine extends Thread
       addToOpenset( startPath1 );
       addToOpenset( startPath2 );
     }
+    prefetchCorridor( startWp.crosspoint, endPos );
     while(!terminated)
     {
       if ( maxRunningTime > 0 )
@@ -679,10 +1262,12 @@ public class RoutingEngine extends Thread
       
       nodesVisited++;
       linksProcessed++;
+      forwardNodesExpanded++;
       
       OsmLink currentLink = path.getLink();
       OsmNode currentNode = currentLink.targetNode;
       OsmNode sourceNode = path.getSourceNode();
+      prefetchAhead( currentNode, endPos );
 
       long currentNodeId = currentNode.getIdFromPos();
       if ( sourceNode != null )
@@ -742,7 +1327,7 @@ public class RoutingEngine extends Thread
 
       if ( sourceNode != null )
       {
-        sourceNode.unlinkLink ( currentLink );
+        unlinkLink( sourceNode, currentLink );
       }
 
       OsmLink counterLink = null;
@@ -778,8 +1363,6 @@ public class RoutingEngine extends Thread
           }
         }
 
-        OsmPath bestPath = null;
-
         boolean isFinalLink = false;
         long targetNodeId = link.targetNode.getIdFromPos();
         if ( currentNodeId == endNodeId1 || currentNodeId == endNodeId2 )
@@ -790,102 +1373,294 @@ public class RoutingEngine extends Thread
           }
         }
 
-        for( OsmLinkHolder linkHolder = currentLink.firstlinkholder; linkHolder != null; linkHolder = linkHolder.getNextForLink() )
+        OsmPath bestPath = getBestPath( path, link, isFinalLink ? endWp.crosspoint : null, refTrack );
+        if ( bestPath != null )
         {
-          OsmPath otherPath = (OsmPath)linkHolder;
-          try
+          bestPath.airdistance = isFinalLink ? 0 : nextNode.calcDistance( endPos );
+          if ( landmarks != null && !verbose && !isFinalLink )
           {
-            if ( isFinalLink )
-            {
-              endWp.crosspoint.radius = 1e-5;
-              routingContext.setWaypoint( endWp.crosspoint, true );
-            }
-            OsmPath testPath = new OsmPath( currentNode, otherPath, link, refTrack, guideTrack != null, routingContext );
-            if ( testPath.cost >= 0 && ( bestPath == null || testPath.cost < bestPath.cost ) )
-            {
-              bestPath = testPath;
-            }
+            bestPath.airdistance = getLandmarkBound( nextNode, bestPath.airdistance );
           }
-          finally
+          
+          if ( isFinalLink || bestPath.cost + bestPath.airdistance <= maxTotalCost + 10 )
           {
-            routingContext.unsetWaypoint();
+            addIfNotDominated( link, bestPath, path );
           }
-          if ( otherPath != path )
+          else
           {
-            otherPath.airdistance = -1; // invalidate the entry in the open set
+            sparePath = bestPath;
           }
         }
-        if ( bestPath != null )
+      }
+      // if the counterlink does not yet have a path, remove it
+      if ( counterLink != null && counterLink.firstlinkholder == null )
+      {
+        unlinkLink( currentNode, counterLink );
+      }
+
+    }
+    return null;
+  }
+
+  /**
+   * One-to-many search: a dijkstra from the start that stops when all
+   * targets are reached. The paths ending at a target are kept out of
+   * the graph, so that the search continues across the target segments.
+   * Targets on the start segment are left to the single search.
+   *
+   * In isochrone mode, there are no targets and the search stops at
+   * the limits, reporting the reached nodes to the listener.
+   *
+   * @return per target the track (without detail nodes), or null if not found
+   */
+  private OsmTrack[] findTracks( MatchedWaypoint startWp, MatchedWaypoint[] targets )
+  {
+    OsmTrack[] tracks = new OsmTrack[targets.length];
+    airDistanceCostFactor = 0.;
+    matchPath = null;
+    resetSearchState();
+
+    // the targets by their segment nodes
+    HashMap<Long,List<Integer>> targetsByNode = new HashMap<Long,List<Integer>>();
+    int remaining = 0;
+    for( int t=0; t<targets.length; t++ )
+    {
+      if ( isSameSegment( startWp, targets[t] ) ) continue;
+      addTargetForNode( targetsByNode, targets[t].node1, t );
+      addTargetForNode( targetsByNode, targets[t].node2, t );
+      remaining++;
+    }
+    IdentityHashMap<OsmPath,Integer> finalPaths = new IdentityHashMap<OsmPath,Integer>();
+
+    boolean isochrone = isochroneListener != null;
+    int maxCost = isochrone ? isochroneMaxCost : Integer.MAX_VALUE;
+    int maxDistance = isochrone ? isochroneMaxDistance : Integer.MAX_VALUE;
+    CompactLongSet reachedNodes = isochrone ? new CompactLongSet() : null;
+
+    OsmNode start1 = getStartNode( startWp.node1.getIdFromPos() );
+    OsmNode start2 = getStartNode( startWp.node2.getIdFromPos() );
+    if ( start1 == null || start2 == null ) return tracks;
+
+    synchronized( openSet )
+    {
+      openSet.clear();
+      addToOpenset( getStartPath( start1, start2, startWp.waypoint, startWp.crosspoint ) );
+      addToOpenset( getStartPath( start2, start1, startWp.waypoint, startWp.crosspoint ) );
+    }
+    while( ( remaining > 0 || isochrone ) && !terminated )
+    {
+      if ( maxRunningTime > 0 && System.currentTimeMillis() - startTime > maxRunningTime )
+      {
+        throw new IllegalArgumentException( ( isochrone ? "isochrone" : "matrix" ) + " timeout after " + (maxRunningTime/1000) + " seconds" );
+      }
+      OsmPath path = null;
+      synchronized( openSet )
+      {
+        path = openSet.popLowestKeyValue();
+      }
+      if ( path == null ) break;
+      if ( path.airdistance == -1 ) continue;
+
+      Integer target = finalPaths.remove( path );
+      if ( target != null )
+      {
+        int t = target.intValue();
+        if ( tracks[t] == null )
         {
-          bestPath.airdistance = isFinalLink ? 0 : nextNode.calcDistance( endPos );
-          
-          if ( isFinalLink || bestPath.cost + bestPath.airdistance <= maxTotalCost + 10 )
+          tracks[t] = compileTrack( path, false );
+          remaining--;
+        }
+        continue;
+      }
+
+      linksProcessed++;
+      forwardNodesExpanded++;
+
+      OsmLink currentLink = path.getLink();
+      OsmNode currentNode = currentLink.targetNode;
+      OsmNode sourceNode = path.getSourceNode();
+
+      if ( isochrone )
+      {
+        if ( path.cost > maxCost )
+        {
+          break; // all nodes within the limits are reached
+        }
+        if ( !reachedNodes.add( currentNode.getIdFromPos() ) )
+        {
+          isochroneListener.nodeReached( currentNode.ilon, currentNode.ilat, path.cost, path.distance );
+        }
+      }
+
+      if ( !currentNode.wasProcessed )
+      {
+        expandHollowLinkTargets( currentNode, true );
+        nodesMap.removeCompletedNodes();
+      }
+
+      if ( sourceNode != null )
+      {
+        unlinkLink( sourceNode, currentLink );
+      }
+
+      List<Integer> nodeTargets = targetsByNode.get( Long.valueOf( currentNode.getIdFromPos() ) );
+
+      OsmLink counterLink = null;
+      for( OsmLink link = currentNode.firstlink; link != null; link = link.next )
+      {
+        OsmNode nextNode = link.targetNode;
+
+        if ( nextNode.isHollow() )
+        {
+          continue; // border node?
+        }
+        if ( nextNode.firstlink == null )
+        {
+          continue; // don't care about dead ends
+        }
+        if ( nextNode == sourceNode )
+        {
+          counterLink = link;
+          continue; // border node?
+        }
+
+        // paths to the targets on that link end at the target
+        if ( nodeTargets != null )
+        {
+          long nextNodeId = nextNode.getIdFromPos();
+          for( Integer target2 : nodeTargets )
           {
-            // add only if this may beat an existing path for that link
-        	OsmLinkHolder dominator = link.firstlinkholder;
-        	while( dominator != null )
+            MatchedWaypoint twp = targets[target2.intValue()];
+            if ( tracks[target2.intValue()] == null
+              && ( twp.node1.getIdFromPos() == nextNodeId || twp.node2.getIdFromPos() == nextNodeId ) )
             {
-              if ( bestPath.definitlyWorseThan( (OsmPath)dominator, routingContext ) )
+              OsmPath finalPath = getBestPath( path, link, twp.crosspoint, null );
+              if ( finalPath != null )
               {
-                break;
+                finalPath.treedepth = path.treedepth + 1;
+                finalPaths.put( finalPath, target2 );
+                synchronized( openSet )
+                {
+                  addToOpenset( finalPath );
+                }
               }
-              dominator = dominator.getNextForLink();
             }
-
-        	if ( dominator == null )
-        	{
-              bestPath.treedepth = path.treedepth + 1;
-              link.addLinkHolder( bestPath );
-              synchronized( openSet )
-              {
-                addToOpenset( bestPath );
-              }
-        	}
           }
         }
+
+        OsmPath bestPath = getBestPath( path, link, null, null );
+        if ( bestPath != null && bestPath.cost <= maxCost && bestPath.distance <= maxDistance )
+        {
+          addIfNotDominated( link, bestPath, path );
+        }
+        else if ( bestPath != null )
+        {
+          sparePath = bestPath;
+        }
       }
       // if the counterlink does not yet have a path, remove it
       if ( counterLink != null && counterLink.firstlinkholder == null )
       {
-        currentNode.unlinkLink(counterLink);
+        unlinkLink( currentNode, counterLink );
       }
-
     }
-    return null;
+    logInfo( "search expanded " + forwardNodesExpanded + " nodes, " + remaining + " targets not reached" );
+    return tracks;
   }
-  
-  private void addToOpenset( OsmPath path )
+
+  private static void addTargetForNode( HashMap<Long,List<Integer>> targetsByNode, OsmNode n, int target )
   {
-    if ( path.cost >= 0 )
+    Long key = Long.valueOf( n.getIdFromPos() );
+    List<Integer> list = targetsByNode.get( key );
+    if ( list == null )
     {
-      openSet.add( path.cost + (int)(path.airdistance*airDistanceCostFactor), path );
+      list = new ArrayList<Integer>( 2 );
+      targetsByNode.put( key, list );
     }
+    list.add( Integer.valueOf( target ) );
   }
 
-  private void preloadPosition( OsmNode n, int minRingWidth, int minCount )
+  /**
+   * Get the cheapest continuation over the given link for the paths
+   * on the link of the current path, and invalidate the other ones
+   *
+   * @param endPos the end position if that's the final link, else null
+   * @return the path, or null if the link cannot be used
+   */
+  private OsmPath getBestPath( OsmPath path, OsmLink link, OsmNodeNamed endPos, OsmTrack refTrack )
   {
-    int c = 0;
-    int ring = 0;
-    while( ring <= minRingWidth || ( c < minCount && ring <= 5 ) )
+    OsmLink currentLink = path.getLink();
+    OsmNode currentNode = currentLink.targetNode;
+    OsmPath bestPath = null;
+    for( OsmLinkHolder linkHolder = currentLink.firstlinkholder; linkHolder != null; linkHolder = linkHolder.getNextForLink() )
     {
-      c += preloadRing( n, ring++ );
+      OsmPath otherPath = (OsmPath)linkHolder;
+      try
+      {
+        if ( endPos != null )
+        {
+          endPos.radius = 1e-5;
+          routingContext.setWaypoint( endPos, true );
+        }
+        OsmPath testPath = sparePath;
+        sparePath = null;
+        if ( testPath == null )
+        {
+          testPath = new OsmPath( currentNode, otherPath, link, refTrack, guideTrack != null, routingContext );
+        }
+        else
+        {
+          testPath.init( currentNode, otherPath, link, refTrack, guideTrack != null, routingContext );
+        }
+        if ( testPath.cost >= 0 && ( bestPath == null || testPath.cost < bestPath.cost ) )
+        {
+          sparePath = bestPath;
+          bestPath = testPath;
+        }
+        else
+        {
+          sparePath = testPath;
+        }
+      }
+      finally
+      {
+        routingContext.unsetWaypoint();
+      }
+      if ( otherPath != path )
+      {
+        otherPath.airdistance = -1; // invalidate the entry in the open set
+      }
     }
+    return bestPath;
   }
 
-  private int preloadRing( OsmNode n, int ring )
+  // add the path for the link, but only if this may beat an existing path for that link
+  private void addIfNotDominated( OsmLink link, OsmPath bestPath, OsmPath path )
   {
-    int d = 12500;
-    int c = 0;
-    for( int idxLat=-ring; idxLat<=ring; idxLat++ )
-      for( int idxLon=-ring; idxLon<=ring; idxLon++ )
+    OsmLinkHolder dominator = link.firstlinkholder;
+    while( dominator != null )
+    {
+      if ( bestPath.definitlyWorseThan( (OsmPath)dominator, routingContext ) )
       {
-        int absLat = idxLat < 0 ? -idxLat : idxLat;
-        int absLon = idxLon < 0 ? -idxLon : idxLon;
-        int max = absLat > absLon ? absLat : absLon;
-        if ( max < ring ) continue;
-        c += nodesCache.loadSegmentFor( n.ilon + d*idxLon , n.ilat +d*idxLat );
+        sparePath = bestPath;
+        return;
       }
-    return c;
+      dominator = dominator.getNextForLink();
+    }
+    bestPath.treedepth = path.treedepth + 1;
+    addLinkHolder( link, bestPath );
+    synchronized( openSet )
+    {
+      addToOpenset( bestPath );
+    }
+  }
+  
+  private void addToOpenset( OsmPath path )
+  {
+    if ( path.cost >= 0 )
+    {
+      openSet.add( path.cost + (int)(path.airdistance*airDistanceCostFactor), path );
+    }
   }
 
   private OsmTrack compileTrack( OsmPath path, boolean verbose )
@@ -979,6 +1754,15 @@ public class RoutingEngine extends Thread
     return track;
   }
 
+  /**
+   * @return the result of a many-to-many run, or null
+   * @see #doMatrixRun(int, long)
+   */
+  public RouteMatrix getMatrix()
+  {
+    return matrix;
+  }
+
   public int[] getOpenSet()
   {
     synchronized( openSet )
@@ -1006,6 +1790,23 @@ public class RoutingEngine extends Thread
       return linksProcessed;
   }
 
+  /**
+   * @return the number of nodes expanded by the forward search
+   */
+  public int getForwardNodesExpanded()
+  {
+    return forwardNodesExpanded;
+  }
+
+  /**
+   * @return the number of legs routed along a path of the shortcut graph
+   * (if enabled by the profile variable "useShortcuts")
+   */
+  public int getShortcutLegs()
+  {
+    return shortcutLegs;
+  }
+
   public int getDistance()
   {
     return foundTrack.distance;
@@ -1026,6 +1827,15 @@ public class RoutingEngine extends Thread
     return foundTrack;
   }
 
+  /**
+   * @return all tracks calculated in this run, that is the
+   * alternatives 0..alternativeIdx in that order
+   */
+  public List<OsmTrack> getFoundTracks()
+  {
+    return foundTracks;
+  }
+
   public int getAlternativeIndex()
   {
     return alternativeIndex;
@@ -1044,6 +1854,14 @@ public class RoutingEngine extends Thread
   public void terminate()
   {
     terminated = true;
+    RoutingEngine[] legs = legEngines;
+    if ( legs != null )
+    {
+      for( RoutingEngine leg : legs )
+      {
+        leg.terminate();
+      }
+    }
   }
 
   public boolean isTerminated()
@@ -0,0 +1,153 @@
+package btools.router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NogoIndexTest
+{
+  private static final int[] NOGO_COUNTS = { 0, 10, 100, 1000 };
+
+  // area of about 10 x 10 km
+  private static final int LON0 = 188700000;
+  private static final int LAT0 = 139990000;
+  private static final int EXTENT = 140000;
+
+  private List<OsmNodeNamed> createNogos( int count, Random rand )
+  {
+    List<OsmNodeNamed> nogos = new ArrayList<OsmNodeNamed>();
+    for( int i=0; i<count; i++ )
+    {
+      OsmNodeNamed nogo = new OsmNodeNamed();
+      nogo.name = "nogo" + ( 10 + rand.nextInt( 100 ) );
+      nogo.ilon = LON0 + rand.nextInt( EXTENT );
+      nogo.ilat = LAT0 + rand.nextInt( EXTENT );
+      nogo.isNogo = true;
+      nogos.add( nogo );
+    }
+    RoutingContext.prepareNogoPoints( nogos );
+    return nogos;
+  }
+
+  // segments of up to ~200m
+  private int[] createSegments( int count, Random rand )
+  {
+    int[] segments = new int[4*count];
+    for( int i=0; i<count; i++ )
+    {
+      segments[4*i] = LON0 + rand.nextInt( EXTENT );
+      segments[4*i+1] = LAT0 + rand.nextInt( EXTENT );
+      segments[4*i+2] = segments[4*i] + rand.nextInt( 4000 ) - 2000;
+      segments[4*i+3] = segments[4*i+1] + rand.nextInt( 4000 ) - 2000;
+    }
+    return segments;
+  }
+
+  private RoutingContext createContext( List<OsmNodeNamed> nogos, boolean indexed )
+  {
+    RoutingContext rc = new RoutingContext();
+    rc.nogopoints = new ArrayList<OsmNodeNamed>( nogos );
+    if ( !indexed )
+    {
+      // a point other than a nogo disables the index
+      OsmNodeNamed dummy = new OsmNodeNamed();
+      dummy.radius = 0.;
+      rc.nogopoints.add( dummy );
+    }
+    return rc;
+  }
+
+  @Test
+  public void nogoIndexTest()
+  {
+    Random rand = new Random( 4711 );
+    for( int count : NOGO_COUNTS )
+    {
+      List<OsmNodeNamed> nogos = createNogos( count, rand );
+      int[] segments = createSegments( 20000, rand );
+      RoutingContext indexed = createContext( nogos, true );
+      RoutingContext linear = createContext( nogos, false );
+
+      int nmatches = 0;
+      for( int i=0; i<segments.length; i+=4 )
+      {
+        indexed.nogomatch = false;
+        linear.nogomatch = false;
+        int d1 = indexed.calcDistance( segments[i], segments[i+1], segments[i+2], segments[i+3] );
+        int d2 = linear.calcDistance( segments[i], segments[i+1], segments[i+2], segments[i+3] );
+        Assert.assertEquals( "distance mismatch", d2, d1 );
+        Assert.assertEquals( "nogo-match mismatch", linear.nogomatch, indexed.nogomatch );
+        if ( indexed.nogomatch ) nmatches++;
+      }
+      Assert.assertTrue( "no nogo matched", count == 0 || nmatches > 0 );
+    }
+  }
+
+  @Test
+  public void waypointMatchTest()
+  {
+    Random rand = new Random( 815 );
+    List<OsmNodeNamed> nogos = createNogos( 100, rand );
+    int[] segments = createSegments( 2000, rand );
+    RoutingContext indexed = createContext( nogos, true );
+    RoutingContext linear = createContext( nogos, false );
+
+    for( int k=0; k<20; k++ )
+    {
+      OsmNodeNamed wp1 = new OsmNodeNamed();
+      wp1.ilon = LON0 + rand.nextInt( EXTENT );
+      wp1.ilat = LAT0 + rand.nextInt( EXTENT );
+      wp1.radius = 1e9;
+      OsmNodeNamed wp2 = new OsmNodeNamed();
+      wp2.ilon = wp1.ilon;
+      wp2.ilat = wp1.ilat;
+      wp2.radius = 1e9;
+
+      boolean endpoint = k % 2 == 0;
+      indexed.setWaypoint( wp1, endpoint );
+      linear.setWaypoint( wp2, endpoint );
+      for( int i=0; i<segments.length; i+=4 )
+      {
+        indexed.nogomatch = false;
+        linear.nogomatch = false;
+        indexed.calcDistance( segments[i], segments[i+1], segments[i+2], segments[i+3] );
+        linear.calcDistance( segments[i], segments[i+1], segments[i+2], segments[i+3] );
+        Assert.assertEquals( "nogo-match mismatch", linear.nogomatch, indexed.nogomatch );
+        Assert.assertEquals( "shortest-match mismatch", linear.shortestmatch, indexed.shortestmatch );
+      }
+      Assert.assertTrue( "radius mismatch", wp1.radius == wp2.radius );
+      indexed.unsetWaypoint();
+      linear.unsetWaypoint();
+    }
+  }
+
+  // @Test - timing test disabled for load reasons
+  public void nogoBenchmark()
+  {
+    Random rand = new Random( 4711 );
+    int[] segments = createSegments( 100000, rand );
+    for( int count : NOGO_COUNTS )
+    {
+      List<OsmNodeNamed> nogos = createNogos( count, rand );
+      RoutingContext[] contexts = { createContext( nogos, false ), createContext( nogos, true ) };
+      for( int round=0; round<3; round++ ) // the first rounds are for warmup
+      {
+        long[] times = new long[2];
+        for( int k=0; k<2; k++ )
+        {
+          RoutingContext rc = contexts[k];
+          long t0 = System.nanoTime();
+          for( int i=0; i<segments.length; i+=4 )
+          {
+            rc.calcDistance( segments[i], segments[i+1], segments[i+2], segments[i+3] );
+          }
+          times[k] = System.nanoTime() - t0;
+        }
+        System.out.println( count + " nogos round " + round + ": linear=" + times[0]/1000000 + "ms indexed=" + times[1]/1000000 + "ms" );
+      }
+    }
+  }
+}
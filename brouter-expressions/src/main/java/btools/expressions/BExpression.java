@@ -1,5 +1,9 @@
 package btools.expressions;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 
 final class BExpression
 {
@@ -166,6 +170,188 @@ final class BExpression
     }
   }
 
+  // Check if the expression depends only on constants and read-only variables
+  private boolean isConstant( int minWriteIdx )
+  {
+    switch( typ )
+    {
+      case NUMBER_EXP: return true;
+      case VARIABLE_EXP: return variableIdx < minWriteIdx;
+      case LOOKUP_EXP: return false;
+      case ASSIGN_EXP: return false;
+      case DUMPPOS_EXP: return false;
+      default: return op1.isConstant( minWriteIdx )
+                   && ( op2 == null || op2.isConstant( minWriteIdx ) )
+                   && ( op3 == null || op3.isConstant( minWriteIdx ) );
+    }
+  }
+
+  // Get the lookup name index if this is an or-chain of lookups with the same name, else -1
+  private int getLookupSetNameIdx()
+  {
+    if ( typ == LOOKUP_EXP ) return lookupNameIdx;
+    if ( typ != OR_EXP ) return -1;
+    int nameIdx = op1.getLookupSetNameIdx();
+    return nameIdx >= 0 && nameIdx == op2.getLookupSetNameIdx() ? nameIdx : -1;
+  }
+
+  private int getMaxLookupValueIdx()
+  {
+    return typ == LOOKUP_EXP ? lookupValueIdx : Math.max( op1.getMaxLookupValueIdx(), op2.getMaxLookupValueIdx() );
+  }
+
+  private void collectLookupValues( boolean[] valueSet )
+  {
+    if ( typ == LOOKUP_EXP )
+    {
+      valueSet[lookupValueIdx] = true;
+      return;
+    }
+    op1.collectLookupValues( valueSet );
+    op2.collectLookupValues( valueSet );
+  }
+
+  // Compile the expression into the flat program form
+  void compile( BExpressionContext ctx, BExpressionProgram prog )
+  {
+    int minWriteIdx = ctx.getMinWriteIdx();
+    if ( typ != ASSIGN_EXP && isConstant( minWriteIdx ) )
+    {
+      prog.emitConstant( evaluate( ctx ) );
+      return;
+    }
+    switch( typ )
+    {
+      case OR_EXP:
+      case AND_EXP:
+      {
+        boolean isOr = typ == OR_EXP;
+        int nameIdx = isOr ? getLookupSetNameIdx() : -1;
+        if ( nameIdx >= 0 )
+        {
+          boolean[] valueSet = new boolean[getMaxLookupValueIdx()+1];
+          collectLookupValues( valueSet );
+          prog.emitLookupSet( nameIdx, valueSet );
+          return;
+        }
+        if ( op1.isConstant( minWriteIdx ) )
+        {
+          if ( ( op1.evaluate( ctx ) != 0.f ) == isOr )
+          {
+            prog.emitConstant( isOr ? 1.f : 0.f );
+          }
+          else
+          {
+            op2.compile( ctx, prog );
+            prog.emit( BExpressionProgram.TO_BOOLEAN );
+          }
+          return;
+        }
+        op1.compile( ctx, prog );
+        int shortCut = prog.emitJump( isOr ? BExpressionProgram.JUMP_IF_NONZERO : BExpressionProgram.JUMP_IF_ZERO );
+        op2.compile( ctx, prog );
+        prog.emit( BExpressionProgram.TO_BOOLEAN );
+        int end = prog.emitJump( BExpressionProgram.JUMP );
+        prog.setJumpTarget( shortCut );
+        prog.emitConstant( isOr ? 1.f : 0.f );
+        prog.setJumpTarget( end );
+        return;
+      }
+      case SWITCH_EXP:
+      {
+        if ( op1.isConstant( minWriteIdx ) )
+        {
+          ( op1.evaluate( ctx ) != 0.f ? op2 : op3 ).compile( ctx, prog );
+          return;
+        }
+        int nameIdx = op1.getLookupSetNameIdx();
+        if ( nameIdx >= 0 && op3.typ == SWITCH_EXP && op3.op1.getLookupSetNameIdx() == nameIdx )
+        {
+          compileSwitchChain( ctx, prog, nameIdx );
+          return;
+        }
+        int elseBranch;
+        if ( op1.typ == LOOKUP_EXP )
+        {
+          elseBranch = prog.emitLookupJump( op1.lookupNameIdx, op1.lookupValueIdx );
+        }
+        else if ( nameIdx >= 0 )
+        {
+          boolean[] valueSet = new boolean[op1.getMaxLookupValueIdx()+1];
+          op1.collectLookupValues( valueSet );
+          elseBranch = prog.emitLookupSetJump( nameIdx, valueSet );
+        }
+        else if ( op1.typ == VARIABLE_EXP )
+        {
+          elseBranch = prog.emitVariableJump( op1.variableIdx );
+        }
+        else
+        {
+          op1.compile( ctx, prog );
+          elseBranch = prog.emitJump( BExpressionProgram.JUMP_IF_ZERO );
+        }
+        op2.compile( ctx, prog );
+        int end = prog.emitJump( BExpressionProgram.JUMP );
+        prog.setJumpTarget( elseBranch );
+        op3.compile( ctx, prog );
+        prog.setJumpTarget( end );
+        return;
+      }
+      case ADD_EXP: op1.compile( ctx, prog ); op2.compile( ctx, prog ); prog.emit( BExpressionProgram.ADD ); return;
+      case MULTIPLY_EXP: op1.compile( ctx, prog ); op2.compile( ctx, prog ); prog.emit( BExpressionProgram.MULTIPLY ); return;
+      case MAX_EXP: op1.compile( ctx, prog ); op2.compile( ctx, prog ); prog.emit( BExpressionProgram.MAX ); return;
+      case NOT_EXP: op1.compile( ctx, prog ); prog.emit( BExpressionProgram.NOT ); return;
+      case ASSIGN_EXP: op1.compile( ctx, prog ); prog.emitAssign( variableIdx ); return;
+      case LOOKUP_EXP: prog.emitLookup( lookupNameIdx, lookupValueIdx ); return;
+      case VARIABLE_EXP: prog.emitVariable( variableIdx ); return;
+      case DUMPPOS_EXP: prog.emit( BExpressionProgram.DUMPPOS ); op1.compile( ctx, prog ); return;
+      default: throw new IllegalArgumentException( "unknown op-code: " + typ );
+    }
+  }
+
+  // Compile a chain of switches on the same lookup name into a jump table
+  private void compileSwitchChain( BExpressionContext ctx, BExpressionProgram prog, int nameIdx )
+  {
+    List<BExpression> chain = new ArrayList<BExpression>();
+    int maxValueIdx = 0;
+    BExpression e = this;
+    while( e.typ == SWITCH_EXP && e.op1.getLookupSetNameIdx() == nameIdx )
+    {
+      chain.add( e );
+      maxValueIdx = Math.max( maxValueIdx, e.op1.getMaxLookupValueIdx() );
+      e = e.op3;
+    }
+
+    int[] table = new int[maxValueIdx+1];
+    Arrays.fill( table, -1 );
+    int defaultPos = prog.emitJumpTable( nameIdx, table );
+    int[] ends = new int[chain.size()];
+    for( int i=0; i<chain.size(); i++ )
+    {
+      BExpression link = chain.get( i );
+      boolean[] valueSet = new boolean[maxValueIdx+1];
+      link.op1.collectLookupValues( valueSet );
+      int start = prog.getPosition();
+      for( int v=0; v<=maxValueIdx; v++ )
+      {
+        if ( valueSet[v] && table[v] < 0 ) table[v] = start; // first match wins
+      }
+      link.op2.compile( ctx, prog );
+      ends[i] = prog.emitJump( BExpressionProgram.JUMP );
+    }
+    prog.setJumpTarget( defaultPos );
+    e.compile( ctx, prog );
+    for( int end : ends )
+    {
+      prog.setJumpTarget( end );
+    }
+    int defaultTarget = prog.getJumpTarget( defaultPos );
+    for( int v=0; v<=maxValueIdx; v++ )
+    {
+      if ( table[v] < 0 ) table[v] = defaultTarget;
+    }
+  }
+
   private float max( float v1, float v2 )
   {
     return v1 > v2 ? v1 : v2;
@@ -48,17 +48,25 @@ public final class BExpressionContext
   private float[] variableData;
 
 
-  // hash-cache for function results
+  // hash-cache for function results: the entries are chained per
+  // hash bucket and the number of entries grows on demand up to cacheMaxSize
+  private int cacheMaxSize;
+  private int cacheSize;
+  private int[] cacheBuckets;
+  private int[] cacheNext;
   private byte[][] _arrayBitmap;
   private boolean[] _arrayInverse;
   private int[] _arrayCrc;
 
-  private int currentHashBucket = -1;
-  private byte[] currentByteArray = null;
-  private boolean currentInverseDirection= false;
+  private int currentEntry = -1;
+  private boolean currentEntryWarned = false;
 
   public List<BExpression> expressionList;
 
+  // optional compiled form of the expression list
+  private BExpressionProgram program;
+  private float[] programStack;
+
   private int minWriteIdx;
 
   // build-in variable indexes for fast access
@@ -76,12 +84,12 @@ public final class BExpressionContext
   private float[] _arrayInitialcost;
   private float[] _arrayNodeAccessGranted;
 
-  public float getCostfactor() { return _arrayCostfactor[currentHashBucket]; }
-  public float getTurncost() { return _arrayTurncost[currentHashBucket]; }
-  public float getUphillCostfactor() { return _arrayUphillCostfactor[currentHashBucket]; }
-  public float getDownhillCostfactor() { return _arrayDownhillCostfactor[currentHashBucket]; }
-  public float getInitialcost() { return _arrayInitialcost[currentHashBucket]; }
-  public float getNodeAccessGranted() { return _arrayNodeAccessGranted[currentHashBucket]; }
+  public float getCostfactor() { return _arrayCostfactor[currentEntry]; }
+  public float getTurncost() { return _arrayTurncost[currentEntry]; }
+  public float getUphillCostfactor() { return _arrayUphillCostfactor[currentEntry]; }
+  public float getDownhillCostfactor() { return _arrayDownhillCostfactor[currentEntry]; }
+  public float getInitialcost() { return _arrayInitialcost[currentEntry]; }
+  public float getNodeAccessGranted() { return _arrayNodeAccessGranted[currentEntry]; }
 
   private int linenr;
 
@@ -108,16 +116,44 @@ public final class BExpressionContext
 
      if ( Boolean.getBoolean( "disableExpressionCache" ) ) hashSize = 1;
       
-     _arrayBitmap = new byte[hashSize][];
-     _arrayInverse = new boolean[hashSize];
-     _arrayCrc = new int[hashSize];
+     cacheMaxSize = hashSize;
+     allocateCache( Math.min( hashSize, 1024 ) );
+  }
 
-    _arrayCostfactor = new float[hashSize];
-    _arrayTurncost = new float[hashSize];
-    _arrayUphillCostfactor = new float[hashSize];
-    _arrayDownhillCostfactor = new float[hashSize];
-    _arrayInitialcost = new float[hashSize];
-    _arrayNodeAccessGranted = new float[hashSize];
+  /**
+   * Create an Expression-Context from a parsed template.
+   *
+   * The lookup tables and expression trees are shared with
+   * the template (they are read-only after parsing), the
+   * evaluation state and the result cache are private.
+   *
+   * @param template  a context that has already parsed it's profile
+   * @param hashSize  size of hashmap for result caching
+   */
+  public BExpressionContext( BExpressionContext template, int hashSize )
+  {
+    this( template.context, hashSize, null );
+    meta = template.meta;
+
+    lookupNumbers = template.lookupNumbers;
+    lookupValues = template.lookupValues;
+    lookupNames = template.lookupNames;
+    lookupHistograms = template.lookupHistograms;
+    lookupDataFrozen = template.lookupDataFrozen;
+    lookupData = new int[template.lookupData.length];
+
+    variableNumbers = template.variableNumbers;
+    variableData = template.variableData.clone();
+    expressionList = template.expressionList;
+    minWriteIdx = template.minWriteIdx;
+    if ( template.program != null ) setProgram( template.program );
+
+    costfactorIdx = template.costfactorIdx;
+    turncostIdx = template.turncostIdx;
+    uphillcostfactorIdx = template.uphillcostfactorIdx;
+    downhillcostfactorIdx = template.downhillcostfactorIdx;
+    initialcostIdx = template.initialcostIdx;
+    nodeaccessgrantedIdx = template.nodeaccessgrantedIdx;
   }
 
   /**
@@ -341,6 +377,11 @@ public final class BExpressionContext
   public void evaluate( int[] lookupData2 )
   {
     lookupData = lookupData2;
+    if ( program != null )
+    {
+      program.execute( this, lookupData, variableData, programStack );
+      return;
+    }
     for( BExpression exp: expressionList)
     {
       exp.evaluate( this );
@@ -350,6 +391,7 @@ public final class BExpressionContext
   public long requests;
   public long requests2;
   public long cachemisses;
+  public long cacheresets;
 
   /**
    * evaluates the data in the given byte array
@@ -358,64 +400,152 @@ public final class BExpressionContext
    */
   public boolean evaluate( boolean inverseDirection, byte[] ab, BExpressionReceiver receiver )
   {
-	 requests ++;
-	 lookupDataValid = false; // this is an assertion for a nasty pifall
-
-	 int inverseBitByteIndex = meta.readVarLength ? 0 : 7;
-
-	 // calc hash bucket from crc
-	 int lastHashBucket = currentHashBucket;
-     int crc  = Crc32.crcWithInverseBit(ab, inverseDirection ? inverseBitByteIndex : -1 );
-     int hashSize = _arrayBitmap.length;
-     currentHashBucket =  (crc & 0xfffffff) % hashSize;
-     currentByteArray = ab;
-     currentInverseDirection = inverseDirection;
-     byte[] abBucket = _arrayBitmap[currentHashBucket];
-     boolean inverseBucket = _arrayInverse[currentHashBucket];
-	 if ( ab == abBucket && inverseBucket == inverseDirection ) // fast identity check
-     {
-	   return lastHashBucket == currentHashBucket;
-	 }
-	 requests2++;
-
-	 // compare input value to hash bucket content
-     boolean hashBucketEquals = false;
-     if ( crc == _arrayCrc[currentHashBucket] )
-     {
-       int abLen = ab.length;
-       if ( abBucket != null && abBucket.length == ab.length )
-       {
-    	 hashBucketEquals = true;
-    	 boolean isInverse = inverseDirection ^ inverseBucket;
-         for( int i=0; i<abLen; i++ )
-         {
-           byte b = ab[i];
-           if ( isInverse && i == inverseBitByteIndex ) b ^= 1;
-    	   if ( abBucket[i] != b ) { hashBucketEquals = false; break; }
-         }
-       }
-     }
-     if ( hashBucketEquals ) return lastHashBucket == currentHashBucket;
-     cachemisses++;
-     
-     _arrayBitmap[currentHashBucket] = currentByteArray;
-     _arrayInverse[currentHashBucket] = currentInverseDirection;
-     _arrayCrc[currentHashBucket] = crc;
+    requests ++;
+    lookupDataValid = false; // this is an assertion for a nasty pifall
+
+    int inverseBitByteIndex = meta.readVarLength ? 0 : 7;
+
+    int lastEntry = currentEntry;
+
+    // look for the data in the collision chain of it's hash bucket
+    int crc  = Crc32.crcWithInverseBit(ab, inverseDirection ? inverseBitByteIndex : -1 );
+    int bucket = crc & ( cacheBuckets.length - 1 );
+    for( int entry = cacheBuckets[bucket]; entry >= 0; entry = cacheNext[entry] )
+    {
+      byte[] abEntry = _arrayBitmap[entry];
+      boolean inverseEntry = _arrayInverse[entry];
+      if ( ab == abEntry && inverseEntry == inverseDirection ) // fast identity check
+      {
+        currentEntry = entry;
+        return lastEntry == currentEntry;
+      }
+      if ( crc == _arrayCrc[entry] && abEntry.length == ab.length )
+      {
+        requests2++;
+        boolean entryEquals = true;
+        boolean isInverse = inverseDirection ^ inverseEntry;
+        int abLen = ab.length;
+        for( int i=0; i<abLen; i++ )
+        {
+          byte b = ab[i];
+          if ( isInverse && i == inverseBitByteIndex ) b ^= 1;
+          if ( abEntry[i] != b ) { entryEquals = false; break; }
+        }
+        if ( entryEquals )
+        {
+          currentEntry = entry;
+          return lastEntry == currentEntry;
+        }
+      }
+    }
+    cachemisses++;
+
+    // not found, make room for a new entry
+    if ( cacheSize == _arrayBitmap.length )
+    {
+      if ( cacheSize < cacheMaxSize )
+      {
+        growCache();
+      }
+      else
+      {
+        Arrays.fill( cacheBuckets, -1 );
+        cacheSize = 0;
+        cacheresets++;
+      }
+      bucket = crc & ( cacheBuckets.length - 1 );
+    }
+    currentEntry = cacheSize++;
+    _arrayBitmap[currentEntry] = ab;
+    _arrayInverse[currentEntry] = inverseDirection;
+    _arrayCrc[currentEntry] = crc;
+    cacheNext[currentEntry] = cacheBuckets[bucket];
+    cacheBuckets[bucket] = currentEntry;
 
-     _receiver = receiver;
+    _receiver = receiver;
+    currentEntryWarned = false;
 
-     decode( lookupData, currentInverseDirection, currentByteArray );
-     evaluate( lookupData );
+    decode( lookupData, inverseDirection, ab );
+    evaluate( lookupData );
 
-     _arrayCostfactor[currentHashBucket] = variableData[costfactorIdx];
-     _arrayTurncost[currentHashBucket] = variableData[turncostIdx];
-     _arrayUphillCostfactor[currentHashBucket] = variableData[uphillcostfactorIdx];
-     _arrayDownhillCostfactor[currentHashBucket] = variableData[downhillcostfactorIdx];
-     _arrayInitialcost[currentHashBucket] = variableData[initialcostIdx];
-     _arrayNodeAccessGranted[currentHashBucket] = variableData[nodeaccessgrantedIdx];
+    _arrayCostfactor[currentEntry] = variableData[costfactorIdx];
+    _arrayTurncost[currentEntry] = variableData[turncostIdx];
+    _arrayUphillCostfactor[currentEntry] = variableData[uphillcostfactorIdx];
+    _arrayDownhillCostfactor[currentEntry] = variableData[downhillcostfactorIdx];
+    _arrayInitialcost[currentEntry] = variableData[initialcostIdx];
+    _arrayNodeAccessGranted[currentEntry] = variableData[nodeaccessgrantedIdx];
 
-     _receiver = null;
-     return false;
+    if ( currentEntryWarned ) // no caching if warnings, but keep the results
+    {
+      cacheBuckets[bucket] = cacheNext[currentEntry];
+      cacheSize--;
+    }
+
+    _receiver = null;
+    return false;
+  }
+
+  private void allocateCache( int size )
+  {
+    int nbuckets = 1;
+    while( nbuckets < size ) nbuckets <<= 1;
+    cacheBuckets = new int[nbuckets];
+    Arrays.fill( cacheBuckets, -1 );
+    cacheNext = new int[size];
+
+    _arrayBitmap = new byte[size][];
+    _arrayInverse = new boolean[size];
+    _arrayCrc = new int[size];
+
+    _arrayCostfactor = new float[size];
+    _arrayTurncost = new float[size];
+    _arrayUphillCostfactor = new float[size];
+    _arrayDownhillCostfactor = new float[size];
+    _arrayInitialcost = new float[size];
+    _arrayNodeAccessGranted = new float[size];
+  }
+
+  // double the number of entries and re-link them
+  private void growCache()
+  {
+    byte[][] oldBitmap = _arrayBitmap;
+    boolean[] oldInverse = _arrayInverse;
+    int[] oldCrc = _arrayCrc;
+    float[] oldCostfactor = _arrayCostfactor;
+    float[] oldTurncost = _arrayTurncost;
+    float[] oldUphillCostfactor = _arrayUphillCostfactor;
+    float[] oldDownhillCostfactor = _arrayDownhillCostfactor;
+    float[] oldInitialcost = _arrayInitialcost;
+    float[] oldNodeAccessGranted = _arrayNodeAccessGranted;
+
+    allocateCache( (int)Math.min( 2L*cacheSize, (long)cacheMaxSize ) );
+
+    System.arraycopy( oldBitmap, 0, _arrayBitmap, 0, cacheSize );
+    System.arraycopy( oldInverse, 0, _arrayInverse, 0, cacheSize );
+    System.arraycopy( oldCrc, 0, _arrayCrc, 0, cacheSize );
+    System.arraycopy( oldCostfactor, 0, _arrayCostfactor, 0, cacheSize );
+    System.arraycopy( oldTurncost, 0, _arrayTurncost, 0, cacheSize );
+    System.arraycopy( oldUphillCostfactor, 0, _arrayUphillCostfactor, 0, cacheSize );
+    System.arraycopy( oldDownhillCostfactor, 0, _arrayDownhillCostfactor, 0, cacheSize );
+    System.arraycopy( oldInitialcost, 0, _arrayInitialcost, 0, cacheSize );
+    System.arraycopy( oldNodeAccessGranted, 0, _arrayNodeAccessGranted, 0, cacheSize );
+
+    int mask = cacheBuckets.length - 1;
+    for( int entry = 0; entry < cacheSize; entry++ )
+    {
+      int bucket = _arrayCrc[entry] & mask;
+      cacheNext[entry] = cacheBuckets[bucket];
+      cacheBuckets[bucket] = entry;
+    }
+  }
+
+  /**
+   * @return the result cache statistics as a string
+   */
+  public String getCacheStatistics()
+  {
+    return context + "-cache: requests=" + requests + " hits=" + (requests-cachemisses) + " misses=" + cachemisses
+         + " entries=" + cacheSize + " capacity=" + _arrayBitmap.length + " resets=" + cacheresets;
   }
 
   public void dumpStatistics()
@@ -639,6 +769,10 @@ public final class BExpressionContext
       {
         variableData[i] = readOnlyData[i];
       }
+      if ( Boolean.getBoolean( "compileExpressions" ) )
+      {
+        compile();
+      }
     }
     catch( Exception e )
     {
@@ -672,6 +806,21 @@ public final class BExpressionContext
   }
 
 
+  /**
+   * Compile the parsed expressions into a flat program
+   * that is used instead of the expression trees
+   */
+  void compile()
+  {
+    setProgram( BExpressionProgram.compile( expressionList, this ) );
+  }
+
+  private void setProgram( BExpressionProgram p )
+  {
+    program = p;
+    programStack = new float[p.getStackSize()];
+  }
+
   public float getVariableValue( String name, float defaultValue )
   {
     Integer num = variableNumbers.get( name );
@@ -717,6 +866,11 @@ public final class BExpressionContext
     return num == null ? -1 : num.intValue();
   }
 
+  int getLookupValueCount( int nameIdx )
+  {
+    return lookupValues.get( nameIdx ).length;
+  }
+
   int getLookupValueIdx( int nameIdx, String value )
   {
     BExpressionLookupValue[] values = lookupValues.get( nameIdx );
@@ -785,7 +939,7 @@ public final class BExpressionContext
 
   void expressionWarning( String message )
   {
-    _arrayBitmap[currentHashBucket] = null; // no caching if warnings
+    currentEntryWarned = true; // no caching if warnings
      if ( _receiver != null ) _receiver.expressionWarning( context, message );
   }
 }
@@ -0,0 +1,306 @@
+package btools.expressions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flat, stack-based form of the expressions of a context
+ *
+ * The expression trees are compiled into a single int-array
+ * of instructions with jumps for the short-circuit operators,
+ * so evaluation is a loop instead of a recursive descent.
+ * Sub-expressions that depend only on constants and read-only
+ * (global) variables are folded at compile time, or-chains
+ * of lookups with the same name are turned into a set lookup
+ * and switch-chains on the same lookup name into a jump table.
+ *
+ * A program is immutable after compilation and can be shared
+ * between contexts, the evaluation stack is owned by the caller.
+ */
+final class BExpressionProgram
+{
+  static final int PUSH_CONST = 1;      // arg: constant index
+  static final int PUSH_VAR = 2;        // arg: variable index
+  static final int PUSH_LOOKUP = 3;     // args: lookup name index, value index
+  static final int PUSH_LOOKUPSET = 4;  // args: lookup name index, set index
+  static final int ADD = 5;
+  static final int MULTIPLY = 6;
+  static final int MAX = 7;
+  static final int NOT = 8;
+  static final int TO_BOOLEAN = 9;
+  static final int JUMP = 10;           // arg: target
+  static final int JUMP_IF_ZERO = 11;   // arg: target
+  static final int JUMP_IF_NONZERO = 12;// arg: target
+  static final int ASSIGN = 13;         // arg: variable index
+  static final int DUMPPOS = 14;
+  static final int JUMP_TABLE = 15;     // args: lookup name index, table index, default target
+  static final int JUMP_IF_NOT_LOOKUP = 16;    // args: lookup name index, value index, target
+  static final int JUMP_IF_NOT_LOOKUPSET = 17; // args: lookup name index, set index, target
+  static final int JUMP_IF_ZERO_VAR = 18;      // args: variable index, target
+
+  private int[] code = new int[64];
+  private int codeSize = 0;
+
+  private float[] constants = new float[16];
+  private int constantCount = 0;
+
+  private List<boolean[]> lookupSets = new ArrayList<boolean[]>();
+  private boolean[][] lookupSetArray;
+
+  private List<int[]> jumpTables = new ArrayList<int[]>();
+  private int[][] jumpTableArray;
+
+  private int depth = 0;
+  private int maxDepth = 0;
+
+  private BExpressionProgram()
+  {
+  }
+
+  /**
+   * Compile the expression list of the given, already parsed context
+   */
+  static BExpressionProgram compile( List<BExpression> expressionList, BExpressionContext ctx )
+  {
+    BExpressionProgram prog = new BExpressionProgram();
+    for( BExpression exp : expressionList )
+    {
+      exp.compile( ctx, prog );
+    }
+    prog.lookupSetArray = prog.lookupSets.toArray( new boolean[prog.lookupSets.size()][] );
+    prog.jumpTableArray = prog.jumpTables.toArray( new int[prog.jumpTables.size()][] );
+    return prog;
+  }
+
+  int getStackSize()
+  {
+    return maxDepth;
+  }
+
+  private void add( int i )
+  {
+    if ( codeSize == code.length )
+    {
+      int[] ncode = new int[2*codeSize];
+      System.arraycopy( code, 0, ncode, 0, codeSize );
+      code = ncode;
+    }
+    code[codeSize++] = i;
+  }
+
+  private void push()
+  {
+    if ( ++depth > maxDepth ) maxDepth = depth;
+  }
+
+  void emitConstant( float value )
+  {
+    if ( constantCount == constants.length )
+    {
+      float[] nconstants = new float[2*constantCount];
+      System.arraycopy( constants, 0, nconstants, 0, constantCount );
+      constants = nconstants;
+    }
+    constants[constantCount] = value;
+    add( PUSH_CONST );
+    add( constantCount++ );
+    push();
+  }
+
+  void emitVariable( int variableIdx )
+  {
+    add( PUSH_VAR );
+    add( variableIdx );
+    push();
+  }
+
+  void emitLookup( int nameIdx, int valueIdx )
+  {
+    add( PUSH_LOOKUP );
+    add( nameIdx );
+    add( valueIdx );
+    push();
+  }
+
+  void emitLookupSet( int nameIdx, boolean[] valueSet )
+  {
+    add( PUSH_LOOKUPSET );
+    add( nameIdx );
+    add( lookupSets.size() );
+    lookupSets.add( valueSet );
+    push();
+  }
+
+  void emitAssign( int variableIdx )
+  {
+    add( ASSIGN );
+    add( variableIdx );
+    depth--;
+  }
+
+  /**
+   * emit an operation without arguments
+   */
+  void emit( int op )
+  {
+    add( op );
+    if ( op == ADD || op == MULTIPLY || op == MAX ) depth--;
+  }
+
+  /**
+   * emit a jump with a yet unknown target
+   *
+   * @return the position to pass to setJumpTarget
+   */
+  int emitJump( int op )
+  {
+    add( op );
+    add( -1 );
+    if ( op != JUMP ) depth--;
+    return codeSize - 1;
+  }
+
+  /**
+   * emit a conditional jump that is taken if the
+   * lookup value is not the given one
+   */
+  int emitLookupJump( int nameIdx, int valueIdx )
+  {
+    add( JUMP_IF_NOT_LOOKUP );
+    add( nameIdx );
+    add( valueIdx );
+    add( -1 );
+    return codeSize - 1;
+  }
+
+  /**
+   * emit a conditional jump that is taken if the
+   * lookup value is not in the given set
+   */
+  int emitLookupSetJump( int nameIdx, boolean[] valueSet )
+  {
+    add( JUMP_IF_NOT_LOOKUPSET );
+    add( nameIdx );
+    add( lookupSets.size() );
+    lookupSets.add( valueSet );
+    add( -1 );
+    return codeSize - 1;
+  }
+
+  /**
+   * emit a conditional jump that is taken if the variable is zero
+   */
+  int emitVariableJump( int variableIdx )
+  {
+    add( JUMP_IF_ZERO_VAR );
+    add( variableIdx );
+    add( -1 );
+    return codeSize - 1;
+  }
+
+  /**
+   * emit a jump indexed by a lookup value. The table entries are
+   * code positions that the caller has to fill in after emitting the
+   * branches, values outside the table go to the default target
+   *
+   * @return the position of the default target to pass to setJumpTarget
+   */
+  int emitJumpTable( int nameIdx, int[] table )
+  {
+    add( JUMP_TABLE );
+    add( nameIdx );
+    add( jumpTables.size() );
+    jumpTables.add( table );
+    add( -1 );
+    return codeSize - 1;
+  }
+
+  int getPosition()
+  {
+    return codeSize;
+  }
+
+  int getJumpTarget( int jumpPos )
+  {
+    return code[jumpPos];
+  }
+
+  /**
+   * set the target of the given jump to the current position
+   */
+  void setJumpTarget( int jumpPos )
+  {
+    code[jumpPos] = codeSize;
+  }
+
+  /**
+   * Run the program on the given lookup data and variables
+   */
+  void execute( BExpressionContext ctx, int[] lookupData, float[] variableData, float[] stack )
+  {
+    int[] c = code;
+    float[] consts = constants;
+    int pc = 0;
+    int sp = 0;
+    while( pc < codeSize )
+    {
+      switch( c[pc++] )
+      {
+        case PUSH_CONST: stack[sp++] = consts[c[pc++]]; break;
+        case PUSH_VAR: stack[sp++] = variableData[c[pc++]]; break;
+        case PUSH_LOOKUP:
+        {
+          int nameIdx = c[pc++];
+          stack[sp++] = lookupData[nameIdx] == c[pc++] ? 1.f : 0.f;
+          break;
+        }
+        case PUSH_LOOKUPSET:
+        {
+          int v = lookupData[c[pc++]];
+          boolean[] set = lookupSetArray[c[pc++]];
+          stack[sp++] = v < set.length && set[v] ? 1.f : 0.f;
+          break;
+        }
+        case ADD: sp--; stack[sp-1] = stack[sp-1] + stack[sp]; break;
+        case MULTIPLY: sp--; stack[sp-1] = stack[sp-1] * stack[sp]; break;
+        case MAX:
+        {
+          sp--;
+          float v1 = stack[sp-1];
+          float v2 = stack[sp];
+          stack[sp-1] = v1 > v2 ? v1 : v2;
+          break;
+        }
+        case NOT: stack[sp-1] = stack[sp-1] == 0.f ? 1.f : 0.f; break;
+        case TO_BOOLEAN: stack[sp-1] = stack[sp-1] != 0.f ? 1.f : 0.f; break;
+        case JUMP: pc = c[pc]; break;
+        case JUMP_IF_ZERO: pc = stack[--sp] == 0.f ? c[pc] : pc+1; break;
+        case JUMP_IF_NONZERO: pc = stack[--sp] != 0.f ? c[pc] : pc+1; break;
+        case ASSIGN: variableData[c[pc++]] = stack[--sp]; break;
+        case DUMPPOS: ctx.expressionWarning( "INFO" ); break;
+        case JUMP_TABLE:
+        {
+          int v = lookupData[c[pc++]];
+          int[] table = jumpTableArray[c[pc++]];
+          pc = v < table.length ? table[v] : c[pc];
+          break;
+        }
+        case JUMP_IF_NOT_LOOKUP:
+        {
+          int v = lookupData[c[pc++]];
+          pc = v != c[pc] ? c[pc+1] : pc+2;
+          break;
+        }
+        case JUMP_IF_NOT_LOOKUPSET:
+        {
+          int v = lookupData[c[pc++]];
+          boolean[] set = lookupSetArray[c[pc++]];
+          pc = v < set.length && set[v] ? pc+1 : c[pc];
+          break;
+        }
+        case JUMP_IF_ZERO_VAR: pc = variableData[c[pc++]] == 0.f ? c[pc] : pc+1; break;
+        default: throw new IllegalArgumentException( "unknown op-code: " + c[pc-1] );
+      }
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package btools.expressions;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BExpressionCacheTest
+{
+  @Test
+  public void resultCacheTest()
+  {
+    URL testpurl = this.getClass().getResource( "/dummy.txt" );
+    File workingDir = new File(testpurl.getFile()).getParentFile();
+    File profileDir = new File( workingDir, "/../../../misc/profiles2" );
+
+    BExpressionMetaData meta = new BExpressionMetaData();
+    BExpressionContext template = new BExpressionContext( "way", 1, meta );
+    meta.readMetaData( new File( profileDir, "lookups.dat" ) );
+    template.parseFile( new File( profileDir, "trekking.brf" ), "global" );
+
+    // compare a growing and a resetting cache against no cache
+    BExpressionContext uncached = new BExpressionContext( template, 1 );
+    BExpressionContext small = new BExpressionContext( template, 50 );
+    BExpressionContext large = new BExpressionContext( template, 100000 );
+
+    // a working set of descriptions, repeated in random order
+    Random rand = new Random( 4711 );
+    byte[][] descriptions = new byte[400][];
+    for( int i=0; i<descriptions.length; i++ )
+    {
+      int[] lookupData = template.createNewLookupData();
+      lookupData[template.getLookupNameIdx( "highway" )] = 2 + rand.nextInt( 10 );
+      lookupData[template.getLookupNameIdx( "surface" )] = rand.nextInt( 3 );
+      lookupData[template.getLookupNameIdx( "oneway" )] = rand.nextInt( 3 );
+      descriptions[i] = template.encode( lookupData );
+    }
+
+    byte[] last = null;
+    boolean lastInverse = false;
+    for( int i=0; i<50000; i++ )
+    {
+      byte[] ab = descriptions[rand.nextInt( descriptions.length )];
+      if ( rand.nextBoolean() ) ab = (byte[])ab.clone(); // equal, but not identical
+      boolean inverse = rand.nextBoolean();
+      if ( rand.nextInt( 4 ) == 0 && last != null ) // repeat the last
+      {
+        ab = last;
+        inverse = lastInverse;
+      }
+
+      boolean same = uncached.evaluate( inverse, ab, null );
+      Assert.assertEquals( "sameData mismatch (small)", same, small.evaluate( inverse, ab, null ) );
+      Assert.assertEquals( "sameData mismatch (large)", same, large.evaluate( inverse, ab, null ) );
+
+      Assert.assertTrue( "costfactor mismatch (small)", uncached.getCostfactor() == small.getCostfactor() );
+      Assert.assertTrue( "costfactor mismatch (large)", uncached.getCostfactor() == large.getCostfactor() );
+      Assert.assertTrue( "turncost mismatch", uncached.getTurncost() == large.getTurncost() );
+      Assert.assertTrue( "initialcost mismatch", uncached.getInitialcost() == large.getInitialcost() );
+      last = ab;
+      lastInverse = inverse;
+    }
+
+    Assert.assertTrue( "small cache did not reset", small.cacheresets > 0 );
+    Assert.assertTrue( "large cache was reset", large.cacheresets == 0 );
+    Assert.assertTrue( "too many misses: " + large.getCacheStatistics(), large.cachemisses <= 2*descriptions.length );
+  }
+}
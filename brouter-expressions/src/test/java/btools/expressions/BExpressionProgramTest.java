@@ -0,0 +1,120 @@
+package btools.expressions;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BExpressionProgramTest
+{
+  private static final String[] PROFILES = { "all", "car-test", "fastbike", "moped", "shortest", "trekking" };
+
+  private File getProfileDir()
+  {
+    URL testpurl = this.getClass().getResource( "/dummy.txt" );
+    File workingDir = new File(testpurl.getFile()).getParentFile();
+    return new File( workingDir, "/../../../misc/profiles2" );
+  }
+
+  private BExpressionContext[] parseProfile( String profile, String context )
+  {
+    File profileDir = getProfileDir();
+    BExpressionMetaData meta = new BExpressionMetaData();
+    BExpressionContext template = new BExpressionContext( context, 1, meta );
+    meta.readMetaData( new File( profileDir, "lookups.dat" ) );
+    template.parseFile( new File( profileDir, profile + ".brf" ), "global" );
+
+    BExpressionContext interpreted = new BExpressionContext( template, 1 );
+    BExpressionContext compiledCtx = new BExpressionContext( template, 1 );
+    compiledCtx.compile();
+    return new BExpressionContext[]{ interpreted, compiledCtx };
+  }
+
+  private byte[] createRandomDescription( BExpressionContext ctx, Random rand )
+  {
+    int[] lookupData = ctx.createNewLookupData();
+    for( int inum=0; inum<lookupData.length; inum++ )
+    {
+      if ( inum > 0 && rand.nextInt( 4 ) > 0 ) continue;
+      lookupData[inum] = rand.nextInt( ctx.getLookupValueCount( inum ) );
+    }
+    try
+    {
+      return ctx.encode( lookupData );
+    }
+    catch( RuntimeException e )
+    {
+      return null; // not all combinations are encodable
+    }
+  }
+
+  @Test
+  public void compiledEqualsInterpretedTest()
+  {
+    for( String profile : PROFILES )
+    {
+      for( String context : new String[] { "way", "node" } )
+      {
+        BExpressionContext[] ctxs = parseProfile( profile, context );
+        BExpressionContext interpreted = ctxs[0];
+        BExpressionContext compiled = ctxs[1];
+
+        Random rand = new Random( 4711 );
+        for( int i=0; i<20000; i++ )
+        {
+          byte[] description = createRandomDescription( interpreted, rand );
+          if ( description == null ) continue;
+          boolean inverse = rand.nextBoolean();
+          interpreted.evaluate( inverse, description, null );
+          compiled.evaluate( inverse, description, null );
+
+          String msg = profile + "/" + context + " mismatch for" + interpreted.getKeyValueDescription( inverse, description );
+          Assert.assertTrue( msg + " (costfactor)", interpreted.getCostfactor() == compiled.getCostfactor() );
+          Assert.assertTrue( msg + " (turncost)", interpreted.getTurncost() == compiled.getTurncost() );
+          Assert.assertTrue( msg + " (uphillcostfactor)", interpreted.getUphillCostfactor() == compiled.getUphillCostfactor() );
+          Assert.assertTrue( msg + " (downhillcostfactor)", interpreted.getDownhillCostfactor() == compiled.getDownhillCostfactor() );
+          Assert.assertTrue( msg + " (initialcost)", interpreted.getInitialcost() == compiled.getInitialcost() );
+          Assert.assertTrue( msg + " (nodeaccessgranted)", interpreted.getNodeAccessGranted() == compiled.getNodeAccessGranted() );
+        }
+      }
+    }
+  }
+
+  // @Test - timing test disabled for load reasons
+  public void compiledSpeedTest()
+  {
+    for( String profile : PROFILES )
+    {
+      BExpressionContext[] ctxs = parseProfile( profile, "way" );
+
+      Random rand = new Random( 4711 );
+      byte[][] descriptions = new byte[10000][];
+      for( int i=0; i<descriptions.length; i++ )
+      {
+        byte[] description = null;
+        while( description == null ) description = createRandomDescription( ctxs[0], rand );
+        descriptions[i] = description;
+      }
+
+      for( int round=0; round<5; round++ ) // the first rounds are for warmup
+      {
+        long[] times = new long[2];
+        for( int k=0; k<2; k++ )
+        {
+          long t0 = System.nanoTime();
+          for( int n=0; n<20; n++ )
+          {
+            for( byte[] description : descriptions )
+            {
+              ctxs[k].evaluate( false, description, null );
+            }
+          }
+          times[k] = System.nanoTime() - t0;
+        }
+        System.out.println( profile + " round " + round + ": interpreted=" + times[0]/1000000 + "ms compiled=" + times[1]/1000000 + "ms" );
+      }
+    }
+  }
+}
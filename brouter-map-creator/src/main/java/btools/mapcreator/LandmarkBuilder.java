@@ -0,0 +1,255 @@
+package btools.mapcreator;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import btools.mapaccess.LandmarkTable;
+import btools.mapaccess.OsmLink;
+import btools.mapaccess.OsmNode;
+import btools.util.LongObjectMap;
+import btools.util.SortedHeap;
+
+/**
+ * LandmarkBuilder selects landmarks for the ALT heuristic
+ * and computes the landmark distance table for a profile
+ * from the rd5 (or cd5) segments.
+ *
+ * Distances are lower bounds for the routing cost, using
+ * just the way-costfactors (the minimum of costfactor, uphill-
+ * and downhill-costfactor) times the distance, leaving out turn-,
+ * elevation-, initial- and node-costs.
+ * Landmarks are selected by the farthest-heuristic, starting
+ * at the node next to a seed position. The table covers the
+ * whole graph reachable from there, so this is meant for
+ * regional extracts, not for the planet.
+ *
+ * @author ab
+ */
+public class LandmarkBuilder extends RoutingGraphBase
+{
+  private static final class Entry
+  {
+    OsmNode node;
+    int cost;
+    boolean settled;
+  }
+
+  // per node the costs from the landmarks and the costs to the landmarks
+  private static final class Row
+  {
+    long id;
+    int[] costs;
+  }
+
+  private int nlandmarks;
+  private LongObjectMap<Row> rows;
+
+  public static void main(String[] args) throws Exception
+  {
+    System.out.println("*** LandmarkBuilder: create the landmark table for a profile");
+    if (args.length != 6)
+    {
+      System.out.println("usage: java LandmarkBuilder <segment-dir> <lookup-file> <profile-file> <seed-lon> <seed-lat> <landmark-count>");
+      return;
+    }
+    new LandmarkBuilder().process( new File( args[0] ), new File( args[1] ), new File( args[2] ),
+            Double.parseDouble( args[3] ), Double.parseDouble( args[4] ), Integer.parseInt( args[5] ) );
+  }
+
+  public void process( File segmentDir, File lookupFile, File profileFile, double seedLon, double seedLat, int landmarkCount ) throws Exception
+  {
+    readProfile( segmentDir, lookupFile, profileFile );
+    this.nlandmarks = landmarkCount;
+
+    rows = new LongObjectMap<Row>( 65536 );
+
+    long seedId = findSeedNode( seedLon, seedLat );
+    if ( seedId == -1 ) throw new IllegalArgumentException( "no routable node next to the seed position" );
+
+    // the first landmark is the node farthest from the seed
+    long[] landmarkIds = new long[nlandmarks];
+    LongObjectMap<Entry> fromSeed = search( seedId, true );
+    landmarkIds[0] = getFarthest( fromSeed );
+
+    for( int li=0; li<nlandmarks; li++ )
+    {
+      LongObjectMap<Entry> entries = search( landmarkIds[li], true );
+      for( Entry e : entries.values() )
+      {
+        getRow( e.node.getIdFromPos() ).costs[li] = e.cost;
+      }
+      if ( li+1 < nlandmarks )
+      {
+        landmarkIds[li+1] = selectNextLandmark( li+1 );
+      }
+      System.out.println( "landmark " + li + ": " + landmarkIds[li] + " reaches " + entries.size() + " nodes" );
+    }
+
+    for( int li=0; li<nlandmarks; li++ )
+    {
+      LongObjectMap<Entry> entries = search( landmarkIds[li], false );
+      for( Entry e : entries.values() )
+      {
+        getRow( e.node.getIdFromPos() ).costs[nlandmarks + li] = e.cost;
+      }
+    }
+
+    List<Row> rowList = rows.values();
+    Collections.sort( rowList, new Comparator<Row>()
+    {
+      public int compare( Row r1, Row r2 )
+      {
+        return r1.id < r2.id ? -1 : ( r1.id > r2.id ? 1 : 0 );
+      }
+    } );
+
+    long[] nodeIds = new long[rowList.size()];
+    int[] distances = new int[rowList.size()*2*nlandmarks];
+    for( int n=0; n<nodeIds.length; n++ )
+    {
+      Row r = rowList.get( n );
+      nodeIds[n] = r.id;
+      System.arraycopy( r.costs, 0, distances, n*2*nlandmarks, 2*nlandmarks );
+    }
+
+    File outFile = LandmarkTable.getFile( this.segmentDir, getProfileName( profileFile ) );
+    outFile.getParentFile().mkdirs();
+    int profileChecksum = LandmarkTable.getProfileChecksum( profileFile );
+    new LandmarkTable( landmarkIds, nodeIds, distances, profileChecksum, getSegmentStamps() ).writeTo( outFile );
+    System.out.println( "wrote " + outFile + " with " + nodeIds.length + " nodes" );
+  }
+
+  private Row getRow( long id )
+  {
+    Row r = rows.get( id );
+    if ( r == null )
+    {
+      r = new Row();
+      r.id = id;
+      r.costs = new int[2*nlandmarks];
+      for( int i=0; i<r.costs.length; i++ )
+      {
+        r.costs[i] = LandmarkTable.UNREACHABLE;
+      }
+      rows.put( id, r );
+    }
+    return r;
+  }
+
+  private long getFarthest( LongObjectMap<Entry> entries )
+  {
+    long id = -1;
+    int max = -1;
+    for( Entry e : entries.values() )
+    {
+      if ( e.cost > max )
+      {
+        max = e.cost;
+        id = e.node.getIdFromPos();
+      }
+    }
+    return id;
+  }
+
+  // the node with the highest cost from the nearest landmark
+  private long selectNextLandmark( int nselected )
+  {
+    long id = -1;
+    int max = -1;
+    for( Row r : rows.values() )
+    {
+      int min = Integer.MAX_VALUE;
+      for( int i=0; i<nselected; i++ )
+      {
+        int c = r.costs[i];
+        if ( c != LandmarkTable.UNREACHABLE && c < min ) min = c;
+      }
+      if ( min != Integer.MAX_VALUE && min > max )
+      {
+        max = min;
+        id = r.id;
+      }
+    }
+    return id;
+  }
+
+  /**
+   * Dijkstra on the lower-bound costs, from the given node if forward,
+   * else to the given node
+   *
+   * @return the settled entries
+   */
+  private LongObjectMap<Entry> search( long startId, boolean forward )
+  {
+    openCache();
+    try
+    {
+      SortedHeap<Entry> openSet = new SortedHeap<Entry>();
+      LongObjectMap<Entry> entries = new LongObjectMap<Entry>( 65536 );
+
+      OsmNode start = new OsmNode( startId );
+      start.setHollow();
+      nodesMap.put( startId, start );
+      if ( nodesCache.obtainNonHollowNode( start ) )
+      {
+        relax( openSet, entries, start, 0 );
+      }
+
+      for(;;)
+      {
+        Entry e = openSet.popLowestKeyValue();
+        if ( e == null ) break;
+        OsmNode n = e.node;
+        if ( e.settled || entries.get( n.getIdFromPos() ) != e )
+        {
+          continue; // outdated entry
+        }
+        e.settled = true;
+
+        if ( !n.wasProcessed )
+        {
+          expandHollowLinkTargets( n );
+          nodesMap.removeCompletedNodes();
+        }
+
+        for( OsmLink link = n.firstlink; link != null; link = link.next )
+        {
+          if ( link.descriptionBitmap == null ) continue; // reverse link not found
+          OsmNode target = link.targetNode;
+          if ( target.isHollow() ) continue; // border node?
+          if ( target.firstlink == null ) continue; // dead end
+
+          // forward: traverse the link, backward: traverse its counter-direction
+          boolean inverse = forward ? link.counterLinkWritten : !link.counterLinkWritten;
+          int linkcost = getLinkCost( n, link, inverse, true );
+          if ( linkcost >= 0 )
+          {
+            relax( openSet, entries, target, e.cost + linkcost );
+          }
+        }
+      }
+      return entries;
+    }
+    finally
+    {
+      closeCache();
+    }
+  }
+
+  private static void relax( SortedHeap<Entry> openSet, LongObjectMap<Entry> entries, OsmNode n, int cost )
+  {
+    long id = n.getIdFromPos();
+    Entry e = entries.get( id );
+    if ( e != null && ( e.settled || e.cost <= cost ) )
+    {
+      return;
+    }
+    e = new Entry();
+    e.node = n;
+    e.cost = cost;
+    entries.put( id, e );
+    openSet.add( cost, e );
+  }
+}
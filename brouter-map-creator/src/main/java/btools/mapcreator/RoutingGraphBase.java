@@ -0,0 +1,233 @@
+package btools.mapcreator;
+
+import java.io.File;
+import java.util.TreeMap;
+
+import btools.expressions.BExpressionContext;
+import btools.expressions.BExpressionMetaData;
+import btools.mapaccess.NodesCache;
+import btools.mapaccess.OsmLink;
+import btools.mapaccess.OsmNode;
+import btools.mapaccess.OsmNodesMap;
+import btools.mapaccess.OsmTransferNode;
+import btools.mapaccess.SegmentStamps;
+
+/**
+ * common base class for the tools that pre-process
+ * the routing graph of the rd5 (or cd5) segments
+ * for a given profile
+ *
+ * @author ab
+ */
+public abstract class RoutingGraphBase
+{
+  protected String segmentDir;
+  protected BExpressionContext expctxWay;
+  protected BExpressionContext expctxNode;
+
+  private int lookupVersion;
+  private int lookupMinorVersion;
+  private boolean readVarLength;
+  private boolean carMode;
+  private boolean forceSecondaryData;
+
+  protected OsmNodesMap nodesMap;
+  protected NodesCache nodesCache;
+
+  // the data files read so far, per file-base
+  private TreeMap<String,String> fileStamps = new TreeMap<String,String>();
+
+  protected void readProfile( File segmentDir, File lookupFile, File profileFile ) throws Exception
+  {
+    this.segmentDir = segmentDir.getAbsolutePath();
+
+    BExpressionMetaData meta = new BExpressionMetaData();
+    BExpressionContext expctxGlobal = new BExpressionContext( "global", meta );
+    expctxWay = new BExpressionContext( "way", meta );
+    expctxNode = new BExpressionContext( "node", meta );
+    meta.readMetaData( lookupFile );
+
+    lookupVersion = meta.lookupVersion;
+    lookupMinorVersion = meta.lookupMinorVersion;
+    readVarLength = meta.readVarLength;
+
+    expctxGlobal.parseFile( profileFile, null );
+    expctxGlobal.evaluate( new int[0] );
+    carMode = 0.f != expctxGlobal.getVariableValue( "validForCars", 0.f );
+    forceSecondaryData = 0.f != expctxGlobal.getVariableValue( "forceSecondaryData", 0.f );
+
+    expctxWay.parseFile( profileFile, "global" );
+    expctxNode.parseFile( profileFile, "global" );
+  }
+
+  protected static String getProfileName( File profileFile )
+  {
+    String profileName = profileFile.getName();
+    if ( profileName.endsWith( ".brf" ) ) profileName = profileName.substring( 0, profileName.length() - 4 );
+    return profileName;
+  }
+
+  protected void openCache()
+  {
+    nodesMap = new OsmNodesMap();
+    nodesCache = new NodesCache( segmentDir, nodesMap, lookupVersion, lookupMinorVersion, readVarLength, carMode, forceSecondaryData, null );
+  }
+
+  protected void closeCache()
+  {
+    nodesCache.addFileStamps( fileStamps );
+    nodesCache.close();
+    nodesCache = null;
+    nodesMap = null;
+  }
+
+  /**
+   * @return the identities of the data files read so far
+   */
+  protected SegmentStamps getSegmentStamps()
+  {
+    return new SegmentStamps( fileStamps );
+  }
+
+  /**
+   * @return the id of the routable node next to the given position, or -1
+   */
+  protected long findSeedNode( double seedLon, double seedLat )
+  {
+    int ilon = 180000000 + (int)(seedLon*1000000 + 0.5);
+    int ilat = 90000000 + (int)(seedLat*1000000 + 0.5);
+    openCache();
+    try
+    {
+      if ( nodesCache.loadSegmentFor( ilon, ilat ) == 0 ) return -1;
+      long bestId = -1;
+      double bestDist = Double.MAX_VALUE;
+      for( OsmNode n : nodesCache.getAllNodes() )
+      {
+        if ( !nodesCache.obtainNonHollowNode( n ) || n.firstlink == null ) continue;
+        double dlon = n.ilon - ilon;
+        double dlat = n.ilat - ilat;
+        double d = dlon*dlon + dlat*dlat;
+        if ( d < bestDist )
+        {
+          bestDist = d;
+          bestId = n.getIdFromPos();
+        }
+      }
+      return bestId;
+    }
+    finally
+    {
+      closeCache();
+    }
+  }
+
+  /**
+   * Get the cost for traversing the given link from n to its target. With
+   * lowerBound, that's a lower bound for the routing cost using just the
+   * minimum of costfactor, uphill- and downhill-costfactor, else it's
+   * the plain costfactor plus the node-cost of the target, ignoring
+   * turn-, elevation- and initial-costs
+   *
+   * @param inverse evaluate the way-tags for the counter-direction
+   * @return the cost, or -1 if not allowed at all
+   */
+  protected int getLinkCost( OsmNode n, OsmLink link, boolean inverse, boolean lowerBound )
+  {
+    int lon1 = n.ilon;
+    int lat1 = n.ilat;
+    int cost = 0;
+    OsmTransferNode transferNode = link.decodeFirsttransfer();
+    for(;;)
+    {
+      int lon2;
+      int lat2;
+      byte[] description;
+      if ( transferNode == null )
+      {
+        lon2 = link.targetNode.ilon;
+        lat2 = link.targetNode.ilat;
+        description = link.descriptionBitmap;
+      }
+      else
+      {
+        lon2 = transferNode.ilon;
+        lat2 = transferNode.ilat;
+        description = transferNode.descriptionBitmap;
+      }
+
+      expctxWay.evaluate( inverse, description, null );
+      float cf = expctxWay.getCostfactor();
+      if ( lowerBound )
+      {
+        float cfup = expctxWay.getUphillCostfactor();
+        float cfdown = expctxWay.getDownhillCostfactor();
+        if ( cfup != 0.f && cfup < cf ) cf = cfup;
+        if ( cfdown != 0.f && cfdown < cf ) cf = cfdown;
+      }
+      if ( cf > 9999. )
+      {
+        return -1;
+      }
+
+      int dist = OsmNode.calcDistance( lon1, lat1, lon2, lat2 );
+      if ( lowerBound )
+      {
+        // distances are not exactly symmetric, so stay 1m below
+        dist--;
+        if ( dist > 0 && cf > 0.f )
+        {
+          cost += (int)(dist * cf);
+        }
+      }
+      else
+      {
+        cost += (int)(dist * cf + 0.5f);
+      }
+
+      if ( transferNode == null )
+      {
+        break;
+      }
+      lon1 = lon2;
+      lat1 = lat2;
+      transferNode = transferNode.next;
+    }
+
+    OsmNode target = link.targetNode;
+    if ( !lowerBound && target.nodeDescription != null )
+    {
+      expctxNode.evaluate( expctxWay.getNodeAccessGranted() != 0. , target.nodeDescription, null );
+      float initialcost = expctxNode.getInitialcost();
+      if ( initialcost >= 1000000. )
+      {
+        return -1;
+      }
+      cost += (int)initialcost;
+    }
+    return cost;
+  }
+
+  // expand hollow link targets and resolve reverse links
+  protected void expandHollowLinkTargets( OsmNode n )
+  {
+    for( OsmLink link = n.firstlink; link != null; link = link.next )
+    {
+      if ( ! nodesCache.obtainNonHollowNode( link.targetNode ) )
+      {
+        continue;
+      }
+
+      if ( link.counterLinkWritten )
+      {
+        OsmLink rlink = link.targetNode.getReverseLink( n.getILon(), n.getILat() );
+        if ( rlink != null )
+        {
+          link.descriptionBitmap = rlink.descriptionBitmap;
+          link.firsttransferBytes = rlink.firsttransferBytes;
+        }
+      }
+    }
+    n.wasProcessed = true;
+  }
+}
@@ -0,0 +1,380 @@
+package btools.mapcreator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import btools.mapaccess.LandmarkTable;
+import btools.mapaccess.OsmLink;
+import btools.mapaccess.OsmNode;
+import btools.mapaccess.ShortcutGraph;
+import btools.util.LongObjectMap;
+import btools.util.SortedHeap;
+
+/**
+ * ShortcutBuilder contracts the routing graph of a profile
+ * into a shortcut graph (contraction hierarchy) for the
+ * long-distance mode of the router.
+ *
+ * The edge costs are static: the plain way-costfactors times
+ * the distance plus the node-costs of the target node. Turn-,
+ * elevation- and initial-costs depend on the path and are left
+ * to the detailed routing along the unpacked shortcut path.
+ *
+ * Nodes are contracted by the edge difference plus the number of
+ * already contracted neighbours, with lazy updates. The witness
+ * search is limited, so some superfluous shortcuts may be added,
+ * which does no harm except for the size.
+ *
+ * @author ab
+ */
+public class ShortcutBuilder extends RoutingGraphBase
+{
+  private static final int WITNESS_SETTLE_LIMIT = 500;
+  private static final int INFINITE = Integer.MAX_VALUE;
+
+  private static final class Edge
+  {
+    int other; // the target for out-edges, the source for in-edges
+    int cost;
+    int middle;
+
+    Edge( int other, int cost, int middle )
+    {
+      this.other = other;
+      this.cost = cost;
+      this.middle = middle;
+    }
+  }
+
+  private static final class Node
+  {
+    long id;
+    int index;
+    ArrayList<Edge> out = new ArrayList<Edge>( 4 );
+    ArrayList<Edge> in = new ArrayList<Edge>( 4 );
+    int rank = -1;
+    int contractedNeighbours;
+  }
+
+  private ArrayList<Node> nodes = new ArrayList<Node>();
+  private LongObjectMap<Node> nodesById = new LongObjectMap<Node>( 65536 );
+
+  // witness search state, reset via the touched list
+  private int[] witnessCost;
+  private int[] touched;
+  private int ntouched;
+
+  private int nshortcuts;
+
+  public static void main(String[] args) throws Exception
+  {
+    System.out.println("*** ShortcutBuilder: create the shortcut graph for a profile");
+    if (args.length != 5)
+    {
+      System.out.println("usage: java ShortcutBuilder <segment-dir> <lookup-file> <profile-file> <seed-lon> <seed-lat>");
+      return;
+    }
+    new ShortcutBuilder().process( new File( args[0] ), new File( args[1] ), new File( args[2] ),
+            Double.parseDouble( args[3] ), Double.parseDouble( args[4] ) );
+  }
+
+  public void process( File segmentDir, File lookupFile, File profileFile, double seedLon, double seedLat ) throws Exception
+  {
+    readProfile( segmentDir, lookupFile, profileFile );
+
+    long seedId = findSeedNode( seedLon, seedLat );
+    if ( seedId == -1 ) throw new IllegalArgumentException( "no routable node next to the seed position" );
+
+    loadGraph( seedId );
+    int nedges = 0;
+    for( Node n : nodes ) nedges += n.out.size();
+    System.out.println( "loaded " + nodes.size() + " nodes and " + nedges + " edges" );
+
+    contract();
+    System.out.println( "contracted with " + nshortcuts + " shortcuts" );
+
+    File outFile = ShortcutGraph.getFile( this.segmentDir, getProfileName( profileFile ) );
+    outFile.getParentFile().mkdirs();
+    createShortcutGraph( LandmarkTable.getProfileChecksum( profileFile ) ).writeTo( outFile );
+    System.out.println( "wrote " + outFile );
+  }
+
+  private Node getNode( long id )
+  {
+    Node n = nodesById.get( id );
+    if ( n == null )
+    {
+      n = new Node();
+      n.id = id;
+      n.index = nodes.size();
+      nodesById.put( id, n );
+      nodes.add( n );
+    }
+    return n;
+  }
+
+  // load the graph reachable from the seed, following the links in both directions
+  private void loadGraph( long seedId )
+  {
+    openCache();
+    try
+    {
+      OsmNode seed = new OsmNode( seedId );
+      seed.setHollow();
+      nodesMap.put( seedId, seed );
+      nodesCache.obtainNonHollowNode( seed );
+
+      ArrayList<OsmNode> stack = new ArrayList<OsmNode>();
+      stack.add( seed );
+      getNode( seedId );
+      while( !stack.isEmpty() )
+      {
+        OsmNode n = stack.remove( stack.size()-1 );
+        if ( !n.wasProcessed )
+        {
+          expandHollowLinkTargets( n );
+        }
+        int source = nodesById.get( n.getIdFromPos() ).index;
+        for( OsmLink link = n.firstlink; link != null; link = link.next )
+        {
+          if ( link.descriptionBitmap == null ) continue; // reverse link not found
+          OsmNode target = link.targetNode;
+          if ( target.isHollow() ) continue; // border node?
+          if ( target.firstlink == null ) continue; // dead end
+
+          long targetId = target.getIdFromPos();
+          Node t = nodesById.get( targetId );
+          if ( t == null )
+          {
+            t = getNode( targetId );
+            stack.add( target );
+          }
+          int cost = getLinkCost( n, link, link.counterLinkWritten, false );
+          if ( cost >= 0 )
+          {
+            addEdge( source, t.index, cost, -1 );
+          }
+        }
+        nodesMap.removeCompletedNodes();
+      }
+    }
+    finally
+    {
+      closeCache();
+    }
+  }
+
+  private void addEdge( int from, int to, int cost, int middle )
+  {
+    nodes.get( from ).out.add( new Edge( to, cost, middle ) );
+    nodes.get( to ).in.add( new Edge( from, cost, middle ) );
+  }
+
+  private void contract()
+  {
+    int n = nodes.size();
+    witnessCost = new int[n];
+    Arrays.fill( witnessCost, INFINITE );
+    touched = new int[n];
+
+    PriorityQueue<Long> queue = new PriorityQueue<Long>( n );
+    for( int v=0; v<n; v++ )
+    {
+      queue.add( Long.valueOf( queueKey( getPriority( v ), v ) ) );
+    }
+
+    int rank = 0;
+    while( !queue.isEmpty() )
+    {
+      int v = (int)( queue.poll().longValue() & 0xffffffffL );
+
+      // lazy update: re-queue if no longer the best
+      int priority = getPriority( v );
+      if ( !queue.isEmpty() && queueKey( priority, v ) > queue.peek().longValue() )
+      {
+        queue.add( Long.valueOf( queueKey( priority, v ) ) );
+        continue;
+      }
+
+      nshortcuts += contractNode( v, false );
+      Node nv = nodes.get( v );
+      nv.rank = rank++;
+      for( Edge e : nv.out ) nodes.get( e.other ).contractedNeighbours++;
+      for( Edge e : nv.in ) nodes.get( e.other ).contractedNeighbours++;
+    }
+  }
+
+  private static long queueKey( int priority, int v )
+  {
+    return ( (long)( priority + 0x40000000 ) << 32 ) | v;
+  }
+
+  private int getPriority( int v )
+  {
+    Node nv = nodes.get( v );
+    int removed = 0;
+    for( Edge e : nv.out ) if ( nodes.get( e.other ).rank < 0 ) removed++;
+    for( Edge e : nv.in ) if ( nodes.get( e.other ).rank < 0 ) removed++;
+    return contractNode( v, true ) - removed + nv.contractedNeighbours;
+  }
+
+  /**
+   * Add the shortcuts needed to remove v from the remaining graph
+   *
+   * @param simulate just count them
+   * @return the number of shortcuts
+   */
+  private int contractNode( int v, boolean simulate )
+  {
+    Node nv = nodes.get( v );
+    int count = 0;
+    for( Edge in : nv.in )
+    {
+      int u = in.other;
+      if ( u == v || nodes.get( u ).rank >= 0 ) continue;
+
+      int maxCost = -1;
+      for( Edge out : nv.out )
+      {
+        if ( out.other != u && out.other != v && nodes.get( out.other ).rank < 0 )
+        {
+          maxCost = Math.max( maxCost, in.cost + out.cost );
+        }
+      }
+      if ( maxCost < 0 ) continue;
+
+      witnessSearch( u, v, maxCost );
+      for( Edge out : nv.out )
+      {
+        int w = out.other;
+        if ( w == u || w == v || nodes.get( w ).rank >= 0 ) continue;
+        int cost = in.cost + out.cost;
+        if ( witnessCost[w] <= cost ) continue;
+
+        touch( w, cost ); // no second shortcut for parallel edges
+        count++;
+        if ( !simulate )
+        {
+          addEdge( u, w, cost, v );
+        }
+      }
+      resetWitnessSearch();
+    }
+    return count;
+  }
+
+  // limited dijkstra from u in the remaining graph without v
+  private void witnessSearch( int u, int v, int maxCost )
+  {
+    SortedHeap<int[]> openSet = new SortedHeap<int[]>();
+    touch( u, 0 );
+    openSet.add( 0, new int[]{ u, 0 } );
+    int settled = 0;
+    for(;;)
+    {
+      int[] entry = openSet.popLowestKeyValue();
+      if ( entry == null ) break;
+      int cost = entry[1];
+      if ( cost != witnessCost[entry[0]] ) continue; // outdated entry
+      if ( cost > maxCost || ++settled > WITNESS_SETTLE_LIMIT ) break;
+      for( Edge e : nodes.get( entry[0] ).out )
+      {
+        int w = e.other;
+        if ( w == v || nodes.get( w ).rank >= 0 ) continue;
+        int c = cost + e.cost;
+        if ( c < witnessCost[w] )
+        {
+          touch( w, c );
+          openSet.add( c, new int[]{ w, c } );
+        }
+      }
+    }
+  }
+
+  private void touch( int idx, int cost )
+  {
+    if ( witnessCost[idx] == INFINITE )
+    {
+      touched[ntouched++] = idx;
+    }
+    witnessCost[idx] = cost;
+  }
+
+  private void resetWitnessSearch()
+  {
+    for( int i=0; i<ntouched; i++ )
+    {
+      witnessCost[touched[i]] = INFINITE;
+    }
+    ntouched = 0;
+  }
+
+  private ShortcutGraph createShortcutGraph( int profileChecksum )
+  {
+    int n = nodes.size();
+
+    // order by node id
+    long[] nodeIds = new long[n];
+    for( int i=0; i<n; i++ ) nodeIds[i] = nodes.get( i ).id;
+    Arrays.sort( nodeIds );
+    int[] newIndex = new int[n];
+    for( int i=0; i<n; i++ ) newIndex[i] = Arrays.binarySearch( nodeIds, nodes.get( i ).id );
+
+    int[] ranks = new int[n];
+    int[] upCount = new int[n];
+    int[] downCount = new int[n];
+    for( int i=0; i<n; i++ )
+    {
+      Node ni = nodes.get( i );
+      ranks[newIndex[i]] = ni.rank;
+      for( Edge e : ni.out )
+      {
+        if ( ni.rank < nodes.get( e.other ).rank ) upCount[newIndex[i]]++;
+        else downCount[newIndex[e.other]]++;
+      }
+    }
+    int[] upStart = new int[n+1];
+    int[] downStart = new int[n+1];
+    for( int i=0; i<n; i++ )
+    {
+      upStart[i+1] = upStart[i] + upCount[i];
+      downStart[i+1] = downStart[i] + downCount[i];
+    }
+    int[] upTarget = new int[upStart[n]];
+    int[] upCost = new int[upStart[n]];
+    int[] upMiddle = new int[upStart[n]];
+    int[] downSource = new int[downStart[n]];
+    int[] downCost = new int[downStart[n]];
+    int[] downMiddle = new int[downStart[n]];
+    int[] upPos = new int[n];
+    int[] downPos = new int[n];
+    for( int i=0; i<n; i++ )
+    {
+      Node ni = nodes.get( i );
+      int from = newIndex[i];
+      for( Edge e : ni.out )
+      {
+        int to = newIndex[e.other];
+        int middle = e.middle < 0 ? -1 : newIndex[e.middle];
+        if ( ni.rank < nodes.get( e.other ).rank )
+        {
+          int p = upStart[from] + upPos[from]++;
+          upTarget[p] = to;
+          upCost[p] = e.cost;
+          upMiddle[p] = middle;
+        }
+        else
+        {
+          int p = downStart[to] + downPos[to]++;
+          downSource[p] = from;
+          downCost[p] = e.cost;
+          downMiddle[p] = middle;
+        }
+      }
+    }
+    return new ShortcutGraph( nodeIds, ranks, upStart, upTarget, upCost, upMiddle,
+                              downStart, downSource, downCost, downMiddle, profileChecksum, getSegmentStamps() );
+  }
+}
@@ -73,5 +73,11 @@ public class MapcreatorTest
     carsubset.mkdir();
     File profileCarFile = new File( profileDir, "car-test.brf" );
     new WayLinker().process( unodes55, waytiles55, bordernodes, lookupFile, profileCarFile, carsubset, "cd5" );
+
+    // run LandmarkBuilder
+    new LandmarkBuilder().process( segments, lookupFile, new File( profileDir, "trekking.brf" ), 8.72, 50.0, 8 );
+
+    // run ShortcutBuilder
+    new ShortcutBuilder().process( segments, lookupFile, profileCarFile, 8.72, 50.0 );
   }
 }
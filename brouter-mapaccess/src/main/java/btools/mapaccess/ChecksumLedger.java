@@ -0,0 +1,246 @@
+/**
+ * Record of the verified checksums of a data file
+ *
+ * The file header, the sub-indexes and the micro-tiles of a file need
+ * to be checked only once, not again for every request that opens it.
+ * A file is identified by it's size, modification time and the
+ * creation time written by the map-creator, so a replaced file starts
+ * with an empty record. There is one record per canonical path, the
+ * record of a replaced file is dropped. The records live for the
+ * process lifetime and, if the system property "persistChecksumLedger" is set, also in a
+ * sidecar file next to the data file, so each byte is verified once
+ * per deployment. The system property "disableChecksumCache" switches
+ * the records off. The explicit integrity check uses an empty record
+ * that never records, so it checks every byte each time.
+ *
+ * @author ab
+ */
+package btools.mapaccess;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+
+final class ChecksumLedger
+{
+  private static final boolean enabled = !Boolean.getBoolean( "disableChecksumCache" );
+  private static final boolean persistent = Boolean.getBoolean( "persistChecksumLedger" );
+
+  private static final int MAGIC = 0x42524c31; // "BRL1"
+
+  // keyed by canonical path
+  private static HashMap<String,ChecksumLedger> ledgers = new HashMap<String,ChecksumLedger>();
+
+  private static final ChecksumLedger unchecked = new ChecksumLedger();
+
+  private File sidecar;
+  private long fileSize;
+  private long lastModified;
+  private long creationTime;
+
+  private boolean headerVerified;
+  private int subIndexesVerified; // bit per tile-index
+  private BitSet tilesVerified = new BitSet( 25*6400 );
+  private boolean dirty;
+  private boolean recording;
+
+  /**
+   * Get the record for the given file, reading the sidecar if enabled
+   */
+  static synchronized ChecksumLedger forFile( File f, long creationTime ) throws IOException
+  {
+    String path = f.getCanonicalPath();
+    ChecksumLedger ledger = ledgers.get( path );
+    if ( ledger == null || !ledger.isFor( f, creationTime ) )
+    {
+      ledger = new ChecksumLedger( f, creationTime );
+      if ( enabled )
+      {
+        ledgers.put( path, ledger ); // replaces the record of an older file
+      }
+    }
+    return ledger;
+  }
+
+  /**
+   * @return a record that is always empty and is never saved
+   */
+  static ChecksumLedger unchecked()
+  {
+    return unchecked;
+  }
+
+  private ChecksumLedger()
+  {
+  }
+
+  private ChecksumLedger( File f, long creationTime )
+  {
+    recording = enabled;
+    fileSize = f.length();
+    lastModified = f.lastModified();
+    this.creationTime = creationTime;
+    if ( enabled && persistent )
+    {
+      sidecar = new File( f.getPath() + ".crc" );
+      readSidecar();
+    }
+  }
+
+  private boolean isFor( File f, long creationTime )
+  {
+    return f.length() == fileSize && f.lastModified() == lastModified && creationTime == this.creationTime;
+  }
+
+  synchronized boolean isHeaderVerified()
+  {
+    return headerVerified;
+  }
+
+  synchronized void setHeaderVerified()
+  {
+    if ( recording && !headerVerified )
+    {
+      headerVerified = true;
+      dirty = true;
+    }
+  }
+
+  synchronized boolean isSubIndexVerified( int tileIndex )
+  {
+    return ( subIndexesVerified & ( 1 << tileIndex ) ) != 0;
+  }
+
+  synchronized void setSubIndexVerified( int tileIndex )
+  {
+    if ( recording && !isSubIndexVerified( tileIndex ) )
+    {
+      subIndexesVerified |= 1 << tileIndex;
+      dirty = true;
+    }
+  }
+
+  synchronized boolean isTileVerified( int tileIndex, int subIdx )
+  {
+    return tilesVerified.get( tileIndex*6400 + subIdx );
+  }
+
+  synchronized void setTileVerified( int tileIndex, int subIdx )
+  {
+    if ( recording && !isTileVerified( tileIndex, subIdx ) )
+    {
+      tilesVerified.set( tileIndex*6400 + subIdx );
+      dirty = true;
+    }
+  }
+
+  /**
+   * Write the sidecar file, if enabled and changed. Errors are
+   * ignored, the sidecar is just a shortcut.
+   */
+  synchronized void save()
+  {
+    if ( sidecar == null || !dirty )
+    {
+      return;
+    }
+    dirty = false;
+    File tmp = new File( sidecar.getPath() + ".tmp" );
+    DataOutputStream dos = null;
+    try
+    {
+      dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+      dos.writeInt( MAGIC );
+      dos.writeLong( fileSize );
+      dos.writeLong( lastModified );
+      dos.writeLong( creationTime );
+      dos.writeBoolean( headerVerified );
+      dos.writeInt( subIndexesVerified );
+      long[] bits = toLongs( tilesVerified );
+      dos.writeInt( bits.length );
+      for( long l : bits )
+      {
+        dos.writeLong( l );
+      }
+      dos.close();
+      dos = null;
+      sidecar.delete();
+      tmp.renameTo( sidecar );
+    }
+    catch( IOException ioe )
+    {
+      // read-only directory?
+    }
+    finally
+    {
+      if ( dos != null ) try { dos.close(); } catch( IOException ioe ) {}
+      tmp.delete();
+    }
+  }
+
+  private void readSidecar()
+  {
+    if ( !sidecar.exists() )
+    {
+      return;
+    }
+    DataInputStream dis = null;
+    try
+    {
+      dis = new DataInputStream( new BufferedInputStream( new FileInputStream( sidecar ) ) );
+      if ( dis.readInt() != MAGIC || dis.readLong() != fileSize || dis.readLong() != lastModified || dis.readLong() != creationTime )
+      {
+        return; // for another version of the file
+      }
+      boolean header = dis.readBoolean();
+      int subIndexes = dis.readInt();
+      long[] bits = new long[dis.readInt()];
+      for( int i=0; i<bits.length; i++ )
+      {
+        bits[i] = dis.readLong();
+      }
+      headerVerified = header;
+      subIndexesVerified = subIndexes;
+      tilesVerified = fromLongs( bits );
+    }
+    catch( IOException ioe )
+    {
+      // unreadable sidecar, start over
+    }
+    finally
+    {
+      if ( dis != null ) try { dis.close(); } catch( IOException ioe ) {}
+    }
+  }
+
+  // BitSet.toLongArray is not available on older platforms
+  private static long[] toLongs( BitSet bs )
+  {
+    long[] bits = new long[( bs.length() + 63 ) / 64];
+    for( int i = bs.nextSetBit( 0 ); i >= 0; i = bs.nextSetBit( i+1 ) )
+    {
+      bits[i >> 6] |= 1L << ( i & 63 );
+    }
+    return bits;
+  }
+
+  private static BitSet fromLongs( long[] bits )
+  {
+    BitSet bs = new BitSet( 25*6400 );
+    for( int i=0; i<64*bits.length; i++ )
+    {
+      if ( ( bits[i >> 6] & ( 1L << ( i & 63 ) ) ) != 0 )
+      {
+        bs.set( i );
+      }
+    }
+    return bs;
+  }
+}
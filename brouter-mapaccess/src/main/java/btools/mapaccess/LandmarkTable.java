@@ -0,0 +1,256 @@
+/**
+ * Landmark distance table for the ALT heuristic
+ *
+ * For a set of landmark nodes it holds lower bounds for the cost
+ * from each landmark to every node and from every node to each
+ * landmark. By the triangle inequality, the cost from v to t is
+ * at least d(L,t)-d(L,v) and d(v,L)-d(t,L) for every landmark L.
+ *
+ * The tables are created per profile by the map-creator and
+ * stored in the "landmarks" subdirectory of the segments. A table
+ * is valid only for the data files it was built from, see
+ * SegmentStamps.
+ *
+ * @author ab
+ */
+package btools.mapaccess;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import btools.util.Crc32;
+
+public final class LandmarkTable
+{
+  public static final int UNREACHABLE = -1;
+
+  private static final long MAGIC_V1 = 0x4c4d4b5441424c31L; // "LMKTABL1", without segment stamps
+  private static final long MAGIC = 0x4c4d4b5441424c32L; // "LMKTABL2"
+
+  private static HashMap<String,LandmarkTable> cache = new HashMap<String,LandmarkTable>();
+
+  private int profileChecksum;
+  private SegmentStamps segmentStamps;
+  private long[] landmarkIds;
+  private long[] nodeIds; // sorted
+  private int[] distances; // per node: the costs from all landmarks, then the costs to all landmarks
+  private int nlandmarks;
+
+  private long lastModified;
+
+  /**
+   * @param nodeIds the node ids in ascending order
+   * @param distances per node 2*landmarkIds.length costs, see class comment
+   */
+  public LandmarkTable( long[] landmarkIds, long[] nodeIds, int[] distances, int profileChecksum, SegmentStamps segmentStamps )
+  {
+    if ( distances.length != nodeIds.length * 2 * landmarkIds.length )
+    {
+      throw new IllegalArgumentException( "distances do not match node- and landmark-count" );
+    }
+    this.landmarkIds = landmarkIds;
+    this.nodeIds = nodeIds;
+    this.distances = distances;
+    this.profileChecksum = profileChecksum;
+    this.segmentStamps = segmentStamps;
+    this.nlandmarks = landmarkIds.length;
+  }
+
+  /**
+   * @return the landmark file for the given profile
+   */
+  public static File getFile( String segmentDir, String profileName )
+  {
+    return new File( new File( segmentDir, "landmarks" ), profileName + ".lmk" );
+  }
+
+  /**
+   * @return the checksum of the profile file, to check if a table is up to date
+   */
+  public static int getProfileChecksum( File profileFile )
+  {
+    try
+    {
+      byte[] ab = new byte[(int)profileFile.length()];
+      DataInputStream dis = new DataInputStream( new FileInputStream( profileFile ) );
+      try
+      {
+        dis.readFully( ab );
+      }
+      finally
+      {
+        dis.close();
+      }
+      return Crc32.crc( ab, 0, ab.length );
+    }
+    catch( IOException e )
+    {
+      throw new RuntimeException( "error reading profile " + profileFile + ": " + e );
+    }
+  }
+
+  /**
+   * Get the table from the given file, re-using a loaded one
+   * if the file did not change
+   *
+   * @return the table, or null if the file does not exist
+   */
+  public static LandmarkTable getCached( File file )
+  {
+    if ( !file.exists() )
+    {
+      return null;
+    }
+    String key = file.getAbsolutePath();
+    long lastModified = file.lastModified();
+    synchronized( cache )
+    {
+      LandmarkTable lt = cache.get( key );
+      if ( lt == null || lt.lastModified != lastModified )
+      {
+        lt = readFrom( file );
+        lt.lastModified = lastModified;
+        cache.put( key, lt );
+      }
+      return lt;
+    }
+  }
+
+  public static LandmarkTable readFrom( File file )
+  {
+    try
+    {
+      DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+      try
+      {
+        long magic = dis.readLong();
+        if ( magic != MAGIC && magic != MAGIC_V1 ) throw new IllegalArgumentException( "not a landmark file: " + file );
+        int profileChecksum = dis.readInt();
+        SegmentStamps segmentStamps = magic == MAGIC ? SegmentStamps.readFrom( dis ) : SegmentStamps.UNKNOWN;
+        long[] landmarkIds = new long[dis.readInt()];
+        for( int i=0; i<landmarkIds.length; i++ )
+        {
+          landmarkIds[i] = dis.readLong();
+        }
+        int nnodes = dis.readInt();
+        int rowSize = 2*landmarkIds.length;
+        long[] nodeIds = new long[nnodes];
+        int[] distances = new int[nnodes*rowSize];
+        for( int n=0; n<nnodes; n++ )
+        {
+          nodeIds[n] = dis.readLong();
+          for( int i=n*rowSize; i<(n+1)*rowSize; i++ )
+          {
+            distances[i] = dis.readInt();
+          }
+        }
+        return new LandmarkTable( landmarkIds, nodeIds, distances, profileChecksum, segmentStamps );
+      }
+      finally
+      {
+        dis.close();
+      }
+    }
+    catch( IOException e )
+    {
+      throw new RuntimeException( "error reading landmark file " + file + ": " + e );
+    }
+  }
+
+  public void writeTo( File file ) throws IOException
+  {
+    DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+    try
+    {
+      dos.writeLong( MAGIC );
+      dos.writeInt( profileChecksum );
+      segmentStamps.writeTo( dos );
+      dos.writeInt( nlandmarks );
+      for( long id : landmarkIds )
+      {
+        dos.writeLong( id );
+      }
+      dos.writeInt( nodeIds.length );
+      int rowSize = 2*nlandmarks;
+      for( int n=0; n<nodeIds.length; n++ )
+      {
+        dos.writeLong( nodeIds[n] );
+        for( int i=n*rowSize; i<(n+1)*rowSize; i++ )
+        {
+          dos.writeInt( distances[i] );
+        }
+      }
+    }
+    finally
+    {
+      dos.close();
+    }
+  }
+
+  public int getProfileChecksum()
+  {
+    return profileChecksum;
+  }
+
+  public SegmentStamps getSegmentStamps()
+  {
+    return segmentStamps;
+  }
+
+  public int getLandmarkCount()
+  {
+    return nlandmarks;
+  }
+
+  public int getNodeCount()
+  {
+    return nodeIds.length;
+  }
+
+  /**
+   * @return the table index of the given node, or -1 if not contained
+   */
+  public int indexOf( long nodeId )
+  {
+    int idx = Arrays.binarySearch( nodeIds, nodeId );
+    return idx < 0 ? -1 : idx;
+  }
+
+  /**
+   * Get the lower bound for the cost between two nodes
+   *
+   * @param from the table index of the source node
+   * @param to the table index of the target node
+   */
+  public int getLowerBound( int from, int to )
+  {
+    int k = nlandmarks;
+    int fo = from*2*k;
+    int to0 = to*2*k;
+    int bound = 0;
+    for( int i=0; i<k; i++ )
+    {
+      int dlf = distances[fo+i];
+      int dlt = distances[to0+i];
+      if ( dlf != UNREACHABLE && dlt != UNREACHABLE && dlt - dlf > bound )
+      {
+        bound = dlt - dlf;
+      }
+      int dfl = distances[fo+k+i];
+      int dtl = distances[to0+k+i];
+      if ( dfl != UNREACHABLE && dtl != UNREACHABLE && dfl - dtl > bound )
+      {
+        bound = dfl - dtl;
+      }
+    }
+    return bound;
+  }
+}
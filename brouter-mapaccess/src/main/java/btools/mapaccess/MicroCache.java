@@ -5,8 +5,8 @@
  */
 package btools.mapaccess;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import btools.util.ByteDataReader;
@@ -15,7 +15,7 @@ import btools.util.Crc32;
 final class MicroCache extends ByteDataReader
 {
   private long[] faid;
-  private int[] fapos;
+  private int[] fapos; // start of the node entries, with id and body size
   private int size = 0;
   private int delcount = 0;
   private int delbytes = 0;
@@ -26,104 +26,155 @@ final class MicroCache extends ByteDataReader
   // the object parsing position and length
   private int aboffsetEnd;
 
+  // the end of the node entries in the raw data
+  private int dataEnd;
+
+  // the raw data is indexed and checked on first access
+  private boolean indexed;
+  private OsmFile sourceFile;
+  private int subIdx;
+  private int lonIdxBase;
+  private int latIdxBase;
+
   // cache control: a virgin cache can be
   // put to ghost state for later recovery
   boolean virgin = true;
   boolean ghost = false;
 
-  public MicroCache( OsmFile segfile, int lonIdx80, int latIdx80, byte[] iobuffer, boolean readVarLength ) throws Exception
+  // eviction control: the owning file, the tile-key (lonIdx80/latIdx80),
+  // the size accounted in the cache and the reference-bit of the clock
+  OsmFile osmFile;
+  long tileKey;
+  int memorySize;
+  boolean referenced;
+
+  /**
+   * Read the raw data of a micro-tile. The data is kept as read,
+   * the node bodies are located in place when first accessed.
+   */
+  public MicroCache( OsmFile segfile, int lonIdx80, int latIdx80, boolean readVarLength ) throws Exception
   {
-	 super( null );
-	 this.readVarLength = readVarLength;
-	  
-     int lonDegree = lonIdx80/80;
-     int latDegree = latIdx80/80;
-
-     int lonIdxBase = (lonIdx80/5)*62500 + 31250;
-     int latIdxBase = (latIdx80/5)*62500 + 31250;
-
-     int subIdx = (latIdx80-80*latDegree)*80 + (lonIdx80-80*lonDegree);
-
-     {
-       ab = iobuffer;
-       int asize = segfile.getDataInputForSubIdx(subIdx, ab);
-
-       if ( asize == 0 )
-       {
-         ab = null;
-         return;
-       }
-       if ( asize > iobuffer.length )
-       {
-         ab = new byte[asize];
-         asize = segfile.getDataInputForSubIdx(subIdx, ab);
-       }
-       aboffset = 0;
-       size = readInt();
-       
-       // get net size
-       int nbytes = 0;
-       for(int i = 0; i<size; i++)
-       {
-         int ilon = readShort();
-         int ilat = readShort();
-         int bodySize = readVarLength ? readVarLengthUnsigned() : readInt();
-
-         // kack for the old format crc         
-         if ( !readVarLength && ilon == Short.MAX_VALUE && ilat == Short.MAX_VALUE )
-         {
-           int crc = Crc32.crc( ab, 0, aboffset-8 ); // old format crc
-           if ( crc != readInt() )
-           {
-             throw new IOException( "checkum-error" );
-           }
-           size = i;
-           break;
-         }
-         aboffset += bodySize;
-         nbytes += bodySize;
-       }
-
-       if ( readVarLength ) // new format crc
-       {
-         int crc = Crc32.crc( ab, 0, aboffset );
-         if ( crc != readInt() )
-         {
-             throw new IOException( "checkum error" );
-         }
-       }
-
-       // new array with only net data
-       byte[] nab = new byte[nbytes];
-       aboffset = 4;
-       int noffset = 0;
-       faid = new long[size];
-       fapos = new int[size];
-       p2size = 0x40000000;
-       while( p2size > size ) p2size >>= 1;
-       
-       for(int i = 0; i<size; i++)
-       {
-         int ilon = readShort();
-         int ilat = readShort();
-         ilon += lonIdxBase;
-         ilat += latIdxBase;
-         long nodeId = ((long)ilon)<<32 | ilat;
-
-         faid[i] = nodeId;
-         int bodySize = readVarLength ? readVarLengthUnsigned() : readInt();
-         fapos[i] = noffset;
-         System.arraycopy( ab, aboffset, nab, noffset, bodySize );
-         aboffset += bodySize;
-         noffset += bodySize;
-       }
-
-       ab = nab;
-     }
+    super( null );
+    this.readVarLength = readVarLength;
+
+    int lonDegree = lonIdx80/80;
+    int latDegree = latIdx80/80;
+
+    lonIdxBase = (lonIdx80/5)*62500 + 31250;
+    latIdxBase = (latIdx80/5)*62500 + 31250;
+
+    subIdx = (latIdx80-80*latDegree)*80 + (lonIdx80-80*lonDegree);
+
+    ab = segfile.readDataForSubIdx( subIdx );
+    if ( ab == null )
+    {
+      indexed = true;
+      return;
+    }
+    size = readInt(); // the node count, final when indexed
+    sourceFile = segfile;
+  }
+
+  /**
+   * Create a working copy of a shared template. The raw data
+   * and the id-array are shared, the consumed-flags are private.
+   * The template must be indexed before it is shared.
+   */
+  MicroCache( MicroCache template )
+  {
+    super( template.ab );
+    readVarLength = template.readVarLength;
+    faid = template.faid;
+    fapos = template.fapos == null ? null : template.fapos.clone();
+    size = template.size;
+    p2size = template.p2size;
+    dataEnd = template.dataEnd;
+    indexed = true;
+  }
+
+  /**
+   * Build the id-index of the node entries and verify the checksum,
+   * unless that was done before for this tile of the file
+   */
+  void ensureIndex()
+  {
+    if ( indexed )
+    {
+      return;
+    }
+    boolean checkCrc = !sourceFile.ledger.isTileVerified( sourceFile.tileIndex, subIdx );
+
+    faid = new long[size];
+    fapos = new int[size];
+    aboffset = 4;
+    int n = 0;
+    for( ; n<size; n++ )
+    {
+      int pos = aboffset;
+      int ilon = readShort();
+      int ilat = readShort();
+      int bodySize = readVarLength ? readVarLengthUnsigned() : readInt();
+
+      // kack for the old format crc
+      if ( !readVarLength && ilon == Short.MAX_VALUE && ilat == Short.MAX_VALUE )
+      {
+        if ( checkCrc && Crc32.crc( ab, 0, pos ) != readInt() )
+        {
+          throw new IllegalArgumentException( "checksum error in datafile " + sourceFile.filename );
+        }
+        aboffset = pos;
+        faid = Arrays.copyOf( faid, n );
+        fapos = Arrays.copyOf( fapos, n );
+        break;
+      }
+      faid[n] = ((long)(ilon + lonIdxBase))<<32 | ( ilat + latIdxBase );
+      fapos[n] = pos;
+      aboffset += bodySize;
+    }
+    dataEnd = aboffset;
+
+    if ( readVarLength && checkCrc ) // new format crc
+    {
+      if ( Crc32.crc( ab, 0, dataEnd ) != readInt() )
+      {
+        throw new IllegalArgumentException( "checksum error in datafile " + sourceFile.filename );
+      }
+    }
+    if ( checkCrc )
+    {
+      sourceFile.ledger.setTileVerified( sourceFile.tileIndex, subIdx );
+    }
+
+    size = n;
+    p2size = 0x40000000;
+    while( p2size > size ) p2size >>= 1;
+    sourceFile = null;
+    indexed = true;
+  }
+
+  // set the reader to the body of the node entry at the given position
+  private void setEntry( int pos, int end )
+  {
+    aboffset = pos + 4; // skip the id
+    if ( readVarLength )
+    {
+      readVarLengthUnsigned();
+    }
+    else
+    {
+      aboffset += 4;
+    }
+    aboffsetEnd = end;
+  }
+
+  private int getEntryEnd( int i )
+  {
+    return i+1 < size ? fapos[i+1] & 0x7fffffff : dataEnd;
   }
 
   public int getSize()
   {
+    ensureIndex();
     return size;
   }
   
@@ -132,6 +183,14 @@ final class MicroCache extends ByteDataReader
     return ab == null ? 0 : ab.length;
   }
 
+  /**
+   * @return the estimated memory size of the node data, the id- and position arrays
+   */
+  int getMemorySize()
+  {
+    return 64 + getDataSize() + 12*size;
+  }
+
   /**
    * Set the internal reader (aboffset, ablength)
    * to the body data for the given id
@@ -143,6 +202,7 @@ final class MicroCache extends ByteDataReader
    */
   private boolean getAndClear( long id )
   {
+    ensureIndex();
     if ( size == 0 )
     {
       return false;
@@ -165,11 +225,11 @@ final class MicroCache extends ByteDataReader
     {
       if ( ( fapos[n] & 0x80000000 ) == 0 )
       {
-        aboffset = fapos[n];
-        int ablength = ( n+1 < size ? fapos[n+1] & 0x7fffffff : ab.length ) - aboffset;
-        aboffsetEnd = aboffset + ablength;
+        int pos = fapos[n];
+        int end = getEntryEnd( n );
+        setEntry( pos, end );
         fapos[n] |= 0x80000000; // mark deleted
-        delbytes+= ablength;
+        delbytes += end - pos;
         delcount++;
         return true;
       }
@@ -209,6 +269,8 @@ final class MicroCache extends ByteDataReader
       {
         faid = null;
         fapos = null;
+        ab = null;
+        dataEnd = 0;
       }
       else
       {
@@ -216,14 +278,15 @@ final class MicroCache extends ByteDataReader
         int[] nfapos = new int[nsize];
         int idx = 0;
 
-        byte[] nab = new byte[ab.length - delbytes];
+        // keep the remaining entries, in the raw format
+        byte[] nab = new byte[dataEnd - ( fapos[0] & 0x7fffffff ) - delbytes];
         int nab_off = 0;
         for( int i=0; i<size; i++ )
         {
       	  int pos = fapos[i];
           if ( ( pos & 0x80000000 ) == 0 )
           {
-            int ablength = ( i+1 < size ? fapos[i+1] & 0x7fffffff : ab.length ) - pos;
+            int ablength = getEntryEnd( i ) - pos;
             System.arraycopy( ab, pos, nab, nab_off, ablength );
             nfaid[idx] = faid[i];
             nfapos[idx] = nab_off;
@@ -234,6 +297,7 @@ final class MicroCache extends ByteDataReader
         faid = nfaid;
         fapos = nfapos;
         ab = nab;
+        dataEnd = nab_off;
       }
       size = nsize;
       delcount = 0;
@@ -246,6 +310,10 @@ final class MicroCache extends ByteDataReader
   void unGhost()
   {
     ghost = false;
+    if ( !indexed )
+    {
+      return;
+    }
     delcount = 0;
     delbytes = 0;
     for( int i=0; i<size; i++ )
@@ -256,6 +324,7 @@ final class MicroCache extends ByteDataReader
 
   public List<OsmNode> getPositions( OsmNodesMap nodesMap )
   {
+    ensureIndex();
     ArrayList<OsmNode> positions = new ArrayList<OsmNode>();
 
     for( int i=0; i<size; i++ )
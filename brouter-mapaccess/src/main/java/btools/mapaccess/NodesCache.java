@@ -6,10 +6,15 @@
 package btools.mapaccess;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class NodesCache
 {
@@ -28,14 +33,47 @@ public final class NodesCache
   private byte[] iobuffer;
   
   private OsmFile[][] fileRows;
-  private ArrayList<MicroCache> segmentList = new ArrayList<MicroCache>();
 
   public DistanceChecker distanceChecker;
   
   public boolean oom_carsubset_hint = false;
 
-  private long cacheSum = 0;
+  // the memory limits per cache and for all caches of the process
+  private static long defaultMaxCacheBytes = Runtime.getRuntime().maxMemory() / 4;
+  private static long globalMaxCacheBytes = Long.MAX_VALUE;
+  private static AtomicLong globalCacheBytes = new AtomicLong();
+
+  // estimated size of the sub-index of a file
+  private static final int SUBINDEX_SIZE = 6400*8 + 64;
+
+  // the micro-tiles in the order of a clock for eviction, with holes
+  private ArrayList<MicroCache> residentTiles = new ArrayList<MicroCache>();
+  private int clockHand;
+  private int clockHoles;
+
+  private long maxCacheBytes;
+  private long cacheBytes;
+  private long peakCacheBytes;
+  private HashSet<Long> evictedTiles = new HashSet<Long>();
+  private HashSet<Long> evictedFiles = new HashSet<Long>();
+  private long tileEvictions;
+  private long tileReloads;
+  private long subIndexEvictions;
+  private long subIndexReloads;
+
+  // compact the consumed node data when the cache is half full
   private boolean garbageCollectionEnabled = false;
+
+  // micro-tiles read in the background, keyed by lonIdx80/latIdx80
+  private static final int MAX_PENDING_PREFETCHES = 32;
+  private HashMap<Long,Future<MicroCache>> pendingPrefetches;
+
+  private long prefetchRequests;
+  private long prefetchHits;
+  private long prefetchLateHits;
+  private long prefetchesDropped;
+  private long syncLoads;
+  private long blockedNanos;
   
 
   public NodesCache( String segmentDir, OsmNodesMap nodesMap, int lookupVersion, int minorVersion, boolean varLen, boolean carMode, boolean forceSecondaryData, NodesCache oldCache )
@@ -56,6 +94,25 @@ public final class NodesCache
       iobuffer = oldCache.iobuffer;
       oom_carsubset_hint = oldCache.oom_carsubset_hint;
       secondarySegmentsDir = oldCache.secondarySegmentsDir;
+      pendingPrefetches = oldCache.pendingPrefetches;
+      prefetchRequests = oldCache.prefetchRequests;
+      prefetchHits = oldCache.prefetchHits;
+      prefetchLateHits = oldCache.prefetchLateHits;
+      prefetchesDropped = oldCache.prefetchesDropped;
+      syncLoads = oldCache.syncLoads;
+      blockedNanos = oldCache.blockedNanos;
+      maxCacheBytes = oldCache.maxCacheBytes;
+      peakCacheBytes = oldCache.peakCacheBytes;
+      evictedTiles = oldCache.evictedTiles;
+      evictedFiles = oldCache.evictedFiles;
+      tileEvictions = oldCache.tileEvictions;
+      tileReloads = oldCache.tileReloads;
+      subIndexEvictions = oldCache.subIndexEvictions;
+      subIndexReloads = oldCache.subIndexReloads;
+
+      // take over the accounted memory
+      cacheBytes = oldCache.cacheBytes;
+      oldCache.cacheBytes = 0L;
 
       // re-use old, virgin caches
       fileRows = oldCache.fileRows;
@@ -64,7 +121,23 @@ public final class NodesCache
         if ( fileRow == null ) continue;
         for( OsmFile osmf : fileRow )
         {
-          cacheSum += osmf.setGhostState();
+          osmf.setGhostState();
+          osmf.residentTiles = 0;
+        }
+      }
+      for( MicroCache mc : oldCache.residentTiles )
+      {
+        if ( mc == null ) continue;
+        OsmFile osmf = mc.osmFile;
+        if ( osmf.microCaches[getSubIdx( mc.tileKey )] == mc )
+        {
+          mc.referenced = false; // ghosts go first
+          residentTiles.add( mc );
+          osmf.residentTiles++;
+        }
+        else
+        {
+          releaseBytes( mc.memorySize );
         }
       }
     }
@@ -74,6 +147,11 @@ public final class NodesCache
       fileRows = new OsmFile[180][];
       iobuffer = new byte[65636];
       secondarySegmentsDir = StorageConfigHelper.getSecondarySegmentDir( segmentDir );
+      maxCacheBytes = getDefaultMaxCacheBytes();
+      if ( TilePrefetcher.getExecutor() != null )
+      {
+        pendingPrefetches = new HashMap<Long,Future<MicroCache>>();
+      }
     }
   }
   
@@ -93,33 +171,177 @@ public final class NodesCache
     return f;
   }
 
-  // if the cache sum exceeded a threshold,
-  // clean all ghosts and enable garbage collection
-  private void checkEnableCacheCleaning()
+  /**
+   * Set the memory limits for the cached micro-tiles and sub-indexes.
+   * If a limit is exceeded, the least recently used tiles are evicted
+   * and read again on demand.
+   *
+   * @param maxBytes the limit for a new cache (a routing request)
+   * @param globalMaxBytes the limit for all caches of the process
+   */
+  public static synchronized void setMaxCacheBytes( long maxBytes, long globalMaxBytes )
+  {
+    defaultMaxCacheBytes = maxBytes;
+    globalMaxCacheBytes = globalMaxBytes;
+  }
+
+  private static synchronized long getDefaultMaxCacheBytes()
+  {
+    return defaultMaxCacheBytes;
+  }
+
+  private static synchronized long getGlobalMaxCacheBytes()
   {
-    if ( cacheSum < 200000 || garbageCollectionEnabled ) return;
+    return globalMaxCacheBytes;
+  }
+
+  private void addBytes( long bytes )
+  {
+    cacheBytes += bytes;
+    globalCacheBytes.addAndGet( bytes );
+    if ( cacheBytes > peakCacheBytes ) peakCacheBytes = cacheBytes;
+  }
+
+  private void releaseBytes( long bytes )
+  {
+    cacheBytes -= bytes;
+    globalCacheBytes.addAndGet( -bytes );
+  }
 
-    for( int i=0; i<fileRows.length; i++ )
+  private boolean isOverLimit( long globalMax )
+  {
+    return cacheBytes > maxCacheBytes || globalCacheBytes.get() > globalMax;
+  }
+
+  // take a new tile into the cache, evicting others if over the limits
+  private void addResidentTile( MicroCache mc, OsmFile osmf, long tileKey )
+  {
+    mc.osmFile = osmf;
+    mc.tileKey = tileKey;
+    mc.memorySize = mc.getMemorySize();
+    mc.referenced = true;
+    residentTiles.add( mc );
+    osmf.residentTiles++;
+    addBytes( mc.memorySize );
+    if ( evictedTiles.remove( Long.valueOf( tileKey ) ) )
+    {
+      tileReloads++;
+    }
+
+    if ( !garbageCollectionEnabled && cacheBytes > maxCacheBytes / 2 )
+    {
+      garbageCollectionEnabled = true;
+    }
+    long globalMax = getGlobalMaxCacheBytes();
+    if ( isOverLimit( globalMax ) )
+    {
+      evictTiles( mc, globalMax );
+    }
+  }
+
+  // clock-sweep: tiles used since the last pass get a second chance
+  private void evictTiles( MicroCache keep, long globalMax )
+  {
+    int n = residentTiles.size();
+    for( int scanned = 0; scanned < 2*n && isOverLimit( globalMax ); scanned++ )
     {
-      OsmFile[] fileRow = fileRows[i];
-      if ( fileRow == null ) continue;
-      int nghosts = 0;
-      for( OsmFile osmf :  fileRow )
+      if ( clockHand >= n ) clockHand = 0;
+      MicroCache mc = residentTiles.get( clockHand );
+      if ( mc != null && mc != keep )
       {
-        if ( osmf.ghost ) nghosts++;
-        else osmf.cleanAll();
+        if ( mc.referenced )
+        {
+          mc.referenced = false;
+        }
+        else
+        {
+          residentTiles.set( clockHand, null );
+          clockHoles++;
+          evictTile( mc );
+        }
       }
-      if ( nghosts == 0 ) continue;
-      int j=0;
-      OsmFile[] frow = new OsmFile[fileRow.length-nghosts];
-      for( OsmFile osmf : fileRow )
+      clockHand++;
+    }
+
+    if ( 2*clockHoles > n )
+    {
+      int j = 0;
+      int hand = 0;
+      for( int i=0; i<n; i++ )
+      {
+        MicroCache mc = residentTiles.get( i );
+        if ( i == clockHand ) hand = j;
+        if ( mc != null ) residentTiles.set( j++, mc );
+      }
+      while( residentTiles.size() > j )
+      {
+        residentTiles.remove( residentTiles.size() - 1 );
+      }
+      clockHand = clockHand >= n ? j : hand;
+      clockHoles = 0;
+    }
+  }
+
+  private void evictTile( MicroCache mc )
+  {
+    OsmFile osmf = mc.osmFile;
+    osmf.microCaches[getSubIdx( mc.tileKey )] = null;
+    releaseBytes( mc.memorySize );
+    evictedTiles.add( Long.valueOf( mc.tileKey ) );
+    tileEvictions++;
+
+    // drop the sub-index with the last tile of the file
+    if ( --osmf.residentTiles == 0 )
+    {
+      OsmFile[] fileRow = fileRows[osmf.latDegree];
+      OsmFile[] newFileRow = new OsmFile[fileRow.length-1];
+      int j = 0;
+      for( OsmFile f : fileRow )
       {
-        if ( osmf.ghost ) continue;
-        frow[j++] = osmf;
+        if ( f != osmf ) newFileRow[j++] = f;
       }
-      fileRows[i] = frow;
+      fileRows[osmf.latDegree] = newFileRow;
+      releaseBytes( SUBINDEX_SIZE );
+      evictedFiles.add( Long.valueOf( getFileKey( osmf.lonDegree, osmf.latDegree ) ) );
+      subIndexEvictions++;
+    }
+  }
+
+  // account for a tile that compacted it's consumed data
+  private void updateTileSize( MicroCache mc )
+  {
+    int size = mc.getMemorySize();
+    if ( size != mc.memorySize && mc.osmFile != null )
+    {
+      releaseBytes( mc.memorySize - size );
+      mc.memorySize = size;
     }
-    garbageCollectionEnabled = true;
+  }
+
+  /**
+   * @return the number of micro-tiles evicted because of the memory limits
+   */
+  public long getTileEvictions()
+  {
+    return tileEvictions;
+  }
+
+  /**
+   * @return the number of evicted micro-tiles that had to be read again
+   */
+  public long getTileReloads()
+  {
+    return tileReloads;
+  }
+
+  /**
+   * @return the memory accounting and eviction counters, e.g. for logging per request
+   */
+  public String getCacheStatistics()
+  {
+    return "nodes-cache: bytes=" + cacheBytes + " peak=" + peakCacheBytes + " maxBytes=" + maxCacheBytes
+         + " tiles=" + ( residentTiles.size() - clockHoles ) + " evictions=" + tileEvictions + " reloads=" + tileReloads
+         + " subindex-evictions=" + subIndexEvictions + " subindex-reloads=" + subIndexReloads;
   }
 
   public int loadSegmentFor( int ilon, int ilat )
@@ -134,53 +356,33 @@ public final class NodesCache
     {
         int lonIdx80 = ilon/12500;
         int latIdx80 = ilat/12500;
-        int lonDegree = lonIdx80/80;
-        int latDegree = latIdx80/80;
-        OsmFile osmf = null;
-        OsmFile[] fileRow = fileRows[latDegree];
-        int ndegrees = fileRow == null ? 0 : fileRow.length;
-        for( int i=0; i<ndegrees; i++ )
-        {
-          if ( fileRow[i].lonDegree == lonDegree )
-          {
-            osmf = fileRow[i];
-            break;
-          }
-        }
-        if ( osmf == null )
-        {
-          osmf = fileForSegment( lonDegree, latDegree );
-          OsmFile[] newFileRow = new OsmFile[ndegrees+1];
-          for( int i=0; i<ndegrees; i++ )
-          {
-            newFileRow[i] = fileRow[i];
-          }
-          newFileRow[ndegrees] = osmf;
-          fileRows[latDegree] = newFileRow;
-        }
-        osmf.ghost = false;
-        currentFileName = osmf.filename;
+        OsmFile osmf = getFileFor( lonIdx80/80, latIdx80/80 );
         if ( osmf.microCaches == null )
         {
           return null;
         }
-        int subIdx = (latIdx80-80*latDegree)*80 + (lonIdx80-80*lonDegree);
+        int subIdx = getSubIdx( lonIdx80, latIdx80 );
         MicroCache segment = osmf.microCaches[subIdx];
         if ( segment == null )
         {
-          // nodesMap.removeCompleteNodes();
-
-          checkEnableCacheCleaning();
-
-          segment = new MicroCache( osmf, lonIdx80, latIdx80, iobuffer, readVarLength );
-          cacheSum += segment.getDataSize();
+          segment = takePrefetched( lonIdx80, latIdx80 );
+          if ( segment == null )
+          {
+            long t0 = System.nanoTime();
+            segment = readMicroCache( osmf, lonIdx80, latIdx80, subIdx );
+            blockedNanos += System.nanoTime() - t0;
+            syncLoads++;
+          }
           osmf.microCaches[subIdx] = segment;
-          segmentList.add( segment );
+          addResidentTile( segment, osmf, ((long)lonIdx80)<<32 | latIdx80 );
         }
-        else if ( segment.ghost )
+        else
         {
-          segment.unGhost();
-          segmentList.add( segment );
+          if ( segment.ghost )
+          {
+            segment.unGhost();
+          }
+          segment.referenced = true;
         }
         return segment;
     }
@@ -195,6 +397,230 @@ public final class NodesCache
   }
 
 
+  /**
+   * Start reading the micro-tile at the given position in the
+   * background, if it's not yet loaded or requested. To be called
+   * by the search thread only. The tile is installed when the search
+   * asks for it via getSegmentFor.
+   */
+  public void prefetch( int ilon, int ilat )
+  {
+    if ( pendingPrefetches == null )
+    {
+      return;
+    }
+    if ( pendingPrefetches.size() >= MAX_PENDING_PREFETCHES )
+    {
+      dropFinishedPrefetches();
+      if ( pendingPrefetches.size() >= MAX_PENDING_PREFETCHES )
+      {
+        return;
+      }
+    }
+    if ( ilon < 0 || ilon >= 360000000 || ilat < 0 || ilat >= 180000000 )
+    {
+      return;
+    }
+    try
+    {
+      int lonIdx80 = ilon/12500;
+      int latIdx80 = ilat/12500;
+      Long key = Long.valueOf( ((long)lonIdx80)<<32 | latIdx80 );
+      if ( pendingPrefetches.containsKey( key ) )
+      {
+        return;
+      }
+      OsmFile osmf = getFileFor( lonIdx80/80, latIdx80/80 );
+      if ( osmf.microCaches == null )
+      {
+        return;
+      }
+      int subIdx = getSubIdx( lonIdx80, latIdx80 );
+      if ( osmf.microCaches[subIdx] != null )
+      {
+        return;
+      }
+      pendingPrefetches.put( key, TilePrefetcher.submit( this, osmf, lonIdx80, latIdx80, subIdx ) );
+      prefetchRequests++;
+    }
+    catch( RuntimeException re )
+    {
+      throw re;
+    }
+    catch( Exception e )
+    {
+      throw new RuntimeException( "error reading datafile " + currentFileName + ": " + e );
+    }
+  }
+
+  // tiles read but not asked for so far were prefetched in vain
+  private void dropFinishedPrefetches()
+  {
+    for( Iterator<Future<MicroCache>> it = pendingPrefetches.values().iterator(); it.hasNext(); )
+    {
+      if ( it.next().isDone() )
+      {
+        it.remove();
+        prefetchesDropped++;
+      }
+    }
+  }
+
+  // take over a prefetched micro-tile, waiting for it if still in progress
+  private MicroCache takePrefetched( int lonIdx80, int latIdx80 ) throws InterruptedException
+  {
+    if ( pendingPrefetches == null )
+    {
+      return null;
+    }
+    Future<MicroCache> f = pendingPrefetches.remove( Long.valueOf( ((long)lonIdx80)<<32 | latIdx80 ) );
+    if ( f == null )
+    {
+      return null;
+    }
+    boolean done = f.isDone();
+    long t0 = System.nanoTime();
+    try
+    {
+      MicroCache mc = f.get();
+      if ( done ) prefetchHits++;
+      else prefetchLateHits++;
+      return mc;
+    }
+    catch( ExecutionException ee )
+    {
+      return null; // read again in the search thread to report the error
+    }
+    finally
+    {
+      blockedNanos += System.nanoTime() - t0;
+    }
+  }
+
+  /**
+   * @return the prefetch counters, e.g. for logging per request
+   */
+  public String getPrefetchStatistics()
+  {
+    long unused = prefetchesDropped + ( pendingPrefetches == null ? 0 : pendingPrefetches.size() );
+    return "tile-prefetch: requests=" + prefetchRequests + " hits=" + prefetchHits + " late-hits=" + prefetchLateHits
+         + " unused=" + unused + " sync-loads=" + syncLoads + " blocked=" + blockedNanos/1000000 + "ms";
+  }
+
+  /**
+   * Get the nearest-segment index for the micro-tile at the given
+   * position, creating it from the tile data if not yet cached.
+   * This does not touch the nodes-map of this cache.
+   *
+   * @return the index, or null if there's no data for that position
+   */
+  public SegmentIndex getSegmentIndex( int ilon, int ilat )
+  {
+    try
+    {
+      int lonIdx80 = ilon/12500;
+      int latIdx80 = ilat/12500;
+      OsmFile osmf = getFileFor( lonIdx80/80, latIdx80/80 );
+      if ( osmf.microCaches == null )
+      {
+        return null;
+      }
+      int subIdx = getSubIdx( lonIdx80, latIdx80 );
+      SegmentIndex index = SegmentIndex.getCached( osmf.fileKey, osmf.tileIndex, subIdx );
+      if ( index == null )
+      {
+        // decode a private copy, so the consumed-state of the working copy is kept
+        MicroCache mc = readMicroCache( osmf, lonIdx80, latIdx80, subIdx );
+        OsmNodesMap tileNodes = new OsmNodesMap();
+        List<OsmNode> nodes = mc.getPositions( tileNodes );
+        for( OsmNode n : nodes )
+        {
+          mc.fillNode( n, tileNodes, null, false );
+        }
+        index = new SegmentIndex( nodes, lonIdx80, latIdx80 );
+        SegmentIndex.putCached( osmf.fileKey, osmf.tileIndex, subIdx, index );
+      }
+      return index;
+    }
+    catch( RuntimeException re )
+    {
+      throw re;
+    }
+    catch( Exception e )
+    {
+      throw new RuntimeException( "error reading datafile " + currentFileName + ": " + e );
+    }
+  }
+
+  private OsmFile getFileFor( int lonDegree, int latDegree ) throws Exception
+  {
+    OsmFile osmf = null;
+    OsmFile[] fileRow = fileRows[latDegree];
+    int ndegrees = fileRow == null ? 0 : fileRow.length;
+    for( int i=0; i<ndegrees; i++ )
+    {
+      if ( fileRow[i].lonDegree == lonDegree )
+      {
+        osmf = fileRow[i];
+        break;
+      }
+    }
+    if ( osmf == null )
+    {
+      osmf = fileForSegment( lonDegree, latDegree );
+      OsmFile[] newFileRow = new OsmFile[ndegrees+1];
+      for( int i=0; i<ndegrees; i++ )
+      {
+        newFileRow[i] = fileRow[i];
+      }
+      newFileRow[ndegrees] = osmf;
+      fileRows[latDegree] = newFileRow;
+      if ( osmf.microCaches != null )
+      {
+        addBytes( SUBINDEX_SIZE );
+        if ( evictedFiles.remove( Long.valueOf( getFileKey( lonDegree, latDegree ) ) ) )
+        {
+          subIndexReloads++;
+        }
+      }
+    }
+    currentFileName = osmf.filename;
+    return osmf;
+  }
+
+  private static int getSubIdx( int lonIdx80, int latIdx80 )
+  {
+    return (latIdx80-80*(latIdx80/80))*80 + (lonIdx80-80*(lonIdx80/80));
+  }
+
+  private static int getSubIdx( long tileKey )
+  {
+    return getSubIdx( (int)(tileKey >> 32), (int)tileKey );
+  }
+
+  private static long getFileKey( int lonDegree, int latDegree )
+  {
+    return ((long)lonDegree)<<32 | latDegree;
+  }
+
+  // read a micro-tile, via the shared tile cache if enabled
+  MicroCache readMicroCache( OsmFile osmf, int lonIdx80, int latIdx80, int subIdx ) throws Exception
+  {
+    TileCache tileCache = TileCache.getSharedInstance();
+    if ( tileCache == null )
+    {
+      return new MicroCache( osmf, lonIdx80, latIdx80, readVarLength );
+    }
+    MicroCache template = tileCache.get( osmf.fileKey, osmf.tileIndex, subIdx, readVarLength );
+    if ( template == null )
+    {
+      template = new MicroCache( osmf, lonIdx80, latIdx80, readVarLength );
+      template.ensureIndex(); // before it's shared
+      tileCache.put( osmf.fileKey, osmf.tileIndex, subIdx, readVarLength, template );
+    }
+    return new MicroCache( template );
+  }
+
   public boolean obtainNonHollowNode( OsmNode node )
   {
     if ( !node.isHollow() ) return true;
@@ -205,6 +631,10 @@ public final class NodesCache
       return false;
     }
     segment.fillNode( node, nodesMap, distanceChecker, garbageCollectionEnabled );
+    if ( garbageCollectionEnabled )
+    {
+      updateTileSize( segment );
+    }
     return !node.isHollow();
   }
 
@@ -223,6 +653,16 @@ public final class NodesCache
 
     currentFileName = filenameBase + ".rd5/cd5";
 
+    PhysicalFile ra = getPhysicalFile( filenameBase );
+    OsmFile osmf = new OsmFile( ra, tileIndex, iobuffer );
+    osmf.lonDegree = lonDegree;
+    osmf.latDegree = latDegree;
+    return osmf;
+  }
+
+  // the data file for the given file-base, or null if there is none
+  private PhysicalFile getPhysicalFile( String filenameBase ) throws Exception
+  {
     PhysicalFile ra = null;
     if ( !fileCache.containsKey( filenameBase ) )
     {
@@ -241,22 +681,43 @@ public final class NodesCache
       if ( f != null )
       {
         currentFileName = f.getName();
-        ra = new PhysicalFile( f, iobuffer, lookupVersion, lookupMinorVersion );
+        ra = PhysicalFile.acquire( f, lookupVersion, lookupMinorVersion );
       }
       fileCache.put( filenameBase, ra );
     }
-    ra = fileCache.get( filenameBase );
-    OsmFile osmf = new OsmFile( ra, tileIndex, iobuffer );
-    osmf.lonDegree = lonDegree;
-    osmf.latDegree = latDegree;
-    return osmf;
+    return fileCache.get( filenameBase );
+  }
+
+  /**
+   * @return the stamp (name, size and creation time) of the data file
+   * for the given file-base (e.g. "E5_N50"), or null if there is none
+   */
+  public String getFileStamp( String filenameBase ) throws Exception
+  {
+    PhysicalFile ra = getPhysicalFile( filenameBase );
+    return ra == null ? null : ra.getStamp();
+  }
+
+  /**
+   * Add the stamps of the data files read so far, keyed by file-base
+   */
+  public void addFileStamps( Map<String,String> stamps )
+  {
+    for( Map.Entry<String,PhysicalFile> e : fileCache.entrySet() )
+    {
+      if ( e.getValue() != null )
+      {
+        stamps.put( e.getKey(), e.getValue().getStamp() );
+      }
+    }
   }
 
   public List<OsmNode> getAllNodes()
   {
     List<OsmNode> all = new ArrayList<OsmNode>();
-    for( MicroCache segment :  segmentList )
+    for( MicroCache segment : residentTiles )
     {
+      if ( segment == null || segment.ghost ) continue;
       List<OsmNode> positions = segment.getPositions( nodesMap );
       all.addAll( positions );
     }
@@ -266,16 +727,18 @@ public final class NodesCache
 
   public void close()
   {
-    for( PhysicalFile f: fileCache.values() )
+    releaseBytes( cacheBytes );
+    if ( pendingPrefetches != null )
     {
-      try
-      {
-        if ( f != null ) f.ra.close();
-      }
-      catch( IOException ioe )
+      for( Future<MicroCache> f : pendingPrefetches.values() )
       {
-        // ignore
+        f.cancel( false );
       }
     }
+    for( PhysicalFile f: fileCache.values() )
+    {
+      if ( f != null ) f.release();
+    }
+    fileCache.clear();
   }
 }
@@ -6,14 +6,13 @@
 package btools.mapaccess;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 import btools.util.ByteDataReader;
 import btools.util.Crc32;
 
 final class OsmFile
 {
-  private RandomAccessFile is = null;
+  private PhysicalFile is = null;
   private long fileOffset;
 
   private int[] posIdx;
@@ -23,32 +22,39 @@ final class OsmFile
   public int latDegree;
 
   public String filename;
+  String fileKey;
+  int tileIndex;
+  ChecksumLedger ledger;
 
-  public boolean ghost = false;
+  // the number of micro-tiles held in the cache
+  int residentTiles;
 
   public OsmFile( PhysicalFile rafile, int tileIndex, byte[] iobuffer ) throws Exception
   {
     if ( rafile != null )
     {
       filename = rafile.fileName;
+      fileKey = rafile.fileKey;
+      ledger = rafile.ledger;
+      this.tileIndex = tileIndex;
 
       long[] index = rafile.fileIndex;
       fileOffset = tileIndex > 0 ? index[ tileIndex-1 ] : 200L;
       if ( fileOffset == index[ tileIndex] ) return; // empty
     	
-      is = rafile.ra;
+      is = rafile;
       posIdx = new int[6400];
       microCaches = new MicroCache[6400];
-      is.seek( fileOffset );
-      is.readFully( iobuffer, 0, 25600 );
+      is.readFully( fileOffset, iobuffer, 25600 );
       
-      if ( rafile.fileHeaderCrcs != null )
+      if ( rafile.fileHeaderCrcs != null && !ledger.isSubIndexVerified( tileIndex ) )
       {
         int headerCrc = Crc32.crc( iobuffer, 0, 25600 );
         if ( rafile.fileHeaderCrcs[tileIndex] != headerCrc )
         {
           throw new IOException( "sub index checksum error" );
         }
+        ledger.setSubIndexVerified( tileIndex );
       }
       
       ByteDataReader dis = new ByteDataReader( iobuffer );
@@ -64,27 +70,28 @@ final class OsmFile
     return  idx == -1 ? 25600 : posIdx[idx];
   }
 
-  public int getDataInputForSubIdx( int subIdx, byte[] iobuffer ) throws Exception
+  /**
+   * Read the data of a micro-tile into a new array of it's size
+   *
+   * @return the data, or null if the micro-tile is empty
+   */
+  public byte[] readDataForSubIdx( int subIdx ) throws Exception
   {
      int startPos = getPosIdx(subIdx-1);
      int endPos = getPosIdx(subIdx);
      int size = endPos-startPos;
-     if ( size > 0 )
+     if ( size <= 0 )
      {
-       is.seek( fileOffset + startPos );
-       if ( size <= iobuffer.length )
-       {
-         is.readFully( iobuffer, 0, size );
-       }
+       return null;
      }
-     return size;
+     byte[] ab = new byte[size];
+     is.readFully( fileOffset + startPos, ab, size );
+     return ab;
   }
 
   // set this OsmFile to ghost-state:
-  long setGhostState()
+  void setGhostState()
   {
-    long sum = 0;
-    ghost = true;
     int nc = microCaches == null ? 0 : microCaches.length;
     for( int i=0; i< nc; i++ )
     {
@@ -93,32 +100,12 @@ final class OsmFile
       if ( mc.virgin )
       {
         mc.ghost = true;
-        sum += mc.getDataSize();
       }
       else
       {
         microCaches[i] = null;
       }
     }
-    return sum;
-  }
-
-  void cleanAll()
-  {
-    int nc = microCaches == null ? 0 : microCaches.length;
-    for( int i=0; i< nc; i++ )
-    {
-      MicroCache mc = microCaches[i];
-      if ( mc == null ) continue;
-      if ( mc.ghost )
-      {
-        microCaches[i] = null;
-      }
-      else
-      {
-        mc.collect();
-      }
-    }
   }
 
 }
@@ -111,6 +111,23 @@ public class OsmNode implements OsmPos
     return (int)(d + 1.0 );
   }
 
+  /**
+   * Distance in meters as the router calculates it, see
+   * RoutingContext.calcDistance, but without the nogo-handling
+   */
+  public static int calcDistance( int lon1, int lat1, int lon2, int lat2 )
+  {
+    double l = (lat2 - 90000000) * 0.00000001234134;
+    double l2 = l*l;
+    double l4 = l2*l2;
+    double coslat = 1.- l2 + l4 / 6.;
+
+    double dx = (lon2 - lon1 ) * coslat * 0.000001;
+    double dy = (lat2 - lat1 ) * 0.000001;
+    double d = Math.sqrt( dy*dy + dx*dx );
+    return (int)(d * 111894.7368 + 1.0 );
+  }
+
 
    public void parseNodeBody( MicroCache is, OsmNodesMap hollowNodes, DistanceChecker dc, boolean readVarLength )
    {
@@ -8,10 +8,11 @@ package btools.mapaccess;
 import java.util.*;
 
 import btools.util.ByteArrayUnifier;
+import btools.util.LongObjectMap;
 
 public final class OsmNodesMap
 {
-  private HashMap<Long,OsmNode> hmap = new HashMap<Long,OsmNode>();
+  private LongObjectMap<OsmNode> hmap = new LongObjectMap<OsmNode>( 4096 );
   
   private ByteArrayUnifier abUnifier = new ByteArrayUnifier( 16384, false );
 
@@ -28,13 +29,13 @@ public final class OsmNodesMap
    */
   public OsmNode get( long id )
   {
-    return hmap.get( new Long( id  ) );
+    return hmap.get( id );
   }
 
 
   public void remove( long id )
   {
-    hmap.remove( new Long( id  ) );
+    hmap.remove( id );
   }
 
   public void removeCompletedNodes()
@@ -62,12 +63,12 @@ public final class OsmNodesMap
    */
   public OsmNode put( long id, OsmNode node )
   {
-    return hmap.put( new Long( id  ), node );
+    return hmap.put( id, node );
   }
 
   /**
-   * Return the internal list.
-   * A reference is returned, not a copy-
+   * Return the nodes list.
+   * A copy is returned, not a reference
    * @return the nodes list
    */
   public Collection<OsmNode> nodes()
@@ -90,29 +91,19 @@ public final class OsmNodesMap
 
   private int dontCareCount = 0;
 
-  public void removeCompleteNodes()
+  private static final LongObjectMap.Selector<OsmNode> completeSelector = new LongObjectMap.Selector<OsmNode>()
   {
-   if ( ++dontCareCount < 5 ) return;
-   dontCareCount = 0;
-
-   ArrayList<OsmNode> delNodes = new ArrayList<OsmNode>();
-
-    for( OsmNode n : hmap.values() )
+    public boolean select( OsmNode n )
     {
-      if ( n.isHollow() || n.hasHollowLinks() )
-      {
-        continue;
-      }
-      delNodes.add( n );
+      return !( n.isHollow() || n.hasHollowLinks() );
     }
+  };
 
-    if ( delNodes.size() > 0 )
-    {
-//      System.out.println( "removing " + delNodes.size() + " nodes" );
-      for( OsmNode n : delNodes )
-      {
-        hmap.remove( new Long( n.getIdFromPos() ) );
-      }
-    }
+  public void removeCompleteNodes()
+  {
+    if ( ++dontCareCount < 5 ) return;
+    dontCareCount = 0;
+
+    hmap.removeSelected( completeSelector );
   }
 }
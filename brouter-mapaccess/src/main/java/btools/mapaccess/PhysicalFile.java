@@ -1,112 +1,431 @@
 /**
  * cache for a single square
  *
+ * The files are shared by all requests via a process-wide pool,
+ * keyed by canonical path, so the header is read once and not
+ * per request. Reads are positional on a file channel, so concurrent
+ * readers do not contend for a file pointer. A pooled file is
+ * re-opened if it's size or modification time changed, so map
+ * updates are picked up without a restart. The system property
+ * "maxOpenFiles" (default 64) limits the idle files kept open.
+ *
  * @author ab
  */
 package btools.mapaccess;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import btools.util.ByteDataReader;
 import btools.util.Crc32;
 
 final public class PhysicalFile
 {
-  RandomAccessFile ra = null;
+  // positional reads, shared by concurrent readers (null if mapped or closed)
+  private volatile FileChannel channel = null;
+  private boolean closed = false;
+
+  // shared, read-only mapping (null if not mapped)
+  private ByteBuffer mappedData = null;
+
+  // the mappings are shared between all instances, keyed by path
+  private static HashMap<String,MappedByteBuffer> mappings = new HashMap<String,MappedByteBuffer>();
+  private static HashMap<String,String> mappingKeys = new HashMap<String,String>();
+
+  // the pooled files in lru-order, keyed by canonical path
+  private static LinkedHashMap<String,PhysicalFile> pool = new LinkedHashMap<String,PhysicalFile>( 16, 0.75f, true );
+  private static final int maxIdleFiles = Integer.getInteger( "maxOpenFiles", 64 ).intValue();
+
+  // guarded by the pool
+  private int refCount = 0;
+  private boolean stale = false;
+
+  private File file;
+  private long fileLength;
+  private long fileModified;
+
+  private short majorVersion;
+  private short minorVersion;
+
   long[] fileIndex = new long[25];
   int[] fileHeaderCrcs;
    
-  private int fileIndexCrc;
   public long creationTime;
 
+  // the checksums verified so far
+  ChecksumLedger ledger;
+
   String fileName;
+
+  // identifies the file content for the shared tile cache
+  String fileKey;
   
   /**
-   * Checks the integrity of the file using the build-in checksums
+   * Get the file from the pool, opening it if not pooled or
+   * changed on disk since. Must be given back by release().
+   */
+  static PhysicalFile acquire( File f, int lookupVersion, int lookupMinorVersion ) throws Exception
+  {
+    String path = f.getCanonicalPath();
+    PhysicalFile pf;
+    synchronized( pool )
+    {
+      pf = getPooled( path );
+    }
+    if ( pf == null )
+    {
+      // open and read the header without holding the pool
+      PhysicalFile opened = new PhysicalFile( f, new byte[200], -1, -1, true );
+      synchronized( pool )
+      {
+        pf = getPooled( path ); // another thread may have been faster
+        if ( pf == null )
+        {
+          pf = opened;
+          pf.refCount++;
+          pool.put( path, pf );
+          opened = null;
+        }
+        closeIdleFiles();
+      }
+      if ( opened != null ) opened.close();
+    }
+    try
+    {
+      pf.checkLookupVersion( lookupVersion, lookupMinorVersion );
+    }
+    catch( IllegalArgumentException iae )
+    {
+      pf.release();
+      throw iae;
+    }
+    return pf;
+  }
+
+  // the pooled file for that path, with a reference taken, or null if not
+  // pooled or changed on disk since (guarded by the pool)
+  private static PhysicalFile getPooled( String path )
+  {
+    PhysicalFile pf = pool.get( path );
+    if ( pf != null && !pf.isUnchanged() )
+    {
+      // replaced: current users keep reading the old file, if they can
+      pool.remove( path );
+      pf.stale = true;
+      if ( pf.refCount == 0 ) pf.close();
+      pf = null;
+    }
+    if ( pf != null )
+    {
+      pf.refCount++;
+    }
+    return pf;
+  }
+
+  /**
+   * Give back a file obtained by acquire(). Unused files stay
+   * open, up to the idle limit.
+   */
+  void release()
+  {
+    boolean idle;
+    synchronized( pool )
+    {
+      idle = --refCount == 0;
+      if ( idle && stale )
+      {
+        close();
+        return;
+      }
+      closeIdleFiles();
+    }
+    if ( idle && ledger != null ) ledger.save();
+  }
+
+  private static void closeIdleFiles()
+  {
+    int idle = 0;
+    for( PhysicalFile pf : pool.values() )
+    {
+      if ( pf.refCount == 0 ) idle++;
+    }
+    for( Iterator<PhysicalFile> it = pool.values().iterator(); idle > maxIdleFiles && it.hasNext(); )
+    {
+      PhysicalFile pf = it.next();
+      if ( pf.refCount == 0 )
+      {
+        it.remove();
+        pf.close();
+        idle--;
+      }
+    }
+  }
+
+  private boolean isUnchanged()
+  {
+    return file.length() == fileLength && file.lastModified() == fileModified;
+  }
+
+  // identifies the file content independent of it's location
+  String getStamp()
+  {
+    return fileName + ":" + fileLength + ":" + creationTime;
+  }
+
+  private void checkLookupVersion( int lookupVersion, int lookupMinorVersion )
+  {
+    if ( lookupVersion != -1 && majorVersion != lookupVersion )
+    {
+      throw new IllegalArgumentException( "lookup version mismatch (old rd5?) lookups.dat="
+               + lookupVersion + " " + file.getAbsolutePath() + "=" + majorVersion );
+    }
+    if ( lookupMinorVersion != -1 && minorVersion < lookupMinorVersion )
+    {
+      throw new IllegalArgumentException( "lookup minor version mismatch (old rd5?) lookups.dat="
+               + lookupMinorVersion + " " + file.getAbsolutePath() + "=" + minorVersion );
+    }
+  }
+
+  /**
+   * Checks the integrity of the file using the build-in checksums.
+   * The 25 sub-tiles are checked in parallel, always in full:
+   * the checksum ledger is neither used nor updated.
    *
    * @return the error message if file corrupt, else null
    */
   public static String checkFileIntegrity( File f )
   {
-      PhysicalFile pf = null;
-	  try
-	  {
-        byte[] iobuffer = new byte[65636];
-        pf = new PhysicalFile( f, new byte[65636], -1, -1 );
-      	for( int tileIndex=0; tileIndex<25; tileIndex++ )
-      	{
-		  OsmFile osmf = new OsmFile( pf, tileIndex, iobuffer );
-		  if ( osmf.microCaches != null )
-		    for( int lonIdx80=0; lonIdx80<80; lonIdx80++ )
-			  for( int latIdx80=0; latIdx80<80; latIdx80++ )
-                new MicroCache( osmf, lonIdx80, latIdx80, iobuffer, true ); // TODO: readVarLength ?
-      	}
-	  }
-	  catch( IllegalArgumentException iae )
-	  {
-	    return iae.getMessage();
-	  }
-	  catch( Exception e )
-	  {
-	    return e.toString();
-	  }
-	  finally
-	  {
-        if ( pf != null ) try{ pf.ra.close(); } catch( Exception ee ) {}
-	  }
-	  return null;
+    PhysicalFile pf = null;
+    ExecutorService executor = null;
+    try
+    {
+      pf = new PhysicalFile( f, new byte[65636], -1, -1, false );
+      executor = Executors.newFixedThreadPool( Math.min( Runtime.getRuntime().availableProcessors(), 25 ) );
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for( int tileIndex=0; tileIndex<25; tileIndex++ )
+      {
+        final PhysicalFile file = pf;
+        final int idx = tileIndex;
+        results.add( executor.submit( new Callable<String>()
+        {
+          public String call()
+          {
+            return checkSubTileIntegrity( file, idx );
+          }
+        } ) );
+      }
+      for( Future<String> result : results )
+      {
+        String error = result.get();
+        if ( error != null ) return error;
+      }
+    }
+    catch( IllegalArgumentException iae )
+    {
+      return iae.getMessage();
+    }
+    catch( Exception e )
+    {
+      return e.toString();
+    }
+    finally
+    {
+      if ( executor != null ) executor.shutdownNow();
+      if ( pf != null ) pf.close();
+    }
+    return null;
+  }
+
+  private static String checkSubTileIntegrity( PhysicalFile pf, int tileIndex )
+  {
+    try
+    {
+      OsmFile osmf = new OsmFile( pf, tileIndex, new byte[25600] );
+      if ( osmf.microCaches != null )
+        for( int lonIdx80=0; lonIdx80<80; lonIdx80++ )
+          for( int latIdx80=0; latIdx80<80; latIdx80++ )
+            new MicroCache( osmf, lonIdx80, latIdx80, true ).ensureIndex(); // TODO: readVarLength ?
+    }
+    catch( IllegalArgumentException iae )
+    {
+      return iae.getMessage();
+    }
+    catch( Exception e )
+    {
+      return e.toString();
+    }
+    return null;
   }
 
   public PhysicalFile( File f, byte[] iobuffer, int lookupVersion, int lookupMinorVersion ) throws Exception
   {
+    this( f, iobuffer, lookupVersion, lookupMinorVersion, true );
+  }
+
+  // without the ledger, all checksums are verified and nothing is recorded
+  private PhysicalFile( File f, byte[] iobuffer, int lookupVersion, int lookupMinorVersion, boolean useLedger ) throws Exception
+  {
+    file = f;
     fileName = f.getName();
+    fileLength = f.length();
+    fileModified = f.lastModified();
+    fileKey = f.getAbsolutePath() + ":" + fileLength + ":" + fileModified;
 
-    ra = new RandomAccessFile( f, "r" );
-    ra.readFully( iobuffer, 0, 200 );
-    fileIndexCrc = Crc32.crc( iobuffer, 0, 200 );
+    channel = new RandomAccessFile( f, "r" ).getChannel();
+    try
+    {
+      readHeader( f, iobuffer, useLedger );
+    }
+    catch( Exception e )
+    {
+      close();
+      throw e;
+    }
+    checkLookupVersion( lookupVersion, lookupMinorVersion );
+  }
+
+  private void readHeader( File f, byte[] iobuffer, boolean useLedger ) throws Exception
+  {
+    if ( Boolean.getBoolean( "useMemoryMappedFiles" ) && channel.size() <= Integer.MAX_VALUE )
+    {
+      mappedData = getMapping( f.getAbsolutePath(), channel );
+      channel.close();
+      channel = null;
+    }
+    readFully( 0L, iobuffer, 200 );
     ByteDataReader dis = new ByteDataReader( iobuffer );
     for( int i=0; i<25; i++ )
     {
       long lv = dis.readLong();
       short readVersion = (short)(lv >> 48);
-      if ( i == 0 && lookupVersion != -1 && readVersion != lookupVersion )
-      {
-        throw new IllegalArgumentException( "lookup version mismatch (old rd5?) lookups.dat="
-                 + lookupVersion + " " + f. getAbsolutePath() + "=" + readVersion );
-      }
-      if ( i == 1 && lookupMinorVersion != -1 && readVersion < lookupMinorVersion )
-      {
-        throw new IllegalArgumentException( "lookup minor version mismatch (old rd5?) lookups.dat="
-                 + lookupMinorVersion + " " + f. getAbsolutePath() + "=" + readVersion );
-      }
+      if ( i == 0 ) majorVersion = readVersion;
+      if ( i == 1 ) minorVersion = readVersion;
       fileIndex[i] = lv & 0xffffffffffffL;
     }
 
     // read some extra info from the end of the file, if present
-    long len = ra.length();
+    long len = mappedData != null ? mappedData.capacity() : channel.size();
 
     long pos = fileIndex[24];
     int extraLen = 8 + 26*4;
 
-    if ( len == pos ) return; // old format o.k.
+    if ( len == pos ) // old format o.k.
+    {
+      ledger = useLedger ? ChecksumLedger.forFile( f, 0L ) : ChecksumLedger.unchecked();
+      return;
+    }
 
     if ( len < pos+extraLen ) // > is o.k. for future extensions!
     {
       throw new IOException( "file of size " + len + " + too short, should be " + (pos+extraLen) );
     }
     
-    ra.seek( pos );
-    ra.readFully( iobuffer, 0, extraLen );
-    dis = new ByteDataReader( iobuffer );
+    byte[] extra = new byte[extraLen];
+    readFully( pos, extra, extraLen );
+    dis = new ByteDataReader( extra );
     creationTime = dis.readLong();
-    if ( dis.readInt() != fileIndexCrc )
-    {
-      throw new IOException( "top index checksum error" );
-    }
+    int fileIndexCrc = dis.readInt();
     fileHeaderCrcs = new int[25];
     for( int i=0; i<25; i++ )
     {
       fileHeaderCrcs[i] = dis.readInt();
     }
+
+    ledger = useLedger ? ChecksumLedger.forFile( f, creationTime ) : ChecksumLedger.unchecked();
+    if ( !ledger.isHeaderVerified() )
+    {
+      if ( Crc32.crc( iobuffer, 0, 200 ) != fileIndexCrc )
+      {
+        throw new IOException( "top index checksum error" );
+      }
+      ledger.setHeaderVerified();
+    }
+  }
+
+  private static synchronized MappedByteBuffer getMapping( String path, FileChannel fc ) throws IOException
+  {
+    // re-map if the file changed (the old mapping is released by the gc)
+    String key = fc.size() + ":" + new File( path ).lastModified();
+    MappedByteBuffer mbb = mappings.get( path );
+    if ( mbb == null || !key.equals( mappingKeys.get( path ) ) )
+    {
+      mbb = fc.map( FileChannel.MapMode.READ_ONLY, 0L, fc.size() );
+      mappings.put( path, mbb );
+      mappingKeys.put( path, key );
+    }
+    return mbb;
+  }
+
+  /**
+   * Read len bytes at the given file position, either from
+   * the mapping or via the file channel. Not synchronized,
+   * positional reads do not share a file pointer.
+   */
+  void readFully( long pos, byte[] buffer, int len ) throws IOException
+  {
+    if ( mappedData != null )
+    {
+      ByteBuffer data = mappedData.duplicate(); // private position
+      data.position( (int)pos );
+      data.get( buffer, 0, len );
+      return;
+    }
+    FileChannel fc = channel;
+    for(;;)
+    {
+      if ( fc == null ) throw new IOException( "file closed: " + fileName );
+      try
+      {
+        ByteBuffer bb = ByteBuffer.wrap( buffer, 0, len );
+        while( bb.hasRemaining() )
+        {
+          if ( fc.read( bb, pos + bb.position() ) < 0 )
+          {
+            throw new EOFException( "unexpected end of file: " + fileName );
+          }
+        }
+        return;
+      }
+      catch( ClosedChannelException cce )
+      {
+        // an interrupted reader closes the channel for all others
+        if ( Thread.currentThread().isInterrupted() ) throw cce;
+        fc = reopen( fc );
+      }
+    }
+  }
+
+  private synchronized FileChannel reopen( FileChannel broken ) throws IOException
+  {
+    if ( closed || channel != broken )
+    {
+      return channel;
+    }
+    if ( !isUnchanged() )
+    {
+      throw new IOException( "file changed: " + fileName );
+    }
+    channel = new RandomAccessFile( file, "r" ).getChannel();
+    return channel;
+  }
+
+  synchronized void close()
+  {
+    closed = true;
+    if ( ledger != null ) ledger.save();
+    if ( channel != null ) try { channel.close(); } catch( IOException ioe ) {}
+    channel = null;
   }
 }
@@ -0,0 +1,327 @@
+/**
+ * Nearest-segment index of a micro-tile for the waypoint matching
+ *
+ * Holds the geometry of the way-sections written by the nodes of
+ * the tile as plain coordinate arrays, so the sections near a
+ * position can be found without decoding the tile. Sections that
+ * are written by a node outside the tile are held as a reference
+ * to the writing node, their geometry is in the index of that tile.
+ *
+ * The index does not depend on the routing profile, so it is
+ * created lazily by the NodesCache and cached process-wide.
+ *
+ * @author ab
+ */
+package btools.mapaccess;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class SegmentIndex
+{
+  // upper bound for the process-wide cache
+  private static final long MAX_CACHE_BYTES = 16L*1024L*1024L;
+
+  // fixed overhead accounted per cached index
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private static LinkedHashMap<Long,SegmentIndex> cache = new LinkedHashMap<Long,SegmentIndex>( 256, 0.75f, true );
+  private static HashMap<String,Integer> fileIds = new HashMap<String,Integer>();
+  private static long cacheBytes = 0;
+
+  private static Long getKey( String fileKey, int tileIndex, int subIdx )
+  {
+    Integer id = fileIds.get( fileKey );
+    if ( id == null )
+    {
+      id = Integer.valueOf( fileIds.size() );
+      fileIds.put( fileKey, id );
+    }
+    return Long.valueOf( ((long)id.intValue()) << 32 | ( tileIndex*6400 + subIdx ) );
+  }
+
+  static synchronized SegmentIndex getCached( String fileKey, int tileIndex, int subIdx )
+  {
+    return cache.get( getKey( fileKey, tileIndex, subIdx ) );
+  }
+
+  static synchronized void putCached( String fileKey, int tileIndex, int subIdx, SegmentIndex index )
+  {
+    SegmentIndex old = cache.put( getKey( fileKey, tileIndex, subIdx ), index );
+    if ( old != null )
+    {
+      cacheBytes -= old.getEntrySize();
+    }
+    cacheBytes += index.getEntrySize();
+
+    Iterator<Map.Entry<Long,SegmentIndex>> it = cache.entrySet().iterator();
+    while( cacheBytes > MAX_CACHE_BYTES && it.hasNext() )
+    {
+      SegmentIndex si = it.next().getValue();
+      if ( si == index ) break;
+      cacheBytes -= si.getEntrySize();
+      it.remove();
+    }
+  }
+
+  private int nodeCount;
+
+  // the sections, ordered by the writing node
+  private int nsections;
+  private long[] sourceIds;
+  private long[] targetIds;
+  private int[] geomStart;
+  private int[] coords; // lon/lat pairs from source to target
+
+  // sections written by nodes outside the tile
+  private int nrefs;
+  private long[] refNodeIds;
+  private long[] refSourceIds;
+
+  // bounding box of the sections
+  private int minLon = Integer.MAX_VALUE;
+  private int minLat = Integer.MAX_VALUE;
+  private int maxLon = Integer.MIN_VALUE;
+  private int maxLat = Integer.MIN_VALUE;
+
+  /**
+   * @param nodes the decoded nodes of the tile, ordered by id
+   */
+  SegmentIndex( List<OsmNode> nodes, int lonIdx80, int latIdx80 )
+  {
+    nodeCount = nodes.size();
+
+    ArrayList<OsmLink> links = new ArrayList<OsmLink>();
+    ArrayList<OsmNode> sources = new ArrayList<OsmNode>();
+    ArrayList<OsmLink> refs = new ArrayList<OsmLink>();
+    ArrayList<OsmNode> refNodes = new ArrayList<OsmNode>();
+    TransferNodeReader transferNodes = new TransferNodeReader();
+    int ncoords = 0;
+    for( OsmNode n : nodes )
+    {
+      for( OsmLink link = n.firstlink; link != null; link = link.next )
+      {
+        OsmNode target = link.targetNode;
+        if ( link.counterLinkWritten )
+        {
+          // inner sections are indexed from the writing node
+          if ( target.ilon/12500 != lonIdx80 || target.ilat/12500 != latIdx80 )
+          {
+            refs.add( link );
+            refNodes.add( n );
+          }
+          continue;
+        }
+        links.add( link );
+        sources.add( n );
+        ncoords += 4;
+        for( boolean hasNext = transferNodes.init( link ); hasNext; hasNext = transferNodes.next() )
+        {
+          ncoords += 2;
+        }
+      }
+    }
+
+    nsections = links.size();
+    sourceIds = new long[nsections];
+    targetIds = new long[nsections];
+    geomStart = new int[nsections+1];
+    coords = new int[ncoords];
+    int pos = 0;
+    for( int i=0; i<nsections; i++ )
+    {
+      OsmLink link = links.get( i );
+      OsmNode source = sources.get( i );
+      sourceIds[i] = source.getIdFromPos();
+      targetIds[i] = link.targetNode.getIdFromPos();
+      geomStart[i] = pos;
+      pos = addCoord( pos, source.ilon, source.ilat );
+      for( boolean hasNext = transferNodes.init( link ); hasNext; hasNext = transferNodes.next() )
+      {
+        pos = addCoord( pos, transferNodes.ilon, transferNodes.ilat );
+      }
+      pos = addCoord( pos, link.targetNode.ilon, link.targetNode.ilat );
+    }
+    geomStart[nsections] = pos;
+
+    nrefs = refs.size();
+    refNodeIds = new long[nrefs];
+    refSourceIds = new long[nrefs];
+    for( int i=0; i<nrefs; i++ )
+    {
+      refNodeIds[i] = refNodes.get( i ).getIdFromPos();
+      refSourceIds[i] = refs.get( i ).targetNode.getIdFromPos();
+    }
+  }
+
+  private int addCoord( int pos, int ilon, int ilat )
+  {
+    coords[pos++] = ilon;
+    coords[pos++] = ilat;
+    if ( ilon < minLon ) minLon = ilon;
+    if ( ilon > maxLon ) maxLon = ilon;
+    if ( ilat < minLat ) minLat = ilat;
+    if ( ilat > maxLat ) maxLat = ilat;
+    return pos;
+  }
+
+  private long getEntrySize()
+  {
+    return ENTRY_OVERHEAD + 20L*nsections + 4L*coords.length + 16L*nrefs;
+  }
+
+  /**
+   * @return the number of nodes in the tile
+   */
+  public int getNodeCount()
+  {
+    return nodeCount;
+  }
+
+  public int getSectionCount()
+  {
+    return nsections;
+  }
+
+  /**
+   * @return the id of the node writing the given section
+   */
+  public long getSourceId( int section )
+  {
+    return sourceIds[section];
+  }
+
+  public long getTargetId( int section )
+  {
+    return targetIds[section];
+  }
+
+  /**
+   * @return the number of sections written by nodes outside the tile
+   */
+  public int getReferenceCount()
+  {
+    return nrefs;
+  }
+
+  /**
+   * @return the id of the node in this tile for the given reference
+   */
+  public long getReferenceNodeId( int ref )
+  {
+    return refNodeIds[ref];
+  }
+
+  /**
+   * @return the id of the writing node outside this tile for the given reference
+   */
+  public long getReferenceSourceId( int ref )
+  {
+    return refSourceIds[ref];
+  }
+
+  /**
+   * @return the section from source to target, or -1 if not in this index
+   */
+  public int findSection( long sourceId, long targetId )
+  {
+    int lo = 0;
+    int hi = nsections;
+    while( lo < hi )
+    {
+      int mid = (lo + hi) >>> 1;
+      if ( sourceIds[mid] < sourceId ) lo = mid + 1;
+      else hi = mid;
+    }
+    for( int i=lo; i<nsections && sourceIds[i] == sourceId; i++ )
+    {
+      if ( targetIds[i] == targetId ) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Calculate a lower bound for the distance of the sections
+   * of this tile from the given position
+   *
+   * @return the distance in degrees
+   */
+  public double getBoxDistance( int ilon, int ilat )
+  {
+    if ( nsections == 0 ) return Double.MAX_VALUE;
+    int dlon = ilon < minLon ? minLon - ilon : ( ilon > maxLon ? ilon - maxLon : 0 );
+    int dlat = ilat < minLat ? minLat - ilat : ( ilat > maxLat ? ilat - maxLat : 0 );
+    double dx = dlon * getCosLat( ilat ) * 0.000001;
+    double dy = dlat * 0.000001;
+    // a bit less for the coslat varying along the tile
+    return Math.sqrt( dx*dx + dy*dy ) * 0.99;
+  }
+
+  /**
+   * Calculate the distance of the given section from a position. This
+   * uses the same arithmetic as the waypoint-matching in the router,
+   * which works on the sections in the order they are stored.
+   *
+   * @param maxDistance parts of the section further away are skipped
+   * @return the distance in degrees (like the waypoint radius), or
+   *         Double.MAX_VALUE if it's beyond maxDistance
+   */
+  public double getDistance( int section, int ilon, int ilat, double maxDistance )
+  {
+    // limits in micro-degrees, with some margin for the coslat
+    int dlatMax = (int)( maxDistance * 1000000. ) + 1;
+    int dlonMax = (int)( maxDistance * 1010000. / getCosLat( ilat ) ) + 1;
+
+    double radius = Double.MAX_VALUE;
+    int end = geomStart[section+1];
+    for( int i=geomStart[section]; i+2<end; i+=2 )
+    {
+      int lon1 = coords[i];
+      int lat1 = coords[i+1];
+      int lon2 = coords[i+2];
+      int lat2 = coords[i+3];
+
+      if ( ( lat1 - ilat > dlatMax && lat2 - ilat > dlatMax ) || ( ilat - lat1 > dlatMax && ilat - lat2 > dlatMax )
+        || ( lon1 - ilon > dlonMax && lon2 - ilon > dlonMax ) || ( ilon - lon1 > dlonMax && ilon - lon2 > dlonMax ) )
+      {
+        continue;
+      }
+
+      double coslat6 = getCosLat( lat2 )*0.000001;
+      double dx = (lon2 - lon1 ) * coslat6;
+      double dy = (lat2 - lat1 ) * 0.000001;
+      double d = Math.sqrt( dy*dy + dx*dx );
+      if ( d == 0. ) continue;
+
+      double x1 = (lon1 - ilon) * coslat6;
+      double y1 = (lat1 - ilat) * 0.000001;
+      double x2 = (lon2 - ilon) * coslat6;
+      double y2 = (lat2 - ilat) * 0.000001;
+      double r12 = x1*x1 + y1*y1;
+      double r22 = x2*x2 + y2*y2;
+      double r = Math.abs( r12 < r22 ? y1*dx - x1*dy : y2*dx - x2*dy ) / d;
+
+      double s1 = x1*dx + y1*dy;
+      double s2 = x2*dx + y2*dy;
+      if ( s1 < 0. ) { s1 = -s1; s2 = -s2; }
+      if ( s2 > 0. )
+      {
+        r = Math.sqrt( s1 < s2 ? r12 : r22 );
+      }
+      if ( r < radius ) radius = r;
+    }
+    return radius <= maxDistance ? radius : Double.MAX_VALUE;
+  }
+
+  private static double getCosLat( int ilat )
+  {
+    double l = (ilat - 90000000) * 0.00000001234134;
+    double l2 = l*l;
+    double l4 = l2*l2;
+    return 1.- l2 + l4 / 6.;
+  }
+}
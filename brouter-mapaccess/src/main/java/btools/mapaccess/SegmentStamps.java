@@ -0,0 +1,100 @@
+/**
+ * Identities of the data files a pre-processed table was built from
+ *
+ * Landmark tables and shortcut graphs are derived from the rd5 (or cd5)
+ * files, and a table computed on other data can overestimate costs,
+ * so it is valid only for exactly the files it was built from. These
+ * are recorded per file-base (e.g. "E5_N50") with the file's name,
+ * size and the creation time written by the map-creator.
+ *
+ * @author ab
+ */
+package btools.mapaccess;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+public final class SegmentStamps
+{
+  // for tables written before the stamps were recorded
+  public static final SegmentStamps UNKNOWN = new SegmentStamps( new String[0], null );
+
+  private String[] fileBases;
+  private String[] stamps; // null if unknown
+
+  /**
+   * @param stamps per file-base the stamp, see NodesCache.addFileStamps
+   */
+  public SegmentStamps( Map<String,String> stamps )
+  {
+    this.fileBases = stamps.keySet().toArray( new String[stamps.size()] );
+    this.stamps = new String[fileBases.length];
+    for( int i=0; i<fileBases.length; i++ )
+    {
+      this.stamps[i] = stamps.get( fileBases[i] );
+    }
+  }
+
+  private SegmentStamps( String[] fileBases, String[] stamps )
+  {
+    this.fileBases = fileBases;
+    this.stamps = stamps;
+  }
+
+  public static SegmentStamps readFrom( DataInputStream dis ) throws IOException
+  {
+    int n = dis.readInt();
+    String[] fileBases = new String[n];
+    String[] stamps = new String[n];
+    for( int i=0; i<n; i++ )
+    {
+      fileBases[i] = dis.readUTF();
+      stamps[i] = dis.readUTF();
+    }
+    return new SegmentStamps( fileBases, stamps );
+  }
+
+  public void writeTo( DataOutputStream dos ) throws IOException
+  {
+    dos.writeInt( fileBases.length );
+    for( int i=0; i<fileBases.length; i++ )
+    {
+      dos.writeUTF( fileBases[i] );
+      dos.writeUTF( stamps[i] );
+    }
+  }
+
+  public int getFileCount()
+  {
+    return fileBases.length;
+  }
+
+  /**
+   * Check if the files the cache reads for the recorded file-bases
+   * are still the ones the table was built from
+   */
+  public boolean matches( NodesCache nodesCache )
+  {
+    if ( stamps == null )
+    {
+      return false;
+    }
+    try
+    {
+      for( int i=0; i<fileBases.length; i++ )
+      {
+        if ( !stamps[i].equals( nodesCache.getFileStamp( fileBases[i] ) ) )
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+    catch( Exception e )
+    {
+      return false; // unreadable file, e.g. lookup version mismatch
+    }
+  }
+}
@@ -0,0 +1,443 @@
+/**
+ * Contraction-hierarchy style shortcut graph for long routes
+ *
+ * Each node has a rank from the contraction order. For every node
+ * the graph holds the edges to higher ranked nodes ("up") and the
+ * edges from higher ranked nodes ("down", stored at the lower node).
+ * An edge is either an original link or a shortcut via a middle node
+ * that replaces the two edges to and from that middle node.
+ *
+ * A query is a dijkstra upwards from the sources and upwards on the
+ * reversed edges from the targets, the best meeting node gives the
+ * path, which is then unpacked back to the original nodes.
+ *
+ * The costs are static per edge (way- and node-costs, see the
+ * map-creator's ShortcutBuilder), so the result is a guide for the
+ * detailed routing, not the final track. A graph is valid only for
+ * the data files it was built from, see SegmentStamps.
+ *
+ * @author ab
+ */
+package btools.mapaccess;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import btools.util.LongObjectMap;
+import btools.util.SortedHeap;
+
+public final class ShortcutGraph
+{
+  private static final long MAGIC_V1 = 0x5343475241504831L; // "SCGRAPH1", without segment stamps
+  private static final long MAGIC = 0x5343475241504832L; // "SCGRAPH2"
+
+  private static HashMap<String,ShortcutGraph> cache = new HashMap<String,ShortcutGraph>();
+
+  private int profileChecksum;
+  private SegmentStamps segmentStamps;
+  private long[] nodeIds; // sorted
+  private int[] ranks;
+
+  // edges in compressed row format, indexed by node index
+  private int[] upStart;
+  private int[] upTarget;
+  private int[] upCost;
+  private int[] upMiddle;
+
+  private int[] downStart;
+  private int[] downSource;
+  private int[] downCost;
+  private int[] downMiddle;
+
+  private long lastModified;
+
+  private static final class Label
+  {
+    int node;
+    int cost;
+    Label parent;
+    int middle; // of the edge from the parent
+    boolean settled;
+  }
+
+  /**
+   * @param nodeIds the node ids in ascending order
+   * @param ranks the contraction rank per node index
+   * @param upStart per node index the start in the up-arrays, plus the end of the last
+   * @param downStart per node index the start in the down-arrays, plus the end of the last
+   */
+  public ShortcutGraph( long[] nodeIds, int[] ranks,
+                        int[] upStart, int[] upTarget, int[] upCost, int[] upMiddle,
+                        int[] downStart, int[] downSource, int[] downCost, int[] downMiddle,
+                        int profileChecksum, SegmentStamps segmentStamps )
+  {
+    this.nodeIds = nodeIds;
+    this.ranks = ranks;
+    this.upStart = upStart;
+    this.upTarget = upTarget;
+    this.upCost = upCost;
+    this.upMiddle = upMiddle;
+    this.downStart = downStart;
+    this.downSource = downSource;
+    this.downCost = downCost;
+    this.downMiddle = downMiddle;
+    this.profileChecksum = profileChecksum;
+    this.segmentStamps = segmentStamps;
+  }
+
+  /**
+   * @return the shortcut file for the given profile
+   */
+  public static File getFile( String segmentDir, String profileName )
+  {
+    return new File( new File( segmentDir, "shortcuts" ), profileName + ".scg" );
+  }
+
+  /**
+   * Get the graph from the given file, re-using a loaded one
+   * if the file did not change
+   *
+   * @return the graph, or null if the file does not exist
+   */
+  public static ShortcutGraph getCached( File file )
+  {
+    if ( !file.exists() )
+    {
+      return null;
+    }
+    String key = file.getAbsolutePath();
+    long lastModified = file.lastModified();
+    synchronized( cache )
+    {
+      ShortcutGraph sg = cache.get( key );
+      if ( sg == null || sg.lastModified != lastModified )
+      {
+        sg = readFrom( file );
+        sg.lastModified = lastModified;
+        cache.put( key, sg );
+      }
+      return sg;
+    }
+  }
+
+  public static ShortcutGraph readFrom( File file )
+  {
+    try
+    {
+      DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+      try
+      {
+        long magic = dis.readLong();
+        if ( magic != MAGIC && magic != MAGIC_V1 ) throw new IllegalArgumentException( "not a shortcut file: " + file );
+        int profileChecksum = dis.readInt();
+        SegmentStamps segmentStamps = magic == MAGIC ? SegmentStamps.readFrom( dis ) : SegmentStamps.UNKNOWN;
+        int nnodes = dis.readInt();
+        long[] nodeIds = new long[nnodes];
+        for( int i=0; i<nnodes; i++ )
+        {
+          nodeIds[i] = dis.readLong();
+        }
+        int[] ranks = readInts( dis, nnodes );
+        int[] upStart = readInts( dis, nnodes+1 );
+        int nup = upStart[nnodes];
+        int[] upTarget = readInts( dis, nup );
+        int[] upCost = readInts( dis, nup );
+        int[] upMiddle = readInts( dis, nup );
+        int[] downStart = readInts( dis, nnodes+1 );
+        int ndown = downStart[nnodes];
+        int[] downSource = readInts( dis, ndown );
+        int[] downCost = readInts( dis, ndown );
+        int[] downMiddle = readInts( dis, ndown );
+        return new ShortcutGraph( nodeIds, ranks, upStart, upTarget, upCost, upMiddle,
+                                  downStart, downSource, downCost, downMiddle, profileChecksum, segmentStamps );
+      }
+      finally
+      {
+        dis.close();
+      }
+    }
+    catch( IOException e )
+    {
+      throw new RuntimeException( "error reading shortcut file " + file + ": " + e );
+    }
+  }
+
+  private static int[] readInts( DataInputStream dis, int n ) throws IOException
+  {
+    int[] a = new int[n];
+    for( int i=0; i<n; i++ )
+    {
+      a[i] = dis.readInt();
+    }
+    return a;
+  }
+
+  public void writeTo( File file ) throws IOException
+  {
+    DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+    try
+    {
+      dos.writeLong( MAGIC );
+      dos.writeInt( profileChecksum );
+      segmentStamps.writeTo( dos );
+      dos.writeInt( nodeIds.length );
+      for( long id : nodeIds )
+      {
+        dos.writeLong( id );
+      }
+      writeInts( dos, ranks );
+      writeInts( dos, upStart );
+      writeInts( dos, upTarget );
+      writeInts( dos, upCost );
+      writeInts( dos, upMiddle );
+      writeInts( dos, downStart );
+      writeInts( dos, downSource );
+      writeInts( dos, downCost );
+      writeInts( dos, downMiddle );
+    }
+    finally
+    {
+      dos.close();
+    }
+  }
+
+  private static void writeInts( DataOutputStream dos, int[] a ) throws IOException
+  {
+    for( int i : a )
+    {
+      dos.writeInt( i );
+    }
+  }
+
+  public int getProfileChecksum()
+  {
+    return profileChecksum;
+  }
+
+  public SegmentStamps getSegmentStamps()
+  {
+    return segmentStamps;
+  }
+
+  public int getNodeCount()
+  {
+    return nodeIds.length;
+  }
+
+  /**
+   * @return the number of edges including the shortcuts
+   */
+  public int getEdgeCount()
+  {
+    return upTarget.length + downSource.length;
+  }
+
+  /**
+   * @return the graph index of the given node, or -1 if not contained
+   */
+  public int indexOf( long nodeId )
+  {
+    int idx = Arrays.binarySearch( nodeIds, nodeId );
+    return idx < 0 ? -1 : idx;
+  }
+
+  /**
+   * Find the lowest-cost path from one of the sources to one of the targets
+   *
+   * @return the node ids of the path, or null if not found
+   */
+  public long[] findPath( long[] sourceIds, long[] targetIds )
+  {
+    LongObjectMap<Label> fwd = new LongObjectMap<Label>();
+    LongObjectMap<Label> bwd = new LongObjectMap<Label>();
+    SortedHeap<Label> fwdSet = new SortedHeap<Label>();
+    SortedHeap<Label> bwdSet = new SortedHeap<Label>();
+
+    for( long id : sourceIds )
+    {
+      int idx = indexOf( id );
+      if ( idx >= 0 ) relax( fwd, fwdSet, idx, 0, null, -1 );
+    }
+    for( long id : targetIds )
+    {
+      int idx = indexOf( id );
+      if ( idx >= 0 ) relax( bwd, bwdSet, idx, 0, null, -1 );
+    }
+
+    int best = Integer.MAX_VALUE;
+    Label bestFwd = null;
+    Label bestBwd = null;
+
+    // a direction can stop when its lowest cost exceeds the best connection
+    boolean fwdDone = false;
+    boolean bwdDone = false;
+    while( !fwdDone || !bwdDone )
+    {
+      for( int dir = 0; dir < 2; dir++ )
+      {
+        boolean forward = dir == 0;
+        if ( forward ? fwdDone : bwdDone ) continue;
+        LongObjectMap<Label> labels = forward ? fwd : bwd;
+        LongObjectMap<Label> others = forward ? bwd : fwd;
+        Label l = pop( labels, forward ? fwdSet : bwdSet );
+        if ( l == null || l.cost >= best )
+        {
+          if ( forward ) fwdDone = true; else bwdDone = true;
+          continue;
+        }
+
+        Label o = others.get( l.node );
+        if ( o != null && l.cost + o.cost < best )
+        {
+          best = l.cost + o.cost;
+          bestFwd = forward ? l : o;
+          bestBwd = forward ? o : l;
+        }
+
+        int n = l.node;
+        if ( forward )
+        {
+          for( int i = upStart[n]; i < upStart[n+1]; i++ )
+          {
+            relax( labels, fwdSet, upTarget[i], l.cost + upCost[i], l, upMiddle[i] );
+          }
+        }
+        else
+        {
+          for( int i = downStart[n]; i < downStart[n+1]; i++ )
+          {
+            relax( labels, bwdSet, downSource[i], l.cost + downCost[i], l, downMiddle[i] );
+          }
+        }
+      }
+    }
+    if ( bestFwd == null )
+    {
+      return null;
+    }
+
+    // unpack: up to the meeting node, then down to the target
+    IntList path = new IntList();
+    collectForward( bestFwd, path );
+    for( Label l = bestBwd; l.parent != null; l = l.parent )
+    {
+      unpack( l.node, l.parent.node, l.middle, path );
+    }
+    long[] ids = new long[path.size];
+    for( int i=0; i<path.size; i++ )
+    {
+      ids[i] = nodeIds[path.a[i]];
+    }
+    return ids;
+  }
+
+  private void collectForward( Label l, IntList path )
+  {
+    if ( l.parent == null )
+    {
+      path.add( l.node );
+      return;
+    }
+    collectForward( l.parent, path );
+    unpack( l.parent.node, l.node, l.middle, path );
+  }
+
+  // add the nodes of the edge from -> to, without the from-node
+  private void unpack( int from, int to, int middle, IntList path )
+  {
+    if ( middle < 0 )
+    {
+      path.add( to );
+      return;
+    }
+    unpack( from, middle, getMiddle( from, middle ), path );
+    unpack( middle, to, getMiddle( middle, to ), path );
+  }
+
+  // get the middle node of the cheapest edge from -> to
+  private int getMiddle( int from, int to )
+  {
+    int bestCost = Integer.MAX_VALUE;
+    int middle = -1;
+    if ( ranks[from] < ranks[to] )
+    {
+      for( int i = upStart[from]; i < upStart[from+1]; i++ )
+      {
+        if ( upTarget[i] == to && upCost[i] < bestCost )
+        {
+          bestCost = upCost[i];
+          middle = upMiddle[i];
+        }
+      }
+    }
+    else
+    {
+      for( int i = downStart[to]; i < downStart[to+1]; i++ )
+      {
+        if ( downSource[i] == from && downCost[i] < bestCost )
+        {
+          bestCost = downCost[i];
+          middle = downMiddle[i];
+        }
+      }
+    }
+    if ( bestCost == Integer.MAX_VALUE )
+    {
+      throw new IllegalArgumentException( "inconsistent shortcut graph: no edge " + nodeIds[from] + "->" + nodeIds[to] );
+    }
+    return middle;
+  }
+
+  private static void relax( LongObjectMap<Label> labels, SortedHeap<Label> openSet, int node, int cost, Label parent, int middle )
+  {
+    Label l = labels.get( node );
+    if ( l != null && ( l.settled || l.cost <= cost ) )
+    {
+      return;
+    }
+    l = new Label();
+    l.node = node;
+    l.cost = cost;
+    l.parent = parent;
+    l.middle = middle;
+    labels.put( node, l );
+    openSet.add( cost, l );
+  }
+
+  private static Label pop( LongObjectMap<Label> labels, SortedHeap<Label> openSet )
+  {
+    for(;;)
+    {
+      Label l = openSet.popLowestKeyValue();
+      if ( l == null ) return null;
+      if ( l.settled || labels.get( l.node ) != l ) continue; // outdated entry
+      l.settled = true;
+      return l;
+    }
+  }
+
+  private static final class IntList
+  {
+    int[] a = new int[64];
+    int size;
+
+    void add( int i )
+    {
+      if ( size == a.length )
+      {
+        int[] na = new int[2*size];
+        System.arraycopy( a, 0, na, 0, size );
+        a = na;
+      }
+      a[size++] = i;
+    }
+  }
+}
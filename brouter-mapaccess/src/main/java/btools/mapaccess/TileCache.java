@@ -0,0 +1,121 @@
+/**
+ * Process-wide cache for decoded micro-tiles
+ *
+ * The cached MicroCache instances are immutable templates that
+ * are never filled into a nodes-map themselves. Each routing request
+ * works on a copy that shares the node-body data of the template,
+ * but keeps it's own consumed-state, so concurrent requests over
+ * the same region share a single copy of the segment data.
+ *
+ * @author ab
+ */
+package btools.mapaccess;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class TileCache
+{
+  private static TileCache sharedInstance = null;
+
+  /**
+   * Enable the process-wide shared cache with the given size limit
+   *
+   * @param maxBytes the upper bound for the cached data
+   */
+  public static synchronized void initSharedInstance( long maxBytes )
+  {
+    sharedInstance = new TileCache( maxBytes );
+  }
+
+  /**
+   * @return the process-wide shared cache, or null if not enabled
+   */
+  public static synchronized TileCache getSharedInstance()
+  {
+    return sharedInstance;
+  }
+
+  private long maxBytes;
+  private long currentBytes = 0;
+
+  private LinkedHashMap<Long,MicroCache> tiles = new LinkedHashMap<Long,MicroCache>( 1024, 0.75f, true );
+  private HashMap<String,Integer> fileIds = new HashMap<String,Integer>();
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public TileCache( long maxBytes )
+  {
+    this.maxBytes = maxBytes;
+  }
+
+  private long getKey( String fileKey, int tileIndex, int subIdx, boolean readVarLength )
+  {
+    Integer id = fileIds.get( fileKey );
+    if ( id == null )
+    {
+      id = Integer.valueOf( fileIds.size() );
+      fileIds.put( fileKey, id );
+    }
+    long key = ((long)id.intValue()) << 32 | ( tileIndex*6400 + subIdx );
+    return readVarLength ? key | 0x40000000L : key;
+  }
+
+  /**
+   * Get a shared template for the given micro-tile
+   *
+   * @return the template, or null if not cached
+   */
+  synchronized MicroCache get( String fileKey, int tileIndex, int subIdx, boolean readVarLength )
+  {
+    MicroCache mc = tiles.get( Long.valueOf( getKey( fileKey, tileIndex, subIdx, readVarLength ) ) );
+    if ( mc == null ) misses++;
+    else hits++;
+    return mc;
+  }
+
+  /**
+   * Put a freshly decoded micro-tile into the cache. The given instance
+   * becomes a shared template and must not be used for node-filling anymore.
+   */
+  synchronized void put( String fileKey, int tileIndex, int subIdx, boolean readVarLength, MicroCache template )
+  {
+    Long key = Long.valueOf( getKey( fileKey, tileIndex, subIdx, readVarLength ) );
+    MicroCache old = tiles.put( key, template );
+    if ( old != null )
+    {
+      currentBytes -= getEntrySize( old );
+    }
+    currentBytes += getEntrySize( template );
+
+    Iterator<Map.Entry<Long,MicroCache>> it = tiles.entrySet().iterator();
+    while( currentBytes > maxBytes && it.hasNext() )
+    {
+      MicroCache mc = it.next().getValue();
+      if ( mc == template ) break;
+      currentBytes -= getEntrySize( mc );
+      it.remove();
+      evictions++;
+    }
+  }
+
+  private static long getEntrySize( MicroCache mc )
+  {
+    return mc.getMemorySize();
+  }
+
+  public synchronized long getCurrentBytes()
+  {
+    return currentBytes;
+  }
+
+  public synchronized String getStatistics()
+  {
+    return "tiles=" + tiles.size() + " bytes=" + currentBytes + " maxBytes=" + maxBytes
+         + " hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Process-wide pool for reading micro-tiles in the background
+ *
+ * A search predictably touches the micro-tiles ahead of it's
+ * frontier, so these are read, indexed and checked by a few
+ * daemon threads before the search gets there. The pool size is
+ * set by the system property "prefetchThreads" (default 2, 0
+ * disables prefetching).
+ *
+ * @author ab
+ */
+package btools.mapaccess;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+final class TilePrefetcher
+{
+  private static ExecutorService executor;
+  private static boolean initialized = false;
+
+  /**
+   * @return the shared pool, or null if prefetching is disabled
+   */
+  static synchronized ExecutorService getExecutor()
+  {
+    if ( !initialized )
+    {
+      initialized = true;
+      int nthreads = Integer.getInteger( "prefetchThreads", 2 ).intValue();
+      if ( nthreads > 0 )
+      {
+        executor = Executors.newFixedThreadPool( nthreads, new ThreadFactory()
+        {
+          private int count = 0;
+
+          public synchronized Thread newThread( Runnable r )
+          {
+            Thread t = new Thread( r, "tile-prefetch-" + (++count) );
+            t.setDaemon( true );
+            return t;
+          }
+        } );
+      }
+    }
+    return executor;
+  }
+
+  /**
+   * Submit the read of a micro-tile. The tile is handed over
+   * via the returned future and installed by the search thread.
+   */
+  static Future<MicroCache> submit( final NodesCache nodesCache, final OsmFile osmf, final int lonIdx80, final int latIdx80, final int subIdx )
+  {
+    return getExecutor().submit( new Callable<MicroCache>()
+    {
+      public MicroCache call() throws Exception
+      {
+        MicroCache mc = nodesCache.readMicroCache( osmf, lonIdx80, latIdx80, subIdx );
+        mc.ensureIndex();
+        return mc;
+      }
+    } );
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Reader iterating the transfer-nodes of a link in place
+ *
+ * Decodes the encoded transfer-nodes (see OsmTransferNode.encode)
+ * one after the other into the public fields, without creating
+ * node objects. Descriptions equal to the link's description
+ * are returned as that instance, so the expression cache finds
+ * them by identity. An instance is meant to be re-used for
+ * all links of a search.
+ *
+ * @author ab
+ */
+package btools.mapaccess;
+
+public final class TransferNodeReader
+{
+  private static final int BIT_DESC = 1;
+  private static final int BIT_ILONHIGH = 2;
+  private static final int BIT_ILATHIGH = 4;
+  private static final int BIT_STOP = 8;
+
+  public int ilon;
+  public int ilat;
+  public short selev;
+  public byte[] descriptionBitmap;
+
+  private byte[] ab;
+  private int aboffset;
+  private byte[] linkDescription;
+  private byte[] lastDescription;
+  private int currentILonHigh;
+  private int currentILatHigh;
+
+  /**
+   * Start reading the transfer-nodes of the given link
+   *
+   * @return true if the link has a first transfer-node, which is then read
+   */
+  public boolean init( OsmLink link )
+  {
+    ab = link.firsttransferBytes;
+    linkDescription = link.descriptionBitmap;
+    aboffset = 0;
+    descriptionBitmap = null;
+    currentILonHigh = 0;
+    currentILatHigh = 0;
+    return ab != null && next();
+  }
+
+  /**
+   * Read the next transfer-node
+   *
+   * @return false if there are no more transfer-nodes
+   */
+  public boolean next()
+  {
+    int mode = ab[aboffset++];
+    if ( ( mode & BIT_STOP ) != 0 )
+    {
+      return false;
+    }
+    if ( ( mode & BIT_DESC ) != 0 )
+    {
+      int dlen = ab[aboffset++];
+      descriptionBitmap = getDescription( dlen );
+      aboffset += dlen;
+    }
+    if ( ( mode & BIT_ILONHIGH ) != 0 ) currentILonHigh = readShort();
+    if ( ( mode & BIT_ILATHIGH ) != 0 ) currentILatHigh = readShort();
+    if ( descriptionBitmap == null ) throw new IllegalArgumentException( "transfernode-decode: description is null" );
+    ilon = ( readShort() & 0xffff ) | currentILonHigh << 16;
+    ilat = ( readShort() & 0xffff ) | currentILatHigh << 16;
+    selev = (short)readShort();
+    return true;
+  }
+
+  // re-use the link's or the last description if equal
+  private byte[] getDescription( int dlen )
+  {
+    if ( equalsData( linkDescription, dlen ) ) return linkDescription;
+    if ( equalsData( lastDescription, dlen ) ) return lastDescription;
+    byte[] desc = new byte[dlen];
+    System.arraycopy( ab, aboffset, desc, 0, dlen );
+    lastDescription = desc;
+    return desc;
+  }
+
+  private boolean equalsData( byte[] desc, int dlen )
+  {
+    if ( desc == null || desc.length != dlen ) return false;
+    for( int i=0; i<dlen; i++ )
+    {
+      if ( desc[i] != ab[aboffset+i] ) return false;
+    }
+    return true;
+  }
+
+  private int readShort()
+  {
+    int i = ( ab[aboffset] << 8 ) | ( ab[aboffset+1] & 0xff );
+    aboffset += 2;
+    return (short)i;
+  }
+}
@@ -3,6 +3,7 @@ package btools.server;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
@@ -11,37 +12,73 @@ import java.net.Socket;
 import java.util.HashMap;
 import java.util.List;
 import java.util.StringTokenizer;
-import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import btools.mapaccess.NodesCache;
+import btools.mapaccess.TileCache;
 import btools.router.OsmNodeNamed;
 import btools.router.OsmTrack;
 import btools.router.RoutingContext;
 import btools.router.RoutingEngine;
+import btools.router.Isochrone;
+import btools.server.request.IsochroneHandler;
+import btools.server.request.MatrixHandler;
 import btools.server.request.ProfileUploadHandler;
 import btools.server.request.RequestHandler;
 import btools.server.request.ServerHandler;
 
-public class RouteServer extends Thread
+public class RouteServer implements Runnable
 {
   public static final String PROFILE_UPLOAD_URL = "/brouter/profile";
+  public static final String STATUS_URL = "/brouter/status";
+  public static final String MATRIX_URL = "/brouter/matrix";
+  public static final String ISOCHRONE_URL = "/brouter/isochrone";
+
+  // seconds a rejected client is asked to wait before retrying
+  private static final int RETRY_AFTER = 10;
+
+  // milliseconds to wait for a client's data (request, upload or close)
+  private static final int READ_TIMEOUT = Integer.getInteger( "readTimeout", 20 ).intValue() * 1000;
+  private static final int REJECT_TIMEOUT = 1000;
+
+  private static ThreadPoolExecutor executor;
+
+  // answers the rejected clients, off the accept thread
+  private static ThreadPoolExecutor rejectExecutor;
+
+  // request statistics
+  private static AtomicLong requestCount = new AtomicLong();
+  private static AtomicLong rejectCount = new AtomicLong();
+  private static AtomicLong totalWaitTime = new AtomicLong();
+  private static AtomicLong maxWaitTime = new AtomicLong();
+
+  private long queuedTime;
 
 	public ServiceContext serviceContext;
 
   private Socket clientSocket = null;
-  private RoutingEngine cr = null;
 
-  public void stopRouter()
-  {
-    RoutingEngine e = cr;
-    if ( e != null ) e.terminate();
-  }
-    
   public void run()
   {
           BufferedReader br = null;
           BufferedWriter bw = null;
+          RoutingEngine cr = null;
+          long waitTime = System.currentTimeMillis() - queuedTime;
+          requestCount.incrementAndGet();
+          totalWaitTime.addAndGet( waitTime );
+          for(;;)
+          {
+            long max = maxWaitTime.get();
+            if ( waitTime <= max || maxWaitTime.compareAndSet( max, waitTime ) ) break;
+          }
           try
           {
+            // a slow or idle client must not hold a worker
+            clientSocket.setSoTimeout( READ_TIMEOUT );
             br = new BufferedReader( new InputStreamReader( clientSocket.getInputStream() ) );
             bw = new BufferedWriter( new OutputStreamWriter( clientSocket.getOutputStream() ) );
 
@@ -53,7 +90,7 @@ public class RouteServer extends Thread
             }
 
             InetAddress ip = clientSocket.getInetAddress();
-            System.out.println( "ip=" + (ip==null ? "null" : ip.toString() ) + " -> " + getline );
+            System.out.println( "ip=" + (ip==null ? "null" : ip.toString() ) + " wait=" + waitTime + "ms queue=" + executor.getQueue().size() + " -> " + getline );
 
             String url = getline.split(" ")[1];
             HashMap<String,String> params = getUrlParams(url);
@@ -82,6 +119,76 @@ public class RouteServer extends Thread
               bw.flush();
               return;
             }
+            else if ( url.startsWith( STATUS_URL ) )
+            {
+              writeHttpHeader( bw );
+              bw.write( getStatus() );
+              bw.flush();
+              return;
+            }
+            else if ( url.startsWith( MATRIX_URL ) )
+            {
+              MatrixHandler matrixHandler = new MatrixHandler( serviceContext, params );
+              RoutingContext rc = matrixHandler.readRoutingContext();
+              List<OsmNodeNamed> wplist = matrixHandler.readWayPointList();
+
+              cr = new RoutingEngine( null, null, serviceContext.segmentDir, wplist, rc );
+              cr.quite = true;
+              cr.doMatrixRun( matrixHandler.getSourceCount(), maxRunningTime );
+
+              if ( cr.getErrorMessage() != null )
+              {
+                writeHttpHeader(bw);
+                bw.write( cr.getErrorMessage() );
+                bw.write( "\n" );
+              }
+              else
+              {
+                writeHttpHeader( bw, matrixHandler.getMimeType() );
+                bw.write( matrixHandler.formatMatrix( cr.getMatrix() ) );
+              }
+              bw.flush();
+              return;
+            }
+            else if ( url.startsWith( ISOCHRONE_URL ) )
+            {
+              IsochroneHandler isochroneHandler = new IsochroneHandler( serviceContext, params );
+              RoutingContext rc = isochroneHandler.readRoutingContext();
+              List<OsmNodeNamed> wplist = isochroneHandler.readWayPointList();
+
+              cr = new RoutingEngine( null, null, serviceContext.segmentDir, wplist, rc );
+              cr.quite = true;
+              if ( isochroneHandler.isStreaming() )
+              {
+                // the nodes are written as they are reached, so errors come last
+                writeHttpHeader( bw, isochroneHandler.getMimeType() );
+                cr.doIsochroneRun( isochroneHandler.getMaxCost(), isochroneHandler.getMaxDistance(),
+                                   isochroneHandler.createStreamWriter( bw ), maxRunningTime );
+                if ( cr.getErrorMessage() != null )
+                {
+                  bw.write( cr.getErrorMessage() );
+                  bw.write( "\n" );
+                }
+              }
+              else
+              {
+                Isochrone isochrone = new Isochrone();
+                cr.doIsochroneRun( isochroneHandler.getMaxCost(), isochroneHandler.getMaxDistance(), isochrone, maxRunningTime );
+                if ( cr.getErrorMessage() != null )
+                {
+                  writeHttpHeader(bw);
+                  bw.write( cr.getErrorMessage() );
+                  bw.write( "\n" );
+                }
+                else
+                {
+                  writeHttpHeader( bw, isochroneHandler.getMimeType() );
+                  bw.write( isochroneHandler.formatIsochrone( isochrone ) );
+                }
+              }
+              bw.flush();
+              return;
+            }
             else
             {
             	throw new IllegalArgumentException( "unknown request syntax: " + getline );
@@ -103,7 +210,11 @@ public class RouteServer extends Thread
             {
               OsmTrack track = cr.getFoundTrack();
               writeHttpHeader(bw, handler.getMimeType(), handler.getFileName());
-              if ( track != null )
+              if ( handler.isMultiTrack() )
+              {
+                bw.write( handler.formatTracks(cr.getFoundTracks()) );
+              }
+              else if ( track != null )
               {
                 bw.write( handler.formatTrack(track) );
               }
@@ -117,7 +228,6 @@ public class RouteServer extends Thread
           }
           finally
           {
-              cr = null;
               if ( br != null ) try { br.close(); } catch( Exception e ) {}
               if ( bw != null ) try { bw.close(); } catch( Exception e ) {}
               if ( clientSocket != null ) try { clientSocket.close(); } catch( Exception e ) {}
@@ -127,10 +237,10 @@ public class RouteServer extends Thread
   public static void main(String[] args) throws Exception
   {
         System.out.println("BRouter 1.1 / 27122014");
-        if ( args.length != 5 )
+        if ( args.length != 5 && args.length != 6 )
         {
           System.out.println("serve BRouter protocol");
-          System.out.println("usage: java RouteServer <segmentdir> <profiledir> <customprofiledir> <port> <maxthreads>");
+          System.out.println("usage: java RouteServer <segmentdir> <profiledir> <customprofiledir> <port> <maxthreads> [<maxqueuesize>]");
           return;
         }
 
@@ -141,32 +251,75 @@ public class RouteServer extends Thread
         serviceContext.customProfileDir = args[2];
 
         int maxthreads = Integer.parseInt( args[4] );
+        int maxqueuesize = args.length > 5 ? Integer.parseInt( args[5] ) : 4*maxthreads;
 
-        TreeMap<Long,RouteServer> threadMap = new TreeMap<Long,RouteServer>();
+        // shared tile cache for all routing threads (size in MB, 0 = disabled)
+        long tileCacheSize = Runtime.getRuntime().maxMemory() / 4;
+        String sTileCacheSize = System.getProperty( "tileCacheSize" );
+        if ( sTileCacheSize != null )
+        {
+          tileCacheSize = Long.parseLong( sTileCacheSize ) * 1024L * 1024L;
+        }
+        if ( tileCacheSize > 0 )
+        {
+          TileCache.initSharedInstance( tileCacheSize );
+        }
+
+        // memory limits for the decoded tiles per request and for all requests (size in MB)
+        long nodesCacheSize = Runtime.getRuntime().maxMemory() / 4;
+        String sNodesCacheSize = System.getProperty( "nodesCacheSize" );
+        if ( sNodesCacheSize != null )
+        {
+          nodesCacheSize = Long.parseLong( sNodesCacheSize ) * 1024L * 1024L;
+        }
+        long globalNodesCacheSize = Runtime.getRuntime().maxMemory() / 2;
+        String sGlobalNodesCacheSize = System.getProperty( "globalNodesCacheSize" );
+        if ( sGlobalNodesCacheSize != null )
+        {
+          globalNodesCacheSize = Long.parseLong( sGlobalNodesCacheSize ) * 1024L * 1024L;
+        }
+        NodesCache.setMaxCacheBytes( nodesCacheSize, globalNodesCacheSize );
+
+        // fixed number of workers, requests beyond the queue limit are rejected
+        executor = new ThreadPoolExecutor( maxthreads, maxthreads, 0L, TimeUnit.MILLISECONDS,
+                                           new ArrayBlockingQueue<Runnable>( maxqueuesize ) );
+        rejectExecutor = new ThreadPoolExecutor( 2, 2, 0L, TimeUnit.MILLISECONDS,
+                                                 new ArrayBlockingQueue<Runnable>( 4*maxqueuesize ) );
 
         ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[3]));
-        long last_ts = 0;
         for (;;)
         {
           Socket clientSocket = serverSocket.accept();
           RouteServer server = new RouteServer();
           server.serviceContext = serviceContext;
           server.clientSocket = clientSocket;
+          server.queuedTime = System.currentTimeMillis();
 
-          // kill thread if limit reached
-          if ( threadMap.size() >= maxthreads )
+          try
           {
-             Long k = threadMap.firstKey();
-             RouteServer victim = threadMap.get( k );
-             threadMap.remove( k );
-             victim.stopRouter();
+            executor.execute( server );
+          }
+          catch( RejectedExecutionException ree )
+          {
+            rejectCount.incrementAndGet();
+            System.out.println( "RouteServer: queue full (" + maxqueuesize + "), rejecting request" );
+            final Socket rejectedSocket = clientSocket;
+            try
+            {
+              rejectExecutor.execute( new Runnable()
+              {
+                public void run()
+                {
+                  rejectRequest( rejectedSocket );
+                }
+              } );
+            }
+            catch( RejectedExecutionException ree2 )
+            {
+              // even the rejects pile up, just drop the connection
+              try { clientSocket.close(); } catch( Exception e ) {}
+            }
           }
-
-          long ts = System.currentTimeMillis();
-          while ( ts <=  last_ts ) ts++;
-          threadMap.put( Long.valueOf( ts ), server );
-          last_ts = ts;
-          server.start();
         }
   }
 
@@ -192,6 +345,69 @@ public class RouteServer extends Thread
 	  return params;
   }
 
+  /**
+   * Send the 503 response, then half-close and drain the client's request
+   * for a moment, so the close does not reset the connection before the
+   * client has read the response
+   */
+  private static void rejectRequest( Socket clientSocket )
+  {
+    BufferedWriter bw = null;
+    try
+    {
+      clientSocket.setSoTimeout( REJECT_TIMEOUT );
+      bw = new BufferedWriter( new OutputStreamWriter( clientSocket.getOutputStream() ) );
+      bw.write( "HTTP/1.1 503 Service Unavailable\n" );
+      bw.write( "Retry-After: " + RETRY_AFTER + "\n" );
+      bw.write( "Connection: close\n" );
+      bw.write( "Content-Type: text/plain; charset=utf-8\n" );
+      bw.write( "Access-Control-Allow-Origin: *\n" );
+      bw.write( "\n" );
+      bw.write( "server busy, please retry later\n" );
+      bw.flush();
+      clientSocket.shutdownOutput();
+
+      InputStream is = clientSocket.getInputStream();
+      byte[] buffer = new byte[4096];
+      long deadline = System.currentTimeMillis() + REJECT_TIMEOUT;
+      while( is.read( buffer ) >= 0 && System.currentTimeMillis() < deadline )
+      {
+        // discard the request
+      }
+    }
+    catch( IOException e )
+    {
+      // ignore, client is gone or did not close in time
+    }
+    finally
+    {
+      try { clientSocket.close(); } catch( Exception e ) {}
+    }
+  }
+
+  /**
+   * @return the scheduler state and statistics as plain text
+   */
+  public static String getStatus()
+  {
+    long requests = requestCount.get();
+    StringBuilder sb = new StringBuilder();
+    sb.append( "workers=" ).append( executor.getMaximumPoolSize() ).append( '\n' );
+    sb.append( "active=" ).append( executor.getActiveCount() ).append( '\n' );
+    sb.append( "queued=" ).append( executor.getQueue().size() ).append( '\n' );
+    sb.append( "queuecapacity=" ).append( executor.getQueue().size() + executor.getQueue().remainingCapacity() ).append( '\n' );
+    sb.append( "requests=" ).append( requests ).append( '\n' );
+    sb.append( "rejected=" ).append( rejectCount.get() ).append( '\n' );
+    sb.append( "avgwait=" ).append( requests == 0 ? 0 : totalWaitTime.get() / requests ).append( "ms\n" );
+    sb.append( "maxwait=" ).append( maxWaitTime.get() ).append( "ms\n" );
+    TileCache tileCache = TileCache.getSharedInstance();
+    if ( tileCache != null )
+    {
+      sb.append( "tilecache: " ).append( tileCache.getStatistics() ).append( '\n' );
+    }
+    return sb.toString();
+  }
+
   private static long getMaxRunningTime() {
     long maxRunningTime = 60000;
     String sMaxRunningTime = System.getProperty( "maxRunningTime" );
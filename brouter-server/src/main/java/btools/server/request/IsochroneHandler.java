@@ -0,0 +1,109 @@
+package btools.server.request;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import btools.router.Isochrone;
+import btools.router.IsochroneListener;
+import btools.router.OsmNodeNamed;
+import btools.server.ServiceContext;
+
+/**
+ * URL query parameter handler for the isochrone search, returning
+ * what can be reached from a position within a cost- or distance-limit.
+ *
+ * Parameters:
+ *
+ * lonlat = lon,lat (the start position)
+ * maxcost = the cost limit (optional if maxdistance is given)
+ * maxdistance = the limit for the distance travelled in meters (optional if maxcost is given)
+ * nogos = lon,lat,radius|... (optional, radius in meters)
+ * profile = profile file name without .brf
+ * format = [geojson|polygon|csv] (optional, default geojson)
+ *
+ * geojson gives the reached nodes as points with cost and distance,
+ * polygon the convex hull of the reached nodes, and csv gives
+ * one line per reached node, written while the search runs.
+ *
+ * Example URL:
+ * http://localhost:17777/brouter/isochrone?lonlat=8.799297,49.565883&maxcost=5000&profile=trekking&format=polygon
+ */
+public class IsochroneHandler extends ServerHandler
+{
+  public IsochroneHandler( ServiceContext serviceContext, HashMap<String, String> params )
+  {
+    super( serviceContext, params );
+  }
+
+  @Override
+  public List<OsmNodeNamed> readWayPointList()
+  {
+    String lonLat = params.get( "lonlat" );
+    if ( lonLat == null ) throw new IllegalArgumentException( "lonlat parameter not set" );
+    String[] coords = lonLat.split(",");
+    if ( coords.length != 2 ) throw new IllegalArgumentException( "invalid lonlat: " + lonLat );
+
+    List<OsmNodeNamed> wplist = new ArrayList<OsmNodeNamed>();
+    wplist.add( readPosition( coords[0], coords[1], "from" ) );
+    return wplist;
+  }
+
+  public int getMaxCost()
+  {
+    String maxCost = params.get( "maxcost" );
+    return maxCost == null ? 0 : Integer.parseInt( maxCost );
+  }
+
+  public int getMaxDistance()
+  {
+    String maxDistance = params.get( "maxdistance" );
+    return maxDistance == null ? 0 : Integer.parseInt( maxDistance );
+  }
+
+  /**
+   * @return true if the nodes are written while the search runs
+   */
+  public boolean isStreaming()
+  {
+    return "csv".equals( params.get( "format" ) );
+  }
+
+  public IsochroneListener createStreamWriter( final BufferedWriter bw ) throws IOException
+  {
+    bw.write( "Longitude\tLatitude\tCost\tDistance\n" );
+    return new IsochroneListener()
+    {
+      public void nodeReached( int ilon, int ilat, int cost, int distance )
+      {
+        try
+        {
+          bw.write( (ilon-180000000) + "\t" + (ilat-90000000) + "\t" + cost + "\t" + distance + "\n" );
+        }
+        catch( IOException e )
+        {
+          throw new RuntimeException( "error writing isochrone: " + e );
+        }
+      }
+    };
+  }
+
+  public String formatIsochrone( Isochrone isochrone )
+  {
+    return "polygon".equals( params.get( "format" ) ) ? isochrone.formatHullAsGeoJson() : isochrone.formatAsGeoJson();
+  }
+
+  @Override
+  public String getMimeType()
+  {
+    return isStreaming() ? "text/tab-separated-values" : "application/vnd.geo+json";
+  }
+
+  @Override
+  public String getFileName()
+  {
+    return null;
+  }
+}
@@ -0,0 +1,91 @@
+package btools.server.request;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import btools.router.OsmNodeNamed;
+import btools.router.RouteMatrix;
+import btools.server.ServiceContext;
+
+/**
+ * URL query parameter handler for the many-to-many matrix,
+ * calculating the routes from every source to every target
+ * in one request.
+ *
+ * Parameters:
+ *
+ * sources = lon,lat|... (list of source positions separated by |)
+ * targets = lon,lat|... (list of target positions separated by |)
+ * nogos = lon,lat,radius|... (optional, radius in meters)
+ * profile = profile file name without .brf
+ * format = [json|csv] (optional, default json)
+ *
+ * The result holds cost, track-length and filtered ascend per pair,
+ * -1 for targets that cannot be reached from a source.
+ *
+ * Example URL:
+ * http://localhost:17777/brouter/matrix?sources=8.799297,49.565883&targets=8.811764,49.563606|8.818,49.56&profile=trekking
+ */
+public class MatrixHandler extends ServerHandler
+{
+  private int sourceCount;
+
+  public MatrixHandler( ServiceContext serviceContext, HashMap<String, String> params )
+  {
+    super( serviceContext, params );
+  }
+
+  /**
+   * @return the sources, followed by the targets
+   */
+  @Override
+  public List<OsmNodeNamed> readWayPointList()
+  {
+    List<OsmNodeNamed> wplist = new ArrayList<OsmNodeNamed>();
+    readPositions( "sources", "source", wplist );
+    sourceCount = wplist.size();
+    readPositions( "targets", "target", wplist );
+    return wplist;
+  }
+
+  private void readPositions( String param, String name, List<OsmNodeNamed> wplist )
+  {
+    // lon,lat|...
+    String lonLats = params.get( param );
+    if ( lonLats == null ) throw new IllegalArgumentException( param + " parameter not set" );
+
+    String[] coords = lonLats.split("\\|");
+    for (int i = 0; i < coords.length; i++)
+    {
+      String[] lonLat = coords[i].split(",");
+      if ( lonLat.length != 2 ) throw new IllegalArgumentException( "invalid position in " + param + ": " + coords[i] );
+      wplist.add( readPosition( lonLat[0], lonLat[1], name + i ) );
+    }
+  }
+
+  /**
+   * @return the number of sources at the start of the waypoint list
+   */
+  public int getSourceCount()
+  {
+    return sourceCount;
+  }
+
+  public String formatMatrix( RouteMatrix matrix )
+  {
+    return "csv".equals( params.get( "format" ) ) ? matrix.formatAsCsv() : matrix.formatAsJson();
+  }
+
+  @Override
+  public String getMimeType()
+  {
+    return "csv".equals( params.get( "format" ) ) ? "text/tab-separated-values" : "application/json";
+  }
+
+  @Override
+  public String getFileName()
+  {
+    return null;
+  }
+}
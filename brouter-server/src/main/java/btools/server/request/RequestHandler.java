@@ -25,6 +25,10 @@ public abstract class RequestHandler
 
 	public abstract String formatTrack(OsmTrack track);
 
+	public abstract String formatTracks(List<OsmTrack> tracks);
+
+	public abstract boolean isMultiTrack();
+
   public abstract String getMimeType();
 
   public abstract String getFileName();
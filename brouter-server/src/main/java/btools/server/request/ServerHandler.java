@@ -21,6 +21,7 @@ import java.util.List;
  * nogos = lon,lat,radius|... (optional, radius in meters)
  * profile = profile file name without .brf
  * alternativeidx = [0|1|2|3] (optional, default 0)
+ * alternativecount = [1|2|3|4] (optional, returns the alternatives 0..count-1 as separate tracks)
  * format = [kml|gpx|geojson] (optional, default gpx)
  *
  * Example URLs:
@@ -52,7 +53,19 @@ public class ServerHandler extends RequestHandler {
     }
     rc.localFunction = profile;
 
-    rc.setAlternativeIdx(Integer.parseInt(params.get( "alternativeidx" )));
+    String alternativeCount = params.get( "alternativecount" );
+    if ( alternativeCount != null )
+    {
+      // the alternatives are calculated in one run, so just route the last one
+      int count = Integer.parseInt( alternativeCount );
+      if ( count < 1 || count > 4 ) throw new IllegalArgumentException( "alternativecount must be in 1..4" );
+      rc.setAlternativeIdx( count-1 );
+    }
+    else
+    {
+      String alternativeIdx = params.get( "alternativeidx" );
+      rc.setAlternativeIdx( alternativeIdx == null ? 0 : Integer.parseInt( alternativeIdx ) );
+    }
     
     List<OsmNodeNamed> nogoList = readNogoList();
     if ( nogoList != null )
@@ -89,6 +102,14 @@ public class ServerHandler extends RequestHandler {
   
   @Override
   public String formatTrack(OsmTrack track)
+  {
+    List<OsmTrack> tracks = new ArrayList<OsmTrack>();
+    tracks.add( track );
+    return formatTracks( tracks );
+  }
+
+  @Override
+  public String formatTracks(List<OsmTrack> tracks)
   {
     String result;
     // optional, may be null
@@ -96,24 +117,29 @@ public class ServerHandler extends RequestHandler {
 
     if (format == null || "gpx".equals(format))
     {
-      result = track.formatAsGpx();
+      result = OsmTrack.formatAsGpx( tracks );
     }
     else if ("kml".equals(format))
     {
-      result = track.formatAsKml();
+      result = OsmTrack.formatAsKml( tracks );
     }
     else if ("geojson".equals(format))
     {
-      result = track.formatAsGeoJson();
+      result = OsmTrack.formatAsGeoJson( tracks );
     }
     else if ("csv".equals(format))
     {
       try
       {
-        StringWriter sw = new StringWriter();
-        BufferedWriter bw = new BufferedWriter(sw);
-        track.writeMessages( bw, rc );
-        return sw.toString();
+        // writeMessages closes the writer, so one per track
+        StringBuilder sb = new StringBuilder();
+        for( OsmTrack track : tracks )
+        {
+          StringWriter sw = new StringWriter();
+          track.writeMessages( new BufferedWriter(sw), rc );
+          sb.append( sw.toString() );
+        }
+        return sb.toString();
       }
       catch (Exception ex)
       {
@@ -122,12 +148,21 @@ public class ServerHandler extends RequestHandler {
     }
     else {
       System.out.println("unknown track format '" + format + "', using default");
-      result = track.formatAsGpx();
+      result = OsmTrack.formatAsGpx( tracks );
     }
 
     return result;
   }
 
+  /**
+   * @return true if all alternatives up to the requested one should be returned
+   */
+  @Override
+  public boolean isMultiTrack()
+  {
+    return params.containsKey( "alternativecount" );
+  }
+
   @Override
   public String getMimeType()
   {
@@ -173,7 +208,7 @@ public class ServerHandler extends RequestHandler {
     return fileName;
   }
 
-  private static OsmNodeNamed readPosition( String vlon, String vlat, String name )
+  protected static OsmNodeNamed readPosition( String vlon, String vlat, String name )
   {
     if ( vlon == null ) throw new IllegalArgumentException( "lon " + name + " not found in input" );
     if ( vlat == null ) throw new IllegalArgumentException( "lat " + name + " not found in input" );
@@ -3,25 +3,41 @@ package btools.server;
 import java.util.*;
 
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 import java.net.URL;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
 
 import btools.router.*;
 import btools.mapaccess.*;
 
 public class RouterTest
 {
+  // the leg of the routerTest, within the test-map crossing a tile border
+  private OsmNodeNamed from = position( 8.720897, 50.002515 );
+  private OsmNodeNamed to = position( 8.723658, 49.997510 );
+
   private File workingDir;
+  private String segmentDir;
 
-  @Test
-  public void routerTest() throws Exception
+  @Before
+  public void setUp()
   {
     URL resulturl = this.getClass().getResource( "/testtrack0.gpx" );
     Assert.assertTrue( "reference result not found: ", resulturl != null );
     File resultfile = new File(resulturl.getFile());
     workingDir = resultfile.getParentFile();
+    segmentDir = workingDir.getAbsolutePath() + "/../../../brouter-map-creator/target/test-classes/tmp/segments";
+  }
 
+  @Test
+  public void routerTest() throws Exception
+  {
     String msg;
 
     // first test: route within dreiech test-map crossing tile border
@@ -42,6 +58,326 @@ public class RouterTest
     Assert.assertTrue( msg, msg != null && msg.indexOf( "not mapped" ) >= 0 );
   }
 
+  @Test
+  public void matrixTest() throws Exception
+  {
+    // one source, two targets
+    List<OsmNodeNamed> wplist = waypoints( from, to, position( 8.715, 49.999 ) );
+
+    RoutingContext rctx = profile( "trekking" );
+    RoutingEngine re = engine( wplist, rctx );
+    re.doMatrixRun( 1, 0 );
+    Assert.assertTrue( "matrix failed: " + re.getErrorMessage(), re.getErrorMessage() == null );
+    RouteMatrix matrix = re.getMatrix();
+
+    // each cell must match the single route
+    for( int t=0; t<2; t++ )
+    {
+      List<OsmNodeNamed> pair = waypoints( wplist.get( 0 ), wplist.get( 1+t ) );
+      RoutingEngine single = engine( pair, profile( "trekking" ) );
+      single.doRun( 0 );
+      Assert.assertTrue( "routing failed: " + single.getErrorMessage(), single.getErrorMessage() == null );
+      Assert.assertEquals( "cost mismatch", single.getFoundTrack().cost, matrix.getCost( 0, t ) );
+      Assert.assertEquals( "distance mismatch", single.getDistance(), matrix.getDistance( 0, t ) );
+    }
+  }
+
+  @Test
+  public void concurrentLegsTest() throws Exception
+  {
+    List<OsmNodeNamed> wplist = waypoints( from, position( 8.7195, 50.0 ), to, position( 8.715, 49.999 ) );
+
+    // the legs routed concurrently must give the serial result
+    OsmTrack[] tracks = new OsmTrack[2];
+    try
+    {
+      for( int k=0; k<2; k++ )
+      {
+        if ( k == 1 ) System.setProperty( "legThreads", "3" );
+        RoutingContext rctx = profile( "trekking" );
+        RoutingEngine re = engine( wplist, rctx );
+        re.doRun( 0 );
+        Assert.assertTrue( "routing failed: " + re.getErrorMessage(), re.getErrorMessage() == null );
+        tracks[k] = re.getFoundTrack();
+      }
+    }
+    finally
+    {
+      System.clearProperty( "legThreads" );
+    }
+    Assert.assertEquals( "cost mismatch", tracks[0].cost, tracks[1].cost );
+    Assert.assertTrue( "track mismatch", tracks[0].equalsTrack( tracks[1] ) );
+  }
+
+  @Test
+  public void isochroneTest() throws Exception
+  {
+    List<OsmNodeNamed> wplist = waypoints( from );
+
+    RoutingContext rctx = profile( "trekking" );
+    RoutingEngine re = engine( wplist, rctx );
+
+    final int maxCost = 2000;
+    final List<int[]> reached = new ArrayList<int[]>();
+    re.doIsochroneRun( maxCost, 0, new IsochroneListener()
+    {
+      public void nodeReached( int ilon, int ilat, int cost, int distance )
+      {
+        reached.add( new int[]{ ilon, ilat, cost, distance } );
+      }
+    }, 0 );
+    Assert.assertTrue( "isochrone failed: " + re.getErrorMessage(), re.getErrorMessage() == null );
+    Assert.assertTrue( "too few nodes reached", reached.size() > 10 );
+
+    // reported once per node, in the order of increasing cost, within the limit
+    Set<Long> positions = new HashSet<Long>();
+    int lastCost = 0;
+    for( int[] r : reached )
+    {
+      Assert.assertTrue( "duplicate position", positions.add( Long.valueOf( ((long)r[0]) << 32 | r[1] ) ) );
+      Assert.assertTrue( "cost decreasing", r[2] >= lastCost );
+      Assert.assertTrue( "cost limit exceeded", r[2] <= maxCost );
+      lastCost = r[2];
+    }
+  }
+
+  @Test
+  public void shortcutTest() throws Exception
+  {
+    List<OsmNodeNamed> wplist = waypoints( position( 8.712, 49.996 ), position( 8.7255, 50.0032 ) );
+
+    // the test-map is too small for the default minimum distance
+    RoutingContext rctx = profile( "car-test" );
+    RoutingEngine re = engine( wplist, rctx );
+    rctx.useShortcuts = true;
+    rctx.shortcutMinDistance = 500;
+    re.doRun( 0 );
+    Assert.assertTrue( "routing failed: " + re.getErrorMessage(), re.getErrorMessage() == null );
+    Assert.assertEquals( "not routed along the shortcut graph", 1, re.getShortcutLegs() );
+    Assert.assertTrue( "track too short", re.getFoundTrack().nodes.size() > 2 );
+
+    // the path found in the shortcut graph is unpacked to adjacent original nodes
+    OsmNode[] start = re.matchPosition( wplist.get( 0 ) );
+    OsmNode[] end = re.matchPosition( wplist.get( 1 ) );
+    ShortcutGraph sg = ShortcutGraph.getCached( ShortcutGraph.getFile( segmentDir, "car-test" ) );
+    long[] ids = sg.findPath( new long[]{ start[1].getIdFromPos(), start[2].getIdFromPos() },
+                              new long[]{ end[1].getIdFromPos(), end[2].getIdFromPos() } );
+    Assert.assertTrue( "no path in the shortcut graph", ids != null && ids.length > 2 );
+    btools.expressions.BExpressionMetaData meta = rctx.expctxWay.meta;
+    OsmNodesMap nodesMap = new OsmNodesMap();
+    NodesCache nodesCache = new NodesCache( segmentDir, nodesMap, meta.lookupVersion, meta.lookupMinorVersion, meta.readVarLength, true, false, null );
+    try
+    {
+      for( int i=0; i<ids.length-1; i++ )
+      {
+        // a link is stored with one of its nodes only, so decode both
+        OsmNode node = getNode( nodesCache, nodesMap, ids[i] );
+        getNode( nodesCache, nodesMap, ids[i+1] );
+        boolean adjacent = false;
+        for( OsmLink link = node.firstlink; link != null; link = link.next )
+        {
+          if ( link.targetNode.getIdFromPos() == ids[i+1] ) adjacent = true;
+        }
+        Assert.assertTrue( "path not unpacked at " + i, adjacent );
+      }
+    }
+    finally
+    {
+      nodesCache.close();
+    }
+  }
+
+  @Test
+  public void snapTest() throws Exception
+  {
+    // positions on a grid over the test-map: i, j and the crosspoint, node1
+    // and node2 (lon, lat) as matched by the former full scan
+    int[][] expected =
+    {
+      { 0, 0, 188712021, 139995978, 188711635, 139995769, 188711984, 139996988 },
+      { 1, 4, 188713247, 139999638, 188713247, 139999638, 188713137, 139999918 },
+      { 3, 7, 188716314, 140001635, 188716297, 140001376, 188716314, 140001635 },
+      { 5, 5, 188719479, 139999946, 188720103, 139998470, 188719398, 139999959 },
+      { 7, 2, 188722424, 139997582, 188722316, 139996495, 188721741, 139998553 },
+      { 9, 9, 188725511, 140002867, 188722486, 140002700, 188726320, 140002879 },
+    };
+
+    List<OsmNodeNamed> wplist = waypoints( from, to );
+    RoutingContext rctx = profile( "trekking" );
+    RoutingEngine re = engine( wplist, rctx );
+
+    for( int[] e : expected )
+    {
+      OsmNode[] match = re.matchPosition( position( 8.712 + 0.0015*e[0], 49.996 + 0.0008*e[1] ) );
+      for( int k=0; k<3; k++ )
+      {
+        String name = k == 0 ? "crosspoint" : "node" + k;
+        Assert.assertEquals( name + " lon mismatch at " + e[0] + "/" + e[1], e[2+2*k], match[k].ilon );
+        Assert.assertEquals( name + " lat mismatch at " + e[0] + "/" + e[1], e[3+2*k], match[k].ilat );
+      }
+    }
+  }
+
+  @Test
+  public void cacheEvictionTest() throws Exception
+  {
+    List<OsmNodeNamed> wplist = waypoints( from, to );
+
+    OsmTrack[] tracks = new OsmTrack[2];
+    btools.expressions.BExpressionMetaData meta = null;
+    try
+    {
+      for( int k=0; k<2; k++ )
+      {
+        // the second run evicts all but the current tile
+        if ( k == 1 ) NodesCache.setMaxCacheBytes( 1L, Long.MAX_VALUE );
+        RoutingContext rctx = profile( "trekking" );
+        RoutingEngine re = engine( wplist, rctx );
+        re.doRun( 0 );
+        Assert.assertTrue( "routing failed: " + re.getErrorMessage(), re.getErrorMessage() == null );
+        tracks[k] = re.getFoundTrack();
+        meta = rctx.expctxWay.meta;
+      }
+      Assert.assertEquals( "cost mismatch", tracks[0].cost, tracks[1].cost );
+      Assert.assertTrue( "track mismatch", tracks[0].equalsTrack( tracks[1] ) );
+
+      // evicted tiles are read again when visited a second time
+      NodesCache nodesCache = new NodesCache( segmentDir, new OsmNodesMap(), meta.lookupVersion, meta.lookupMinorVersion, meta.readVarLength, false, false, null );
+      int[] nodes = new int[2];
+      for( int round=0; round<2; round++ )
+      {
+        for( int ilon = position( 8.70, 0. ).ilon; ilon < position( 8.74, 0. ).ilon; ilon += 12500 )
+        {
+          for( int ilat = position( 0., 49.99 ).ilat; ilat < position( 0., 50.01 ).ilat; ilat += 12500 )
+          {
+            nodes[round] += nodesCache.loadSegmentFor( ilon, ilat );
+          }
+        }
+      }
+      nodesCache.close();
+      Assert.assertTrue( "no nodes loaded", nodes[0] > 0 );
+      Assert.assertEquals( "node count mismatch", nodes[0], nodes[1] );
+      Assert.assertTrue( "no tiles evicted", nodesCache.getTileEvictions() > 0 );
+      Assert.assertTrue( "no tiles reloaded", nodesCache.getTileReloads() > 0 );
+    }
+    finally
+    {
+      NodesCache.setMaxCacheBytes( Runtime.getRuntime().maxMemory() / 4, Long.MAX_VALUE );
+    }
+  }
+
+  @Test
+  public void integrityCheckTest() throws Exception
+  {
+    File segmentFile = new File( segmentDir, "E5_N50.rd5" );
+
+    File f = new File( workingDir, "integrity_test.rd5" );
+    byte[] data = new byte[(int)segmentFile.length()];
+    DataInputStream dis = new DataInputStream( new FileInputStream( segmentFile ) );
+    dis.readFully( data );
+    dis.close();
+    FileOutputStream fos = new FileOutputStream( f );
+    fos.write( data );
+    fos.close();
+    long lastModified = f.lastModified();
+
+    Assert.assertNull( "intact file reported corrupt", PhysicalFile.checkFileIntegrity( f ) );
+
+    // flip the last byte of a tile-index with data (the last micro-tile's checksum)
+    long start = 200L;
+    long corruptPos = -1L;
+    for( int i=0; i<25 && corruptPos < 0; i++ )
+    {
+      long end = new DataInputStream( new ByteArrayInputStream( data, 8*i, 8 ) ).readLong() & 0xffffffffffffL;
+      if ( end - start > 25600 ) corruptPos = end - 1;
+      start = end;
+    }
+    Assert.assertTrue( "no tile data found", corruptPos > 0 );
+    RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+    raf.seek( corruptPos );
+    raf.write( data[(int)corruptPos] ^ 0x55 );
+    raf.close();
+    f.setLastModified( lastModified );
+
+    // a second check in the same process must not rely on the first one
+    Assert.assertNotNull( "corrupt tile not detected", PhysicalFile.checkFileIntegrity( f ) );
+    Assert.assertFalse( "sidecar written by the check", new File( f.getPath() + ".crc" ).exists() );
+    f.delete();
+  }
+
+  @Test
+  public void segmentStampsTest() throws Exception
+  {
+    List<OsmNodeNamed> wplist = waypoints( from, to );
+    RoutingContext rctx = profile( "trekking" );
+    engine( wplist, rctx );
+    btools.expressions.BExpressionMetaData meta = rctx.expctxWay.meta;
+    NodesCache nodesCache = new NodesCache( segmentDir, new OsmNodesMap(), meta.lookupVersion, meta.lookupMinorVersion, meta.readVarLength, false, false, null );
+    try
+    {
+      // the tables built by the map-creator test match the data files
+      SegmentStamps lmkStamps = LandmarkTable.getCached( LandmarkTable.getFile( segmentDir, "trekking" ) ).getSegmentStamps();
+      Assert.assertTrue( "no data files recorded", lmkStamps.getFileCount() > 0 );
+      Assert.assertTrue( "landmark table does not match", lmkStamps.matches( nodesCache ) );
+
+      // the shortcut graph is built from the car subset
+      SegmentStamps scgStamps = ShortcutGraph.getCached( ShortcutGraph.getFile( segmentDir, "car-test" ) ).getSegmentStamps();
+      Assert.assertFalse( "shortcut graph matches the full files", scgStamps.matches( nodesCache ) );
+      NodesCache carCache = new NodesCache( segmentDir, new OsmNodesMap(), meta.lookupVersion, meta.lookupMinorVersion, meta.readVarLength, true, false, null );
+      Assert.assertTrue( "shortcut graph does not match", scgStamps.matches( carCache ) );
+      carCache.close();
+
+      // but not a replaced file
+      Map<String,String> stamps = new HashMap<String,String>();
+      stamps.put( "E5_N50", nodesCache.getFileStamp( "E5_N50" ) + "0" );
+      Assert.assertFalse( "replaced file not detected", new SegmentStamps( stamps ).matches( nodesCache ) );
+    }
+    finally
+    {
+      nodesCache.close();
+    }
+  }
+
+  private static OsmNode getNode( NodesCache nodesCache, OsmNodesMap nodesMap, long id )
+  {
+    OsmNode node = nodesMap.get( id );
+    if ( node == null )
+    {
+      node = new OsmNode( id );
+      node.setHollow();
+      nodesMap.put( id, node );
+    }
+    Assert.assertTrue( "node not found: " + id, nodesCache.obtainNonHollowNode( node ) );
+    return node;
+  }
+
+  private static List<OsmNodeNamed> waypoints( OsmNodeNamed... positions )
+  {
+    return new ArrayList<OsmNodeNamed>( Arrays.asList( positions ) );
+  }
+
+  private RoutingContext profile( String name )
+  {
+    RoutingContext rctx = new RoutingContext();
+    rctx.localFunction = workingDir.getAbsolutePath() + "/../../../misc/profiles2/" + name + ".brf";
+    return rctx;
+  }
+
+  private RoutingEngine engine( List<OsmNodeNamed> wplist, RoutingContext rctx )
+  {
+    RoutingEngine re = new RoutingEngine( null, null, segmentDir, wplist, rctx );
+    re.quite = true;
+    return re;
+  }
+
+  private static OsmNodeNamed position( double lon, double lat )
+  {
+    OsmNodeNamed n = new OsmNodeNamed();
+    n.ilon = 180000000 + (int)(lon*1000000 + 0.5);
+    n.ilat =  90000000 + (int)(lat*1000000 + 0.5);
+    return n;
+  }
+
   private String calcRoute( double flon, double flat, double tlon, double tlat, String trackname ) throws Exception
   {
     String wd = workingDir.getAbsolutePath();
@@ -60,14 +396,13 @@ public class RouterTest
     n.ilat =  90000000 + (int)(tlat*1000000 + 0.5);
     wplist.add( n );
 
-    RoutingContext rctx = new RoutingContext();
-    rctx.localFunction = wd + "/../../../misc/profiles2/trekking.brf";
+    RoutingContext rctx = profile( "trekking" );
     //   c.setAlternativeIdx( 1 );
 
     RoutingEngine re = new RoutingEngine(
         wd + "/" + trackname,
         wd + "/" + trackname,
-        wd + "/../../../brouter-map-creator/target/test-classes/tmp/segments", wplist, rctx );
+        segmentDir, wplist, rctx );
     re.doRun( 0 );
     
     return re.getErrorMessage();
@@ -0,0 +1,238 @@
+package btools.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash-Map to map a long-key to an object-value without
+ * boxing the keys
+ *
+ * Open addressing with linear probing, removal is done in place
+ * by shifting back the following entries of the probe sequence,
+ * so there are no tombstones and no allocation except for growing.
+ * Null values are not allowed, a null value marks an empty slot.
+ *
+ * @author ab
+ */
+public class LongObjectMap<V>
+{
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int shift;
+  private int size = 0;
+  private int resizeLimit;
+
+  public LongObjectMap()
+  {
+    this( 64 );
+  }
+
+  public LongObjectMap( int initialCapacity )
+  {
+    int capacity = 16;
+    while( capacity < initialCapacity*2 )
+    {
+      capacity <<= 1;
+    }
+    allocate( capacity );
+  }
+
+  private void allocate( int capacity )
+  {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity-1;
+    shift = 64 - Integer.numberOfTrailingZeros( capacity );
+    resizeLimit = capacity/2; // load factor 0.5
+  }
+
+  private int slot( long key )
+  {
+    return (int)( ( key * 0x9E3779B97F4A7C15L ) >>> shift );
+  }
+
+  // values are only ever stored via put, so this is the one place to cast
+  @SuppressWarnings("unchecked")
+  private V valueAt( int i )
+  {
+    return (V)values[i];
+  }
+
+  /**
+   * @return the value for the given key, or null if not contained
+   */
+  public V get( long key )
+  {
+    for( int i = slot( key );; i = (i+1) & mask )
+    {
+      V v = valueAt( i );
+      if ( v == null ) return null;
+      if ( keys[i] == key ) return v;
+    }
+  }
+
+  public boolean contains( long key )
+  {
+    return get( key ) != null;
+  }
+
+  /**
+   * Put an entry into the map
+   *
+   * @return the previous value for that key, or null
+   */
+  public V put( long key, V value )
+  {
+    if ( value == null ) throw new IllegalArgumentException( "null value not allowed" );
+
+    int i = slot( key );
+    for( ;; i = (i+1) & mask )
+    {
+      V v = valueAt( i );
+      if ( v == null ) break;
+      if ( keys[i] == key )
+      {
+        values[i] = value;
+        return v;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    if ( ++size > resizeLimit )
+    {
+      resize();
+    }
+    return null;
+  }
+
+  /**
+   * Remove the entry for the given key
+   *
+   * @return the removed value, or null if not contained
+   */
+  public V remove( long key )
+  {
+    for( int i = slot( key );; i = (i+1) & mask )
+    {
+      V v = valueAt( i );
+      if ( v == null ) return null;
+      if ( keys[i] == key )
+      {
+        removeAt( i );
+        return v;
+      }
+    }
+  }
+
+  // remove the entry at the given slot and shift back the following
+  // entries of the cluster that cannot be found anymore otherwise
+  private void removeAt( int i )
+  {
+    size--;
+    int gap = i;
+    for( int j = (i+1) & mask;; j = (j+1) & mask )
+    {
+      if ( values[j] == null ) break;
+      int home = slot( keys[j] );
+
+      // move if the home slot is not in the cyclic range (gap, j]
+      boolean inRange = gap <= j ? ( gap < home && home <= j ) : ( gap < home || home <= j );
+      if ( !inRange )
+      {
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    values[gap] = null;
+  }
+
+  private void resize()
+  {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate( oldKeys.length * 2 );
+    for( int i=0; i<oldKeys.length; i++ )
+    {
+      Object v = oldValues[i];
+      if ( v == null ) continue;
+      int j = slot( oldKeys[i] );
+      while( values[j] != null )
+      {
+        j = (j+1) & mask;
+      }
+      keys[j] = oldKeys[i];
+      values[j] = v;
+    }
+  }
+
+  /**
+   * Selector for conditional removal
+   */
+  public interface Selector<V>
+  {
+    boolean select( V value );
+  }
+
+  /**
+   * Remove all entries where the selector returns true, without allocation.
+   *
+   * @return the number of entries removed
+   */
+  public int removeSelected( Selector<V> selector )
+  {
+    if ( size == 0 ) return 0;
+
+    // start at an empty slot and walk downwards: entries shifted back
+    // by a removal come from the already visited part above
+    int start = 0;
+    while( values[start] != null )
+    {
+      start++;
+    }
+    int removed = 0;
+    for( int n=0, i = start; n < values.length; n++, i = (i-1) & mask )
+    {
+      V v = valueAt( i );
+      if ( v != null && selector.select( v ) )
+      {
+        removeAt( i );
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return the number of entries in this map
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return a list of all values (a copy)
+   */
+  public List<V> values()
+  {
+    ArrayList<V> list = new ArrayList<V>( size );
+    for( int i=0; i<values.length; i++ )
+    {
+      V v = valueAt( i );
+      if ( v != null ) list.add( v );
+    }
+    return list;
+  }
+
+  public void clear()
+  {
+    if ( size == 0 ) return;
+    for( int i=0; i<values.length; i++ )
+    {
+      values[i] = null;
+    }
+    size = 0;
+  }
+}
@@ -0,0 +1,36 @@
+package btools.util;
+
+import java.util.List;
+
+/**
+ * Priority queue of key-value pairs with integer keys
+ * that returns the values in the order of lowest key first.
+ *
+ * There is no decrease-key or remove operation: callers do lazy
+ * deletion by adding the value again with the new key and
+ * invalidating the outdated entries themselves, skipping them
+ * when they get popped.
+ *
+ * @author ab
+ */
+public interface LowestKeyQueue<V>
+{
+  void add( int key, V value );
+
+  /**
+   * @return the value with the lowest key, or null if empty
+   */
+  V popLowestKeyValue();
+
+  void clear();
+
+  /**
+   * @return the number of entries (including outdated ones)
+   */
+  int getSize();
+
+  /**
+   * @return a sample of at most about 1000 values in the queue
+   */
+  List<V> getExtract();
+}
@@ -0,0 +1,183 @@
+package btools.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Radix heap to get the lowest-key value of a set
+ * of key-value pairs with integer keys
+ *
+ * Entries are kept in 33 unsorted buckets by the highest bit
+ * in which the key differs from the last popped key, so add()
+ * is constant time and popLowestKeyValue() has to sort out
+ * just a single bucket on each bucket change.
+ *
+ * This requires keys that do not decrease below the last popped
+ * key, which is the case for dijkstra and a* with a consistent
+ * heuristic. Keys below that are still handled correctly by an
+ * underflow heap, but loose the performance advantage.
+ *
+ * Values with equal keys are returned in LIFO order.
+ *
+ * @author ab
+ */
+public final class RadixHeap<V> implements LowestKeyQueue<V>
+{
+  private static final int NBUCKETS = 33;
+
+  private int[][] keys = new int[NBUCKETS][];
+  private Object[][] values = new Object[NBUCKETS][];
+  private int[] sizes = new int[NBUCKETS];
+
+  private int last;
+  private int size;
+
+  private SortedHeap<V> underflow;
+  private int underflowSize;
+
+  public RadixHeap()
+  {
+    for( int i=0; i<NBUCKETS; i++ )
+    {
+      keys[i] = new int[4];
+      values[i] = new Object[4];
+    }
+    clear();
+  }
+
+  private static int bucketIndex( int key, int last )
+  {
+    return 32 - Integer.numberOfLeadingZeros( key ^ last );
+  }
+
+  // values are only ever stored via add, so this is the one place to cast
+  @SuppressWarnings("unchecked")
+  private V valueAt( int b, int i )
+  {
+    return (V)values[b][i];
+  }
+
+  public void add( int key, V value )
+  {
+    if ( key < last )
+    {
+      if ( underflow == null )
+      {
+        underflow = new SortedHeap<V>();
+      }
+      underflow.add( key, value );
+      underflowSize++;
+      return;
+    }
+    addToBucket( bucketIndex( key, last ), key, value );
+    size++;
+  }
+
+  private void addToBucket( int b, int key, Object value )
+  {
+    int n = sizes[b];
+    if ( n == keys[b].length )
+    {
+      int[] nk = new int[2*n];
+      Object[] nv = new Object[2*n];
+      System.arraycopy( keys[b], 0, nk, 0, n );
+      System.arraycopy( values[b], 0, nv, 0, n );
+      keys[b] = nk;
+      values[b] = nv;
+    }
+    keys[b][n] = key;
+    values[b][n] = value;
+    sizes[b] = n+1;
+  }
+
+  public V popLowestKeyValue()
+  {
+    // underflow entries are below all bucket entries
+    if ( underflowSize > 0 )
+    {
+      underflowSize--;
+      return underflow.popLowestKeyValue();
+    }
+
+    if ( size == 0 ) return null;
+
+    if ( sizes[0] == 0 )
+    {
+      // find the first non-empty bucket and its minimum
+      int b = 1;
+      while( sizes[b] == 0 ) b++;
+
+      int[] kb = keys[b];
+      Object[] vb = values[b];
+      int n = sizes[b];
+      int min = kb[0];
+      for( int i=1; i<n; i++ )
+      {
+        if ( kb[i] < min ) min = kb[i];
+      }
+
+      // redistribute relative to the new minimum (all go to lower buckets)
+      last = min;
+      sizes[b] = 0;
+      for( int i=0; i<n; i++ )
+      {
+        addToBucket( bucketIndex( kb[i], min ), kb[i], vb[i] );
+        vb[i] = null;
+      }
+    }
+
+    size--;
+    int n0 = --sizes[0];
+    V res = valueAt( 0, n0 );
+    values[0][n0] = null;
+    return res;
+  }
+
+  public void clear()
+  {
+    for( int b=0; b<NBUCKETS; b++ )
+    {
+      Object[] vb = values[b];
+      for( int i=sizes[b]-1; i>=0; i-- )
+      {
+        vb[i] = null;
+      }
+      sizes[b] = 0;
+    }
+    if ( underflowSize > 0 )
+    {
+      underflow.clear();
+    }
+    underflowSize = 0;
+    size = 0;
+    last = Integer.MIN_VALUE;
+  }
+
+  public int getSize()
+  {
+    return size + underflowSize;
+  }
+
+  public List<V> getExtract()
+  {
+    int div = getSize() / 1000 + 1;
+
+    ArrayList<V> res = new ArrayList<V>( getSize() / div );
+    int cnt = 0;
+    for( int b=0; b<NBUCKETS; b++ )
+    {
+      for( int i=0; i<sizes[b]; i++ )
+      {
+        if ( (++cnt) % div == 0 )
+        {
+          res.add( valueAt( b, i ) );
+        }
+      }
+    }
+    if ( underflowSize > 0 )
+    {
+      res.addAll( underflow.getExtract() );
+    }
+    return res;
+  }
+}
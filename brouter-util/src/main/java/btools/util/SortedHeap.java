@@ -11,7 +11,7 @@ import java.util.List;
  *
  * @author ab
  */
-public class SortedHeap<V>
+public class SortedHeap<V> implements LowestKeyQueue<V>
 {
   private int[][] al;
   private int[] pa;
@@ -230,6 +230,11 @@ public class SortedHeap<V>
 	  }
   }
 
+  public int getSize()
+  {
+    return size;
+  }
+
   public List<V> getExtract()
   {
 	  int div = size / 1000 + 1;
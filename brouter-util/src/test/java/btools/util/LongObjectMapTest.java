@@ -0,0 +1,78 @@
+package btools.util;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongObjectMapTest
+{
+  @Test
+  public void hashMapComparisonTest()
+  {
+    hashMapComparison( 10, 100 );
+    hashMapComparison( 1000, 100000 );
+    hashMapComparison( 100000, 10000000L );
+  }
+
+  private void hashMapComparison( int opcount, long keyrange )
+  {
+    Random rand = new Random( 12345 );
+    HashMap<Long,String> hmap = new HashMap<Long,String>();
+    LongObjectMap<String> lmap = new LongObjectMap<String>( 4 );
+
+    for( int i=0; i<opcount; i++ )
+    {
+      long k = (long)(rand.nextDouble()*keyrange) << 16; // clustered hashes
+      Long KK = new Long( k );
+      int op = rand.nextInt( 3 );
+      if ( op == 0 )
+      {
+        Assert.assertEquals( "remove missmatch", hmap.remove( KK ), lmap.remove( k ) );
+      }
+      else
+      {
+        String s = "" + i;
+        Assert.assertEquals( "put missmatch", hmap.put( KK, s ), lmap.put( k, s ) );
+      }
+      Assert.assertEquals( "size missmatch", hmap.size(), lmap.size() );
+    }
+
+    for( int i=0; i<opcount; i++ )
+    {
+      long k = (long)(rand.nextDouble()*keyrange) << 16;
+      Assert.assertEquals( "get missmatch", hmap.get( new Long( k ) ), lmap.get( k ) );
+    }
+    for( Long KK : hmap.keySet() )
+    {
+      Assert.assertEquals( "get missmatch", hmap.get( KK ), lmap.get( KK.longValue() ) );
+    }
+
+    // remove every other entry by selector
+    int removed = lmap.removeSelected( new LongObjectMap.Selector<String>()
+    {
+      public boolean select( String value )
+      {
+        return ( Integer.parseInt( value ) & 1 ) == 0;
+      }
+    } );
+    int expectedRemoved = 0;
+    for( Long KK : new HashMap<Long,String>( hmap ).keySet() )
+    {
+      String s = hmap.get( KK );
+      if ( ( Integer.parseInt( s ) & 1 ) == 0 )
+      {
+        hmap.remove( KK );
+        expectedRemoved++;
+      }
+    }
+    Assert.assertEquals( "removeSelected count missmatch", expectedRemoved, removed );
+    Assert.assertEquals( "size missmatch", hmap.size(), lmap.size() );
+    for( Long KK : hmap.keySet() )
+    {
+      Assert.assertEquals( "get missmatch after removeSelected", hmap.get( KK ), lmap.get( KK.longValue() ) );
+    }
+    Assert.assertEquals( "values missmatch", hmap.size(), lmap.values().size() );
+  }
+}
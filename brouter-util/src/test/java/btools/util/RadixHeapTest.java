@@ -0,0 +1,167 @@
+package btools.util;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RadixHeapTest
+{
+  @Test
+  public void sortedHeapComparisonTest()
+  {
+    // a* like sequences, with and without decreasing keys
+    compareWithSortedHeap( createSearchSequence( 60, 0. ) );
+    compareWithSortedHeap( createSearchSequence( 60, 1.5 ) );
+
+    // random keys, mostly decreasing
+    Random rnd = new Random( 4711 );
+    int[] ops = new int[30000];
+    for( int i=0; i<ops.length; i++ )
+    {
+      ops[i] = rnd.nextInt( 3 ) == 0 ? -1 : rnd.nextInt( 1000000 );
+    }
+    compareWithSortedHeap( ops );
+  }
+
+  private void compareWithSortedHeap( int[] ops )
+  {
+    SortedHeap<Integer> sh = new SortedHeap<Integer>();
+    RadixHeap<Integer> rh = new RadixHeap<Integer>();
+    for( int op : ops )
+    {
+      if ( op < 0 )
+      {
+        Integer v1 = sh.popLowestKeyValue();
+        Integer v2 = rh.popLowestKeyValue();
+        Assert.assertEquals( "pop missmatch", v1, v2 );
+      }
+      else
+      {
+        sh.add( op, Integer.valueOf( op ) );
+        rh.add( op, Integer.valueOf( op ) );
+      }
+      Assert.assertEquals( "size missmatch", sh.getSize(), rh.getSize() );
+    }
+    for(;;)
+    {
+      Integer v1 = sh.popLowestKeyValue();
+      Integer v2 = rh.popLowestKeyValue();
+      Assert.assertEquals( "pop missmatch", v1, v2 );
+      if ( v1 == null ) break;
+    }
+  }
+
+  // @Test - timing test disabled for load reasons
+  public void radixHeapSpeedTest()
+  {
+    int[] ops = createSearchSequence( 1000, 0. );
+    int[] ops15 = createSearchSequence( 1000, 1.5 );
+    for( int run=0; run<5; run++ )
+    {
+      long t0 = System.currentTimeMillis();
+      replay( ops, new SortedHeap<Integer>() );
+      replay( ops15, new SortedHeap<Integer>() );
+      long t1 = System.currentTimeMillis();
+      replay( ops, new RadixHeap<Integer>() );
+      replay( ops15, new RadixHeap<Integer>() );
+      long t2 = System.currentTimeMillis();
+      System.out.println( "ops=" + (ops.length + ops15.length) + " sortedHeap: " + (t1-t0) + "ms radixHeap: " + (t2-t1) + "ms" );
+    }
+  }
+
+  private int replay( int[] ops, LowestKeyQueue<Integer> queue )
+  {
+    int sum = 0;
+    Integer dummy = Integer.valueOf( 0 );
+    for( int op : ops )
+    {
+      if ( op < 0 )
+      {
+        if ( queue.popLowestKeyValue() != null ) sum++;
+      }
+      else
+      {
+        queue.add( op, dummy );
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Record the open-set operations (key for add, -1 for pop) of an a* search
+   * on a grid with random costfactors, with a weighted air-distance
+   * heuristic and lazy deletion (skip nodes that were already closed)
+   */
+  private int[] createSearchSequence( int n, double airDistanceCostFactor )
+  {
+    Random rnd = new Random( 12345 );
+    int[] costfactors = new int[n*n];
+    for( int i=0; i<costfactors.length; i++ )
+    {
+      costfactors[i] = 100 + rnd.nextInt( 200 );
+    }
+    int target = n*n-1;
+    int[] cost = new int[n*n];
+    boolean[] closed = new boolean[n*n];
+    java.util.Arrays.fill( cost, Integer.MAX_VALUE );
+
+    IntList ops = new IntList();
+    SortedHeap<Integer> openSet = new SortedHeap<Integer>();
+    cost[0] = 0;
+    openSet.add( 0, Integer.valueOf( 0 ) );
+    ops.add( 0 );
+    for(;;)
+    {
+      Integer node = openSet.popLowestKeyValue();
+      ops.add( -1 );
+      if ( node == null ) break;
+      int idx = node.intValue();
+      if ( closed[idx] ) continue;
+      closed[idx] = true;
+      if ( idx == target ) break;
+      int x = idx % n;
+      int y = idx / n;
+      for( int d=0; d<4; d++ )
+      {
+        int nx = x + ( d == 0 ? 1 : d == 1 ? -1 : 0 );
+        int ny = y + ( d == 2 ? 1 : d == 3 ? -1 : 0 );
+        if ( nx < 0 || ny < 0 || nx >= n || ny >= n ) continue;
+        int nidx = ny*n + nx;
+        int c = cost[idx] + costfactors[nidx];
+        if ( closed[nidx] || c >= cost[nidx] ) continue;
+        cost[nidx] = c;
+        double dx = n-1-nx;
+        double dy = n-1-ny;
+        int key = c + (int)( Math.sqrt( dx*dx + dy*dy ) * 100 * airDistanceCostFactor );
+        openSet.add( key, Integer.valueOf( nidx ) );
+        ops.add( key );
+      }
+    }
+    return ops.toArray();
+  }
+
+  private static final class IntList
+  {
+    private int[] a = new int[1024];
+    private int size;
+
+    void add( int i )
+    {
+      if ( size == a.length )
+      {
+        int[] na = new int[2*size];
+        System.arraycopy( a, 0, na, 0, size );
+        a = na;
+      }
+      a[size++] = i;
+    }
+
+    int[] toArray()
+    {
+      int[] res = new int[size];
+      System.arraycopy( a, 0, res, 0, size );
+      return res;
+    }
+  }
+}
@@ -1,7 +1,7 @@
 @echo off
 
 REM BRouter standalone server
-REM java -cp brouter.jar btools.brouter.RouteServer <segmentdir> <profile-map> <customprofiledir> <port> <maxthreads>
+REM java -cp brouter.jar btools.brouter.RouteServer <segmentdir> <profile-map> <customprofiledir> <port> <maxthreads> [<maxqueuesize>]
 
 set JAVA_OPTS=-Xmx128M -Xms128M -Xmn8M
 set CLASSPATH=../brouter.jar
@@ -1,7 +1,7 @@
 #!/bin/sh
 
 # BRouter standalone server
-# java -cp brouter.jar btools.brouter.RouteServer <segmentdir> <profile-map> <customprofiledir> <port> <maxthreads>
+# java -cp brouter.jar btools.brouter.RouteServer <segmentdir> <profile-map> <customprofiledir> <port> <maxthreads> [<maxqueuesize>]
 
 JAVA_OPTS="-Xmx128M -Xms128M -Xmn8M"
 CLASSPATH=../brouter.jar